@@ -35,6 +35,12 @@ import javax.net.ssl.*;
 import javax.net.ssl.SSLSocketFactory;
 
 public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
+    /**
+     * Maximum number of TLS sessions kept for resumption by each factory.  Sessions are keyed by
+     * host and port, and we only talk to a handful of servers.
+     */
+    static final int SESSION_CACHE_SIZE = 16;
+
     private final SSLSocketFactory mFactory;
     private final boolean mSecure;
     private final int mHandshakeTimeout;
@@ -96,6 +102,7 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
             throws NoSuchAlgorithmException, KeyManagementException{
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, null, null);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), true, handshakeTimeout);
     }
 
@@ -105,6 +112,7 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
             throws NoSuchAlgorithmException, KeyManagementException {
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, trustManagers, null);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), false, handshakeTimeout);
     }
 
@@ -117,6 +125,9 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
         final SSLSocket sslSocket = (SSLSocket)mFactory.createSocket(socket, host, port, autoClose);
         setHandshakeTimeout(sslSocket, mHandshakeTimeout);
         sslSocket.setEnabledCipherSuites(mDefaultCipherSuites);
+        // The host and port are known here, so the session can be resumed; tickets let servers
+        // resume sessions without keeping state.
+        potentiallyEnableSessionTickets(sslSocket);
         if (mSecure) {
             verifyHostname(sslSocket, host);
         }
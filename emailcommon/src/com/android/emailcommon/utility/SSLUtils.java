@@ -42,8 +42,12 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509ExtendedKeyManager;
 import javax.net.ssl.X509TrustManager;
@@ -52,6 +56,31 @@ public class SSLUtils {
     // All secure factories are the same; all insecure factories are associated with HostAuth's
     private static javax.net.ssl.SSLSocketFactory sSecureFactory;
 
+    /**
+     * Maximum number of insecure factories kept in {@link #sInsecureFactories}.  Each has its own
+     * TLS session cache, so this bounds the memory used for sessions along with
+     * {@link SSLSocketFactoryWrapper#SESSION_CACHE_SIZE}.
+     */
+    private static final int MAX_INSECURE_FACTORIES = 8;
+
+    /**
+     * Insecure factories for saved HostAuths, keyed by {@link #getInsecureFactoryKey}, least
+     * recently used first.  Reusing a factory reuses its SSLContext, whose TLS session cache
+     * (keyed by host and port) allows abbreviated handshakes on later connections.
+     */
+    private static final LinkedHashMap<String, javax.net.ssl.SSLSocketFactory> sInsecureFactories =
+            new LinkedHashMap<String, javax.net.ssl.SSLSocketFactory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, javax.net.ssl.SSLSocketFactory> eldest) {
+                    return size() > MAX_INSECURE_FACTORIES;
+                }
+            };
+
+    /** Number of TLS handshakes counted by {@link #countHandshake} */
+    private static final AtomicInteger sFullHandshakes = new AtomicInteger();
+    private static final AtomicInteger sResumedHandshakes = new AtomicInteger();
+
     private static final boolean LOG_ENABLED = false;
     private static final String TAG = "Email.Ssl";
 
@@ -167,11 +196,24 @@ public class SSLUtils {
             final KeyManager[] keyManagers = (keyManager == null ? null :
                     new KeyManager[]{keyManager});
             if (insecure) {
+                // Only factories without a key manager can be shared, since callers may want
+                // theirs to be used (e.g. TrackingKeyManager).
+                final String key = (keyManager == null) ? getInsecureFactoryKey(hostAuth) : null;
+                if (key != null) {
+                    final javax.net.ssl.SSLSocketFactory cachedFactory =
+                            sInsecureFactories.get(key);
+                    if (cachedFactory != null) {
+                        return cachedFactory;
+                    }
+                }
                 final TrustManager[] trustManagers = new TrustManager[]{
                         new SameCertificateCheckingTrustManager(context, hostAuth)};
                 SSLSocketFactoryWrapper insecureFactory =
                         (SSLSocketFactoryWrapper) SSLSocketFactoryWrapper.getInsecure(
                                 keyManagers, trustManagers, SSL_HANDSHAKE_TIMEOUT);
+                if (key != null) {
+                    sInsecureFactories.put(key, insecureFactory);
+                }
                 return insecureFactory;
             } else {
                 if (sSecureFactory == null) {
@@ -192,6 +234,49 @@ public class SSLUtils {
         return null;
     }
 
+    /**
+     * @return the key of the insecure factory for {@code hostAuth} in {@link #sInsecureFactories},
+     *     or null if it shouldn't be cached because the HostAuth hasn't been saved.  The trust
+     *     manager of the factory remembers the server certificate of the HostAuth, so factories
+     *     can't be shared between HostAuths.
+     */
+    private static String getInsecureFactoryKey(HostAuth hostAuth) {
+        if (hostAuth == null || !hostAuth.isSaved()) {
+            return null;
+        }
+        return hostAuth.mId + "/" + hostAuth.mAddress + ":" + hostAuth.mPort + "/"
+                + hostAuth.mClientCertAlias;
+    }
+
+    /**
+     * Counts a completed TLS handshake as full or abbreviated (i.e. resumed a previous session).
+     * A resumed session keeps the creation time of the original session, so it was created
+     * before the handshake started.
+     *
+     * @param session the session of the socket, once the handshake is done
+     * @param handshakeStartMillis when the handshake started ({@link System#currentTimeMillis})
+     * @return whether the session was resumed
+     */
+    public static boolean countHandshake(SSLSession session, long handshakeStartMillis) {
+        final boolean resumed = session.getCreationTime() < handshakeStartMillis;
+        if (resumed) {
+            sResumedHandshakes.incrementAndGet();
+        } else {
+            sFullHandshakes.incrementAndGet();
+        }
+        return resumed;
+    }
+
+    /** @return the number of full TLS handshakes counted by {@link #countHandshake}. */
+    public static int getFullHandshakeCount() {
+        return sFullHandshakes.get();
+    }
+
+    /** @return the number of resumed TLS handshakes counted by {@link #countHandshake}. */
+    public static int getResumedHandshakeCount() {
+        return sResumedHandshakes.get();
+    }
+
     /**
      * Returns a com.android.emailcommon.utility.SSLSocketFactory
      */
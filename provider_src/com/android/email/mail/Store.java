@@ -34,6 +34,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 
@@ -230,6 +231,22 @@ public abstract class Store {
         // Base implementation does nothing.
     }
 
+    /**
+     * Writes debugging information about this store, e.g. for dumpsys.
+     */
+    public void dump(PrintWriter pw) {
+        // Base implementation does nothing.
+    }
+
+    /**
+     * Writes debugging information about all of the cached stores.
+     */
+    public synchronized static void dumpStores(PrintWriter pw) {
+        for (Store store : sStores.values()) {
+            store.dump(pw);
+        }
+    }
+
     public Account getAccount() {
         return mAccount;
     }
@@ -16,6 +16,8 @@
 
 package com.android.email.mail.store;
 
+import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 
@@ -36,8 +38,10 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -58,16 +62,54 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** IDLE capability per RFC 2177 */
+    public static final int CAPABILITY_IDLE      = 1 << 4;
+    /** CONDSTORE capability per RFC 7162 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 5;
+    /** QRESYNC capability per RFC 7162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 6;
+    /** COMPRESS=DEFLATE capability per RFC 4978 */
+    public static final int CAPABILITY_COMPRESS_DEFLATE = 1 << 7;
+    /** BINARY capability per RFC 3516 */
+    public static final int CAPABILITY_BINARY    = 1 << 8;
+    /** LITERAL+ capability per RFC 7888 */
+    public static final int CAPABILITY_LITERAL_PLUS = 1 << 9;
+    /** MULTIAPPEND capability per RFC 3502 */
+    public static final int CAPABILITY_MULTIAPPEND = 1 << 10;
+    /** MOVE capability per RFC 6851 */
+    public static final int CAPABILITY_MOVE      = 1 << 11;
+    /** LIST-STATUS capability per RFC 5819 */
+    public static final int CAPABILITY_LIST_STATUS = 1 << 12;
+    /** ESEARCH capability per RFC 4731 */
+    public static final int CAPABILITY_ESEARCH   = 1 << 13;
+    /** SORT capability per RFC 5256 */
+    public static final int CAPABILITY_SORT      = 1 << 14;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** Whether QRESYNC has been enabled (RFC 7162 3.2.3), so we can use it when selecting. */
+    private boolean mQresyncEnabled;
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     MailTransport mTransport;
     private ImapResponseParser mParser;
+    /** Passed to {@link #mParser}; kept here so that it survives re-creating the parser. */
+    private ImapResponseParser.LiteralSink mLiteralSink;
     private ImapStore mImapStore;
     private String mLoginPhrase;
     private String mAccessToken;
     private String mIdPhrase = null;
+    /** Whether {@link #open} skipped the commands whose results are in the session cache */
+    private boolean mUsingSessionCache;
+    /** Whether this connection has been taken from the store's pool and not yet returned */
+    boolean mCheckedOut;
+    /** When this connection was last returned to the pool ({@link SystemClock#elapsedRealtime}) */
+    long mLastUsedTime;
+
+    /**
+     * Maximum number of commands sent by {@link #executePipelinedCommands} before reading
+     * responses. This keeps a slow reader from filling the socket buffers on both sides.
+     */
+    private static final int MAX_PIPELINED_COMMANDS = 16;
 
     /** # of command/response lines to log upon crash. */
     private static final int DISCOURSE_LOGGER_SIZE = 64;
@@ -145,37 +187,72 @@ class ImapConnection {
             createParser();
 
             // BANNER
-            mParser.readResponse();
-
-            // CAPABILITY
-            ImapResponse capabilities = queryCapabilities();
+            final ImapResponse banner = mParser.readResponse();
+
+            mCapabilities = 0;
+            final ImapSessionCache sessionCache = mImapStore.getSessionCache();
+            mUsingSessionCache = sessionCache.isFresh()
+                    && !contradictsSessionCache(sessionCache, banner);
+            String capabilityString;
+            if (mUsingSessionCache) {
+                // We've done the full handshake with this server recently, so skip the commands
+                // whose results we already know.
+                mCapabilities = sessionCache.getCapabilities();
+                capabilityString = sessionCache.getCapabilityString();
+
+                // TLS, without asking for the capabilities again
+                doStartTls(isCapable(CAPABILITY_STARTTLS));
+
+                // ID, which identifies us on every login, not just the first one
+                doSendId(isCapable(CAPABILITY_ID), capabilityString);
+            } else {
+                // CAPABILITY
+                ImapResponse capabilities = queryCapabilities();
 
-            boolean hasStartTlsCapability =
-                capabilities.contains(ImapConstants.STARTTLS);
+                boolean hasStartTlsCapability =
+                    capabilities.contains(ImapConstants.STARTTLS);
 
-            // TLS
-            ImapResponse newCapabilities = doStartTls(hasStartTlsCapability);
-            if (newCapabilities != null) {
-                capabilities = newCapabilities;
-            }
+                // TLS
+                final boolean tlsStarted = doStartTls(hasStartTlsCapability);
+                if (tlsStarted) {
+                    // Per RFC requirement (3501-6.2.1) gather new capabilities
+                    capabilities = queryCapabilities();
+                }
 
-            // NOTE: An IMAP response MUST be processed before issuing any new IMAP
-            // requests. Subsequent requests may destroy previous response data. As
-            // such, we save away capability information here for future use.
-            setCapabilities(capabilities);
-            String capabilityString = capabilities.flatten();
+                // NOTE: An IMAP response MUST be processed before issuing any new IMAP
+                // requests. Subsequent requests may destroy previous response data. As
+                // such, we save away capability information here for future use.
+                setCapabilities(capabilities);
+                if (tlsStarted) {
+                    // Servers stop advertising STARTTLS once it's done, but the session cache
+                    // needs to know that it's supported.
+                    mCapabilities |= CAPABILITY_STARTTLS;
+                }
+                capabilityString = capabilities.flatten();
 
-            // ID
-            doSendId(isCapable(CAPABILITY_ID), capabilityString);
+                // ID
+                doSendId(isCapable(CAPABILITY_ID), capabilityString);
+            }
 
             // LOGIN
             doLogin();
 
-            // NAMESPACE (only valid in the Authenticated state)
-            doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
+            // COMPRESS (only valid in the Authenticated state; servers often only advertise it
+            // after login)
+            doCompress(isCapable(CAPABILITY_COMPRESS_DEFLATE));
 
-            // Gets the path separator from the server
-            doGetPathSeparator();
+            // ENABLE QRESYNC (only valid in the Authenticated state)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
+            if (!mUsingSessionCache) {
+                // NAMESPACE (only valid in the Authenticated state)
+                doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
+
+                // Gets the path separator from the server
+                doGetPathSeparator();
+
+                sessionCache.update(mCapabilities, capabilityString);
+            }
 
             mImapStore.ensurePrefixIsValid();
         } catch (SSLException e) {
@@ -201,7 +278,16 @@ class ImapConnection {
      * until {@link #setStore(ImapStore)} is called.
      */
     void close() {
+        if (mImapStore != null) {
+            mImapStore.onConnectionClosed(this);
+        }
         if (mTransport != null) {
+            if (mTransport.isCompressing()) {
+                LogUtils.d(Logging.LOG_TAG, "COMPRESS: read %d bytes (%d uncompressed), "
+                        + "wrote %d bytes (%d uncompressed)",
+                        mTransport.getSocketBytesRead(), mTransport.getBytesRead(),
+                        mTransport.getSocketBytesWritten(), mTransport.getBytesWritten());
+            }
             mTransport.close();
             mTransport = null;
         }
@@ -210,10 +296,18 @@ class ImapConnection {
         mImapStore = null;
     }
 
+    /**
+     * Returns whether QRESYNC is enabled on this connection.  Once it is, the server reports
+     * expunged messages with VANISHED rather than EXPUNGE responses.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     /**
      * Returns whether or not the specified capability is supported by the server.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
@@ -222,19 +316,106 @@ class ImapConnection {
      * Note: We only set the capability flags that we are interested in. There are many IMAP
      * capabilities that we do not track.
      */
-    private void setCapabilities(ImapResponse capabilities) {
+    private void setCapabilities(ImapList capabilities) {
+        mCapabilities |= getCapabilityFlags(capabilities);
+    }
+
+    /**
+     * @return the CAPABILITY_* values for the capabilities in {@code capabilities}.
+     */
+    private static int getCapabilityFlags(ImapList capabilities) {
+        int flags = 0;
         if (capabilities.contains(ImapConstants.ID)) {
-            mCapabilities |= CAPABILITY_ID;
+            flags |= CAPABILITY_ID;
         }
         if (capabilities.contains(ImapConstants.NAMESPACE)) {
-            mCapabilities |= CAPABILITY_NAMESPACE;
+            flags |= CAPABILITY_NAMESPACE;
         }
         if (capabilities.contains(ImapConstants.UIDPLUS)) {
-            mCapabilities |= CAPABILITY_UIDPLUS;
+            flags |= CAPABILITY_UIDPLUS;
         }
         if (capabilities.contains(ImapConstants.STARTTLS)) {
-            mCapabilities |= CAPABILITY_STARTTLS;
+            flags |= CAPABILITY_STARTTLS;
+        }
+        if (capabilities.contains(ImapConstants.IDLE)) {
+            flags |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            flags |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            // QRESYNC implies CONDSTORE
+            flags |= CAPABILITY_QRESYNC | CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.COMPRESS_DEFLATE)) {
+            flags |= CAPABILITY_COMPRESS_DEFLATE;
         }
+        if (capabilities.contains(ImapConstants.BINARY)) {
+            flags |= CAPABILITY_BINARY;
+        }
+        if (capabilities.contains(ImapConstants.LITERAL_PLUS)) {
+            flags |= CAPABILITY_LITERAL_PLUS;
+        }
+        if (capabilities.contains(ImapConstants.MULTIAPPEND)) {
+            flags |= CAPABILITY_MULTIAPPEND;
+        }
+        if (capabilities.contains(ImapConstants.MOVE)) {
+            flags |= CAPABILITY_MOVE;
+        }
+        if (capabilities.contains(ImapConstants.LIST_STATUS)) {
+            flags |= CAPABILITY_LIST_STATUS;
+        }
+        if (capabilities.contains(ImapConstants.ESEARCH)) {
+            flags |= CAPABILITY_ESEARCH;
+        }
+        if (capabilities.contains(ImapConstants.SORT)) {
+            flags |= CAPABILITY_SORT;
+        }
+        return flags;
+    }
+
+    /**
+     * Adds the capabilities reported in {@code response}, either as an untagged CAPABILITY
+     * response or as a CAPABILITY response code, e.g. "OK [CAPABILITY IMAP4rev1 ...] Logged in".
+     * Servers may advertise more capabilities once the user has logged in.  On a connection
+     * that took its capabilities from the session cache, the server's list replaces them.
+     */
+    private void updateCapabilities(ImapResponse response) {
+        final ImapList capabilities;
+        if (response.isDataResponse(0, ImapConstants.CAPABILITY)) {
+            capabilities = response;
+        } else if (response.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+            capabilities = response.getListOrEmpty(1);
+        } else {
+            return;
+        }
+        final int flags = getCapabilityFlags(capabilities);
+        if (mUsingSessionCache) {
+            // Servers stop advertising STARTTLS once it's done, so that doesn't count.
+            final int cached = mCapabilities & ~CAPABILITY_STARTTLS;
+            if ((flags & ~CAPABILITY_STARTTLS) != cached) {
+                // The server has changed since we last asked, by adding capabilities or by
+                // dropping some; don't use the ones it no longer has, and ask again next time.
+                mImapStore.getSessionCache().invalidate();
+                mCapabilities = flags | (mCapabilities & CAPABILITY_STARTTLS);
+            }
+            return;
+        }
+        mCapabilities |= flags;
+    }
+
+    /**
+     * @return whether the server reported capabilities in its banner (e.g. "* OK [CAPABILITY
+     *     IMAP4rev1 ...] ready") that aren't in {@code sessionCache}.  The banner is sent before
+     *     TLS and login, so it may well have fewer.
+     */
+    private static boolean contradictsSessionCache(ImapSessionCache sessionCache,
+            ImapResponse banner) {
+        if (!banner.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+            return false;
+        }
+        final int flags = getCapabilityFlags(banner.getListOrEmpty(1));
+        return (flags & ~sessionCache.getCapabilities()) != 0;
     }
 
     /**
@@ -247,6 +428,18 @@ class ImapConnection {
     private void createParser() {
         destroyResponses();
         mParser = new ImapResponseParser(mTransport.getInputStream(), mDiscourse);
+        mParser.setLiteralSink(mLiteralSink);
+    }
+
+    /**
+     * Set a sink to receive body literals straight from the network, or null to go back to
+     * storing them in the responses.  See {@link ImapResponseParser#setLiteralSink}.
+     */
+    void setLiteralSink(ImapResponseParser.LiteralSink sink) {
+        mLiteralSink = sink;
+        if (mParser != null) {
+            mParser.setLiteralSink(sink);
+        }
     }
 
     void destroyResponses() {
@@ -263,6 +456,41 @@ class ImapConnection {
         return mParser.readResponse();
     }
 
+    /**
+     * Waits up to {@code timeoutMillis} for the server to start sending a response. Nothing is
+     * consumed, so the response must then be read with {@link #readResponse()}.
+     *
+     * @return true if a response is available, false if the timeout elapsed first
+     */
+    boolean waitForResponse(int timeoutMillis) throws IOException {
+        if (mTransport == null || mParser == null) {
+            throw new IOException("Null transport");
+        }
+        mTransport.setSoTimeout(timeoutMillis);
+        try {
+            mParser.waitForResponse();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            if (mTransport != null) {
+                mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Ends an IDLE command (RFC 2177). The tagged response for the IDLE command follows, and
+     * must be read by the caller.
+     */
+    void sendIdleDone() throws IOException {
+        if (mTransport == null) {
+            throw new IOException("Null transport");
+        }
+        mTransport.writeLine(ImapConstants.DONE, null);
+        mDiscourse.addSentCommand(ImapConstants.DONE);
+    }
+
     /**
      * Send a single command to the server.  The command will be preceded by an IMAP command
      * tag and followed by \r\n (caller need not supply them).
@@ -343,20 +571,28 @@ class ImapConnection {
         } while (!response.isTagged());
 
         if (!response.isOk()) {
-            final String toString = response.toString();
-            final String status = response.getStatusOrEmpty().getString();
-            final String alert = response.getAlertTextOrEmpty().getString();
-            final String responseCode = response.getResponseCodeOrEmpty().getString();
+            final MessagingException e = getCommandException(response);
             destroyResponses();
+            throw e;
+        }
+        return responses;
+    }
 
-            // if the response code indicates an error occurred within the server, indicate that
-            if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
-                throw new MessagingException(MessagingException.SERVER_ERROR, alert);
-            }
+    /**
+     * @return the exception to report for a tagged response that isn't OK.
+     */
+    private static MessagingException getCommandException(ImapResponse response) {
+        final String toString = response.toString();
+        final String status = response.getStatusOrEmpty().getString();
+        final String alert = response.getAlertTextOrEmpty().getString();
+        final String responseCode = response.getResponseCodeOrEmpty().getString();
 
-            throw new ImapException(toString, status, alert, responseCode);
+        // if the response code indicates an error occurred within the server, indicate that
+        if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
+            return new MessagingException(MessagingException.SERVER_ERROR, alert);
         }
-        return responses;
+
+        return new ImapException(toString, status, alert, responseCode);
     }
 
     /**
@@ -393,6 +629,81 @@ class ImapConnection {
           return getCommandResponses();
       }
 
+    /**
+     * The outcome of one of the commands sent by {@link #executePipelinedCommands}.
+     */
+    static class CommandResult {
+        final String mCommand;
+        /** The untagged responses that preceded this command's completion, and the completion */
+        final List<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+        /** Set if the command completed with anything but OK */
+        MessagingException mException;
+
+        private CommandResult(String command) {
+            mCommand = command;
+        }
+
+        /**
+         * @return the responses to the command, as {@link #executeSimpleCommand} would have.
+         * @throws MessagingException if the command failed
+         */
+        List<ImapResponse> getResponses() throws MessagingException {
+            if (mException != null) {
+                throw mException;
+            }
+            return mResponses;
+        }
+    }
+
+    /**
+     * Execute several simple commands, sending them without waiting for the previous ones to
+     * complete (RFC 3501 5.5). The commands must not depend on each other's results. Untagged
+     * responses are attributed to the first command that completes after them. A command that
+     * fails does not prevent the others from being read; its error is recorded in its result.
+     *
+     * The responses are not destroyed, so the caller must call {@link #destroyResponses()} when
+     * done with them.
+     *
+     * @param commands the commands to send to the server
+     * @return the result of each command, in the same order as {@code commands}
+     * @throws IOException
+     * @throws MessagingException
+     */
+    List<CommandResult> executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        final List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+        open();
+        for (int start = 0; start < commands.size(); start += MAX_PIPELINED_COMMANDS) {
+            final int end = Math.min(start + MAX_PIPELINED_COMMANDS, commands.size());
+            final HashMap<String, CommandResult> pending = new HashMap<String, CommandResult>();
+            for (String command : commands.subList(start, end)) {
+                final CommandResult result = new CommandResult(command);
+                LogUtils.d(Logging.LOG_TAG, "sendCommand (pipelined) %s", command);
+                pending.put(sendCommandInternal(command, false), result);
+                results.add(result);
+            }
+            final List<ImapResponse> untagged = new ArrayList<ImapResponse>();
+            while (!pending.isEmpty()) {
+                final ImapResponse response = mParser.readResponse();
+                if (!response.isTagged()) {
+                    untagged.add(response);
+                    continue;
+                }
+                final CommandResult result = pending.remove(response.getTag());
+                if (result == null) {
+                    throw new MessagingException("Unexpected tag in response: " + response);
+                }
+                result.mResponses.addAll(untagged);
+                result.mResponses.add(response);
+                untagged.clear();
+                if (!response.isOk()) {
+                    result.mException = getCommandException(response);
+                }
+            }
+        }
+        return results;
+    }
+
     /**
      * Query server for capabilities.
      */
@@ -489,6 +800,60 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Enables QRESYNC per RFC 7162, so that mailboxes can be selected with the QRESYNC
+     * parameter. If the server does not support QRESYNC, this will perform no operation.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability) throws MessagingException {
+        mQresyncEnabled = false;
+        if (!hasQresyncCapability) return;
+
+        List<ImapResponse> responseList = Collections.emptyList();
+        try {
+            responseList = executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.QRESYNC);
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+        }
+
+        for (ImapResponse response: responseList) {
+            if (response.isDataResponse(0, ImapConstants.ENABLED)
+                    && response.contains(ImapConstants.QRESYNC)) {
+                mQresyncEnabled = true;
+            }
+        }
+    }
+
+    /**
+     * Turns on compression per RFC 4978 if the server supports it.  Failing to do so is not a
+     * fatal problem; we just carry on without compression.
+     */
+    private void doCompress(boolean hasCompressCapability)
+            throws IOException, MessagingException {
+        // Sync flushing, which we need at the end of every command, requires KitKat.
+        if (!hasCompressCapability || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        try {
+            executeSimpleCommand(ImapConstants.COMPRESS + " " + ImapConstants.DEFLATE);
+        } catch (ImapException ie) {
+            // e.g. "NO [COMPRESSIONACTIVE]" if TLS compression is already in use
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+            return;
+        }
+        // Everything the server sends from now on is compressed, so the parser must read from
+        // the new stream.
+        mTransport.startCompression();
+        createParser();
+    }
+
     /**
      * Logs into the IMAP server
      */
@@ -499,7 +864,9 @@ class ImapConnection {
                 // authentication supported is OAuth.
                 doSASLAuth();
             } else {
-                executeSimpleCommand(getLoginPhrase(), true);
+                for (ImapResponse response : executeSimpleCommand(getLoginPhrase(), true)) {
+                    updateCapabilities(response);
+                }
             }
         } catch (ImapException ie) {
             if (DebugUtils.DEBUG) {
@@ -548,6 +915,7 @@ class ImapConnection {
                 throw new AuthenticationFailedException("OAuth failed after refresh");
             }
         }
+        updateCapabilities(response);
     }
 
     private ImapResponse getOAuthResponse() throws IOException, MessagingException {
@@ -610,8 +978,10 @@ class ImapConnection {
      * Starts a TLS session with the IMAP server per RFC 3501. If the user has not opted
      * to use TLS or the server does not support the TLS capability, this will perform
      * no operation.
+     *
+     * @return whether TLS was started, in which case the capabilities must be queried again
      */
-    private ImapResponse doStartTls(boolean hasStartTlsCapability)
+    private boolean doStartTls(boolean hasStartTlsCapability)
             throws IOException, MessagingException {
         if (mTransport.canTryTlsSecurity()) {
             if (hasStartTlsCapability) {
@@ -620,8 +990,7 @@ class ImapConnection {
 
                 mTransport.reopenTls();
                 createParser();
-                // Per RFC requirement (3501-6.2.1) gather new capabilities
-                return(queryCapabilities());
+                return true;
             } else {
                 if (DebugUtils.DEBUG) {
                     LogUtils.d(Logging.LOG_TAG, "TLS not supported but required");
@@ -629,7 +998,7 @@ class ImapConnection {
                 throw new MessagingException(MessagingException.TLS_REQUIRED);
             }
         }
-        return null;
+        return false;
     }
 
     /** @see DiscourseLogger#logLastDiscourse() */
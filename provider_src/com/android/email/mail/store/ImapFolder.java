@@ -21,12 +21,15 @@ import android.text.TextUtils;
 import android.util.Base64DataException;
 
 import com.android.email.DebugUtils;
+import com.android.email.mail.store.ImapConnection.CommandResult;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.store.imap.ImapSearchResult;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.service.ImapService;
@@ -36,12 +39,14 @@ import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.Message.RecipientType;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Mailbox;
@@ -57,6 +62,7 @@ import org.apache.commons.io.IOUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -65,15 +71,33 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
-class ImapFolder extends Folder {
+public class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /** Maximum expected size of the parts requested by a single UID FETCH in fetchParts() */
+    private static final int MAX_FETCH_PARTS_BYTES = 512 * 1024;
+
+    private static final Address[] NO_ADDRESSES = new Address[0];
+
+    /** The content transfer encoding of parts fetched with BINARY, i.e. none (RFC 3516) */
+    private static final String ENCODING_BINARY = "binary";
+
+    /** What we ask an ESEARCH server to return for a UID SEARCH (RFC 4731 3.1) */
+    private static final String ESEARCH_RETURN = ImapConstants.RETURN + " ("
+            + ImapConstants.MIN + " " + ImapConstants.MAX + " " + ImapConstants.COUNT + " "
+            + ImapConstants.ALL + ")";
+
+    /** The sort criteria for a UID SORT that returns the newest messages first (RFC 5256) */
+    private static final String SORT_NEWEST_FIRST =
+            "(" + ImapConstants.REVERSE + " " + ImapConstants.DATE + ")";
 
     private final ImapStore mStore;
     private final String mName;
@@ -85,6 +109,24 @@ class ImapFolder extends Folder {
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
+    /** UIDVALIDITY reported by the last SELECT, or 0 if not reported */
+    private long mUidValidity;
+    /** UIDNEXT reported by the last SELECT, or 0 if not reported */
+    private long mUidNext;
+    /** HIGHESTMODSEQ reported by the last SELECT, or 0 if mod-sequences aren't supported */
+    private long mHighestModSeq;
+    /** UIDVALIDITY and HIGHESTMODSEQ as of the last sync; used to SELECT with QRESYNC */
+    private long mKnownUidValidity;
+    private long mKnownModSeq;
+    /** The mod-sequence the last SELECT resynchronized from using QRESYNC, or 0 */
+    private long mQresyncModSeq;
+    /** Messages changed, and UIDs expunged, since mQresyncModSeq; reported during SELECT */
+    private final ArrayList<Message> mQresyncChanged = new ArrayList<Message>();
+    private final ArrayList<String> mQresyncVanished = new ArrayList<String>();
+    /** MESSAGES, UNSEEN and UIDNEXT reported by LIST-STATUS or STATUS, or -1 if not reported */
+    private int mStatusMessages = -1;
+    private int mStatusUnseen = -1;
+    private long mStatusUidNext = -1;
 
     /*package*/ ImapFolder(ImapStore store, String name) {
         mStore = store;
@@ -265,88 +307,274 @@ class ImapFolder extends Folder {
             MessageUpdateCallbacks callbacks) throws MessagingException {
         checkOpen();
         try {
-            List<ImapResponse> responseList = mConnection.executeSimpleCommand(
-                    String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
-                            ImapStore.joinMessageUids(messages),
-                            ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
-            // Build a message map for faster UID matching
-            HashMap<String, Message> messageMap = new HashMap<String, Message>();
-            boolean handledUidPlus = false;
-            for (Message m : messages) {
-                messageMap.put(m.getUid(), m);
-            }
-            // Process response to get the new UIDs
-            for (ImapResponse response : responseList) {
-                // All "BAD" responses are bad. Only "NO", tagged responses are bad.
-                if (response.isBad() || (response.isNo() && response.isTagged())) {
-                    String responseText = response.getStatusResponseTextOrEmpty().getString();
-                    throw new MessagingException(responseText);
-                }
-                // Skip untagged responses; they're just status
-                if (!response.isTagged()) {
-                    continue;
-                }
-                // No callback provided to report of UID changes; nothing more to do here
-                // NOTE: We check this here to catch any server errors
-                if (callbacks == null) {
-                    continue;
+            final String encodedFolderName =
+                    ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix);
+            final List<ImapResponse> responseList = new ArrayList<ImapResponse>();
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                responseList.addAll(mConnection.executeSimpleCommand(
+                        String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
+                                uidSet, encodedFolderName)));
+            }
+            handleCopyResponses(responseList, messages, folder, callbacks);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Moves {@code messages} from this folder to {@code folder}.  If the server supports MOVE
+     * (RFC 6851) this is a single UID MOVE per UID set; otherwise the messages are copied,
+     * marked as deleted and expunged.  Either way, {@code callbacks} is told the new UIDs the
+     * same way as for {@link #copyMessages}.
+     */
+    public void moveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
+        checkOpen();
+        if (messages.length == 0) {
+            return;
+        }
+        if (!mConnection.isCapable(ImapConnection.CAPABILITY_MOVE)) {
+            copyMessages(messages, folder, callbacks);
+            setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            expungeMessages(messages);
+            return;
+        }
+        try {
+            final String encodedFolderName =
+                    ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix);
+            final List<ImapResponse> responseList = new ArrayList<ImapResponse>();
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                responseList.addAll(mConnection.executeSimpleCommand(
+                        String.format(Locale.US, ImapConstants.UID_MOVE + " %s \"%s\"",
+                                uidSet, encodedFolderName)));
+            }
+            handleUntaggedResponses(responseList);
+            handleCopyResponses(responseList, messages, folder, callbacks);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Checks the responses to UID COPY or UID MOVE, and reports the new UIDs of the messages to
+     * {@code callbacks}.  The new UIDs come from COPYUID (RFC 4315) if the server sent it, which
+     * for MOVE is in an untagged OK response; otherwise they are searched for by Message-ID in
+     * {@code folder}.
+     */
+    private void handleCopyResponses(List<ImapResponse> responseList, Message[] messages,
+            Folder folder, MessageUpdateCallbacks callbacks)
+            throws IOException, MessagingException {
+        // Build a message map for faster UID matching
+        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        boolean handledUidPlus = false;
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        // Process response to get the new UIDs
+        for (ImapResponse response : responseList) {
+            // All "BAD" responses are bad. Only "NO", tagged responses are bad.
+            if (response.isBad() || (response.isNo() && response.isTagged())) {
+                String responseText = response.getStatusResponseTextOrEmpty().getString();
+                throw new MessagingException(responseText);
+            }
+            // Skip other responses; they're just status
+            if (!response.isOk()) {
+                continue;
+            }
+            // No callback provided to report of UID changes; nothing more to do here
+            // NOTE: We check this here to catch any server errors
+            if (callbacks == null) {
+                continue;
+            }
+            ImapList copyResponse = response.getListOrEmpty(1);
+            String responseCode = copyResponse.getStringOrEmpty(0).getString();
+            if (ImapConstants.COPYUID.equals(responseCode)) {
+                handledUidPlus = true;
+                String origIdSet = copyResponse.getStringOrEmpty(2).getString();
+                String newIdSet = copyResponse.getStringOrEmpty(3).getString();
+                String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
+                String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
+                // There has to be a 1:1 mapping between old and new IDs
+                if (origIdArray.length != newIdArray.length) {
+                    throw new MessagingException("Set length mis-match; orig IDs \"" +
+                            origIdSet + "\"  new IDs \"" + newIdSet + "\"");
                 }
-                ImapList copyResponse = response.getListOrEmpty(1);
-                String responseCode = copyResponse.getStringOrEmpty(0).getString();
-                if (ImapConstants.COPYUID.equals(responseCode)) {
-                    handledUidPlus = true;
-                    String origIdSet = copyResponse.getStringOrEmpty(2).getString();
-                    String newIdSet = copyResponse.getStringOrEmpty(3).getString();
-                    String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
-                    String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
-                    // There has to be a 1:1 mapping between old and new IDs
-                    if (origIdArray.length != newIdArray.length) {
-                        throw new MessagingException("Set length mis-match; orig IDs \"" +
-                                origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+                for (int i = 0; i < origIdArray.length; i++) {
+                    final String id = origIdArray[i];
+                    final Message m = messageMap.get(id);
+                    if (m != null) {
+                        callbacks.onMessageUidChange(m, newIdArray[i]);
                     }
-                    for (int i = 0; i < origIdArray.length; i++) {
-                        final String id = origIdArray[i];
-                        final Message m = messageMap.get(id);
-                        if (m != null) {
-                            callbacks.onMessageUidChange(m, newIdArray[i]);
-                        }
+                }
+            }
+        }
+        // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
+        if (callbacks != null && !handledUidPlus) {
+            final ImapFolder newFolder = (ImapFolder)folder;
+            try {
+                // Temporarily select the destination folder
+                newFolder.open(OpenMode.READ_WRITE);
+                // Do the search(es) ...
+                for (Message m : messages) {
+                    final String searchString =
+                            "HEADER Message-Id \"" + m.getMessageId() + "\"";
+                    final String[] newIdArray = newFolder.searchForUids(searchString);
+                    if (newIdArray.length == 1) {
+                        callbacks.onMessageUidChange(m, newIdArray[0]);
                     }
                 }
+            } catch (MessagingException e) {
+                // Log, but, don't abort; failures here don't need to be propagated
+                LogUtils.d(Logging.LOG_TAG, "Failed to find message", e);
+            } finally {
+                newFolder.close(false);
             }
-            // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
-            if (callbacks != null && !handledUidPlus) {
-                final ImapFolder newFolder = (ImapFolder)folder;
-                try {
-                    // Temporarily select the destination folder
-                    newFolder.open(OpenMode.READ_WRITE);
-                    // Do the search(es) ...
-                    for (Message m : messages) {
-                        final String searchString =
-                                "HEADER Message-Id \"" + m.getMessageId() + "\"";
-                        final String[] newIdArray = newFolder.searchForUids(searchString);
-                        if (newIdArray.length == 1) {
-                            callbacks.onMessageUidChange(m, newIdArray[0]);
-                        }
+            // Re-select the original folder
+            doSelect();
+        }
+    }
+
+    @Override
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * Sets the UIDVALIDITY and HIGHESTMODSEQ recorded by the last successful sync of this
+     * folder.  If the server has QRESYNC enabled, they are passed to SELECT the next time the
+     * folder is opened, so the changes since then are reported as part of the SELECT.
+     */
+    public void setKnownSyncState(long uidValidity, long modSeq) {
+        mKnownUidValidity = uidValidity;
+        mKnownModSeq = modSeq;
+    }
+
+    /**
+     * @return the UIDVALIDITY reported when the folder was opened, or 0 if it wasn't reported.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return the UIDNEXT reported when the folder was opened, or 0 if it wasn't reported.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * @return the HIGHESTMODSEQ reported when the folder was opened, or 0 if the server doesn't
+     * support CONDSTORE or doesn't keep mod-sequences for this mailbox.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return whether {@link #fetchChangedSince} reports the UIDs of expunged messages, i.e.
+     * whether QRESYNC is enabled on the connection.
+     */
+    public boolean canReportVanished() {
+        return mConnection != null && mConnection.isQresyncEnabled();
+    }
+
+    /**
+     * Returns the messages whose flags have changed since {@code modSeq} (RFC 7162), with their
+     * current flags set.  If {@link #canReportVanished} is true, the UIDs of the messages
+     * expunged since {@code modSeq} are added to {@code vanishedUids}.
+     */
+    public Message[] fetchChangedSince(long modSeq, List<String> vanishedUids)
+            throws MessagingException {
+        checkOpen();
+        if (modSeq > 0 && modSeq == mQresyncModSeq) {
+            // The SELECT already told us everything that changed.
+            vanishedUids.addAll(mQresyncVanished);
+            return mQresyncChanged.toArray(Message.EMPTY_ARRAY);
+        }
+        final ArrayList<Message> messages = new ArrayList<Message>();
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_FETCH + " 1:* (" + ImapConstants.UID
+                            + " " + ImapConstants.FLAGS + ") (" + ImapConstants.CHANGEDSINCE
+                            + " %d%s)", modSeq,
+                            canReportVanished() ? " " + ImapConstants.VANISHED : ""));
+            for (ImapResponse response : responses) {
+                if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                    final ImapMessage message = parseFlagsResponse(response);
+                    if (message != null) {
+                        messages.add(message);
                     }
-                } catch (MessagingException e) {
-                    // Log, but, don't abort; failures here don't need to be propagated
-                    LogUtils.d(Logging.LOG_TAG, "Failed to find message", e);
-                } finally {
-                    newFolder.close(false);
+                } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                    parseVanished(response, vanishedUids);
                 }
-                // Re-select the original folder
-                doSelect();
             }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
             destroyResponses();
         }
+        return messages.toArray(Message.EMPTY_ARRAY);
     }
 
-    @Override
-    public int getMessageCount() {
-        return mMessageCount;
+    /**
+     * Returns the messages with a UID of at least {@code uid}, e.g. the UIDNEXT recorded by the
+     * last sync, using a single UID FETCH rather than a SEARCH.
+     */
+    public Message[] getMessagesFromUid(long uid) throws MessagingException {
+        checkOpen();
+        final ArrayList<Message> messages = new ArrayList<Message>();
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_FETCH + " %d:* ("
+                            + ImapConstants.UID + ")", uid));
+            for (ImapResponse response : responses) {
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    continue;
+                }
+                // "n:*" always matches the last message, even if its UID is less than n
+                final ImapString fetchUid =
+                        response.getListOrEmpty(2).getKeyedStringOrEmpty(ImapConstants.UID);
+                if (fetchUid.getLongOrZero() >= uid) {
+                    messages.add(new ImapMessage(fetchUid.getString(), this));
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        LogUtils.d(Logging.LOG_TAG, "getMessagesFromUid " + uid + " results: " + messages.size());
+        return messages.toArray(Message.EMPTY_ARRAY);
+    }
+
+    /**
+     * Creates a message with the flags from a FETCH response, e.g.
+     * "* 12 FETCH (UID 33 FLAGS (\Seen) MODSEQ (6))"
+     * @return the message, or null if the response doesn't have a UID.
+     */
+    private ImapMessage parseFlagsResponse(ImapResponse response) throws MessagingException {
+        final ImapList fetchList = response.getListOrEmpty(2);
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        if (TextUtils.isEmpty(uid)) {
+            return null;
+        }
+        final ImapMessage message = new ImapMessage(uid, this);
+        parseFlags(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS), message);
+        return message;
+    }
+
+    /**
+     * Adds the UIDs from a VANISHED response to {@code uids}, e.g.
+     * "* VANISHED (EARLIER) 41,43:116"
+     */
+    private static void parseVanished(ImapResponse response, List<String> uids) {
+        final String set = response.getStringOrEmpty(response.size() - 1).getString();
+        uids.addAll(Arrays.asList(ImapUtility.getImapSequenceValues(set)));
     }
 
     @Override
@@ -373,27 +601,64 @@ class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Records the counts from a LIST-STATUS or STATUS response about this folder, without having
+     * to select it.  The number of messages is saved as the total count of {@link #mMailbox}, for
+     * the folder list to show.
+     *
+     * @param status the STATUS attributes, e.g. (MESSAGES 231 UNSEEN 3 UIDNEXT 44292)
+     */
+    void setStatus(ImapList status) {
+        final ImapString messages = status.getKeyedStringOrEmpty(ImapConstants.MESSAGES);
+        if (messages.isNumber()) {
+            mStatusMessages = messages.getNumberOrZero();
+        }
+        final ImapString unseen = status.getKeyedStringOrEmpty(ImapConstants.UNSEEN);
+        if (unseen.isNumber()) {
+            mStatusUnseen = unseen.getNumberOrZero();
+        }
+        final ImapString uidNext = status.getKeyedStringOrEmpty(ImapConstants.UIDNEXT);
+        if (uidNext.isNumber()) {
+            mStatusUidNext = uidNext.getLongOrZero();
+        }
+    }
+
+    /**
+     * @return the number of unseen messages reported when the folder list was last updated, or
+     * -1 if it wasn't reported.  Unlike {@link #getUnreadMessageCount} this doesn't need the
+     * folder to be open.
+     */
+    public int getStatusUnseenCount() {
+        return mStatusUnseen;
+    }
+
+    /**
+     * @return the UIDNEXT reported when the folder list was last updated, or -1 if it wasn't
+     * reported.
+     */
+    public long getStatusUidNext() {
+        return mStatusUidNext;
+    }
+
     @Override
     public void delete(boolean recurse) {
         throw new Error("ImapStore.delete() not yet implemented");
     }
 
-    String[] getSearchUids(List<ImapResponse> responses) {
-        // S: * SEARCH 2 3 6
-        final ArrayList<String> uids = new ArrayList<String>();
-        for (ImapResponse response : responses) {
-            if (!response.isDataResponse(0, ImapConstants.SEARCH)) {
-                continue;
-            }
-            // Found SEARCH response data
-            for (int i = 1; i < response.size(); i++) {
-                ImapString s = response.getStringOrEmpty(i);
-                if (s.isString()) {
-                    uids.add(s.getString());
-                }
-            }
+    /**
+     * @return the start of a UID SEARCH command for {@code connection}.  If the server supports
+     * ESEARCH, the command asks for the result as a sequence set with its count (RFC 4731), which
+     * is much shorter than a SEARCH response when lots of messages match.
+     */
+    static String getUidSearchCommand(ImapConnection connection) {
+        if (connection.isCapable(ImapConnection.CAPABILITY_ESEARCH)) {
+            return ImapConstants.UID_SEARCH + " " + ESEARCH_RETURN;
         }
-        return uids.toArray(Utility.EMPTY_STRINGS);
+        return ImapConstants.UID_SEARCH;
+    }
+
+    String[] getSearchUids(List<ImapResponse> responses) {
+        return ImapSearchResult.fromResponses(responses).getUidStrings();
     }
 
     String[] searchForUids(String searchCriteria) throws MessagingException {
@@ -413,18 +678,28 @@ class ImapFolder extends Folder {
     @VisibleForTesting
     String[] searchForUids(String searchCriteria, boolean swallowException)
             throws MessagingException {
+        return search(searchCriteria, swallowException).getUidStrings();
+    }
+
+    /**
+     * Runs a UID SEARCH for {@code searchCriteria}.  See {@link #searchForUids(String, boolean)}
+     * for {@code swallowException}.
+     */
+    private ImapSearchResult search(String searchCriteria, boolean swallowException)
+            throws MessagingException {
         checkOpen();
         try {
             try {
-                final String command = ImapConstants.UID_SEARCH + " " + searchCriteria;
-                final String[] result = getSearchUids(mConnection.executeSimpleCommand(command));
+                final String command = getUidSearchCommand(mConnection) + " " + searchCriteria;
+                final ImapSearchResult result =
+                        ImapSearchResult.fromResponses(mConnection.executeSimpleCommand(command));
                 LogUtils.d(Logging.LOG_TAG, "searchForUids '" + searchCriteria + "' results: " +
-                        result.length);
+                        result.getCount());
                 return result;
             } catch (ImapException me) {
                 LogUtils.d(Logging.LOG_TAG, me, "ImapException in search: " + searchCriteria);
                 if (swallowException) {
-                    return Utility.EMPTY_STRINGS; // Not found
+                    return ImapSearchResult.EMPTY; // Not found
                 } else {
                     throw me;
                 }
@@ -470,6 +745,18 @@ class ImapFolder extends Folder {
     @VisibleForTesting
     public Message[] getMessages(SearchParams params, MessageRetrievalListener listener)
             throws MessagingException {
+        return getMessagesInternal(search(params).getUidStrings(), listener);
+    }
+
+    /**
+     * Like {@link #getMessages(SearchParams, MessageRetrievalListener)}, but returns the UIDs
+     * found rather than messages, so that callers that only need a page of them (or just how
+     * many there are) don't create a message for every match.  If the server supports SORT
+     * (RFC 5256), the UIDs are sorted newest first by the server, and
+     * {@link ImapSearchResult#isSorted} is true.
+     */
+    public ImapSearchResult search(SearchParams params) throws MessagingException {
+        checkOpen();
         List<String> commands = new ArrayList<String>();
         final String filter = params.mFilter;
         // All servers MUST accept US-ASCII, so we'll send this as the CHARSET unless we're really
@@ -480,23 +767,35 @@ class ImapFolder extends Folder {
         }
         // This is the length of the string in octets (bytes), formatted as a string literal {n}
         final String octetLength = "{" + filter.getBytes().length + "}";
-        // Break the command up into pieces ending with the string literal length
-        commands.add(ImapConstants.UID_SEARCH + " CHARSET " + charset + " OR FROM " + octetLength);
+        // Break the command up into pieces ending with the string literal length.  SORT takes
+        // the same criteria as SEARCH, but the charset is required and has no CHARSET keyword.
+        final String command;
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_SORT)) {
+            command = ImapConstants.UID_SORT + " " + SORT_NEWEST_FIRST + " " + charset;
+        } else {
+            command = getUidSearchCommand(mConnection) + " CHARSET " + charset;
+        }
+        commands.add(command + " OR FROM " + octetLength);
         commands.add(filter + " (OR TO " + octetLength);
         commands.add(filter + " (OR CC " + octetLength);
         commands.add(filter + " (OR SUBJECT " + octetLength);
         commands.add(filter + " BODY " + octetLength);
         commands.add(filter + ")))");
-        return getMessagesInternal(complexSearchForUids(commands), listener);
+        return complexSearch(commands);
     }
 
     /* package */ String[] complexSearchForUids(List<String> commands) throws MessagingException {
+        return complexSearch(commands).getUidStrings();
+    }
+
+    private ImapSearchResult complexSearch(List<String> commands) throws MessagingException {
         checkOpen();
         try {
             try {
-                return getSearchUids(mConnection.executeComplexCommand(commands, false));
+                return ImapSearchResult.fromResponses(
+                        mConnection.executeComplexCommand(commands, false));
             } catch (ImapException e) {
-                return Utility.EMPTY_STRINGS; // not found;
+                return ImapSearchResult.EMPTY; // not found;
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             }
@@ -608,7 +907,7 @@ class ImapFolder extends Folder {
     public void fetch(Message[] messages, FetchProfile fp, MessageRetrievalListener listener)
             throws MessagingException {
         try {
-            fetchInternal(messages, fp, listener);
+            fetchInternal(messages, fp, listener, true);
         } catch (RuntimeException e) { // Probably a parser error.
             LogUtils.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
             if (mConnection != null) {
@@ -618,8 +917,11 @@ class ImapFolder extends Folder {
         }
     }
 
-    public void fetchInternal(Message[] messages, FetchProfile fp,
-            MessageRetrievalListener listener) throws MessagingException {
+    /**
+     * @param allowBinary whether a part may be fetched with BINARY.PEEK; see {@link #useBinary}.
+     */
+    private void fetchInternal(Message[] messages, FetchProfile fp,
+            MessageRetrievalListener listener, boolean allowBinary) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
@@ -632,12 +934,14 @@ class ImapFolder extends Folder {
         /*
          * Figure out what command we are going to run:
          * FLAGS     - UID FETCH (FLAGS)
-         * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
-         *                            HEADER.FIELDS (date subject from content-type to cc)])
+         * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS ENVELOPE), or if the
+         *             server's ENVELOPE can't be parsed, BODY.PEEK[HEADER.FIELDS (date subject
+         *             from content-type to cc message-id)] instead of ENVELOPE
          * STRUCTURE - UID FETCH (BODYSTRUCTURE)
          * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
          * BODY      - UID FETCH (BODY.PEEK[])
-         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
+         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID, or
+         *             UID FETCH (BINARY.SIZE[ID] BINARY.PEEK[ID]) if the server can decode it
          */
 
         final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
@@ -649,7 +953,7 @@ class ImapFolder extends Folder {
         if (fp.contains(FetchProfile.Item.ENVELOPE)) {
             fetchFields.add(ImapConstants.INTERNALDATE);
             fetchFields.add(ImapConstants.RFC822_SIZE);
-            fetchFields.add(ImapConstants.FETCH_FIELD_HEADERS);
+            fetchFields.add(ImapConstants.ENVELOPE);
         }
         if (fp.contains(FetchProfile.Item.STRUCTURE)) {
             fetchFields.add(ImapConstants.BODYSTRUCTURE);
@@ -664,133 +968,609 @@ class ImapFolder extends Folder {
 
         // TODO Why are we only fetching the first part given?
         final Part fetchPart = fp.getFirstPart();
+        boolean binary = false;
+        Body oldBody = null;
         if (fetchPart != null) {
             final String[] partIds =
                     fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
             // TODO Why can a single part have more than one Id? And why should we only fetch
             // the first id if there are more than one?
             if (partIds != null) {
-                fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
-                        + "[" + partIds[0] + "]");
+                binary = allowBinary && useBinary(getContentTransferEncoding(fetchPart));
+                if (binary) {
+                    fetchFields.add(ImapConstants.FETCH_FIELD_BINARY_SIZE_BARE
+                            + "[" + partIds[0] + "]");
+                    fetchFields.add(ImapConstants.FETCH_FIELD_BINARY_PEEK_BARE
+                            + "[" + partIds[0] + "]");
+                    oldBody = fetchPart.getBody();
+                } else {
+                    fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
+                            + "[" + partIds[0] + "]");
+                }
             }
         }
 
+        final String[] fields = fetchFields.toArray(new String[fetchFields.size()]);
+        final ArrayList<Message> brokenEnvelopes = new ArrayList<Message>();
         try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                mConnection.sendCommand(String.format(Locale.US,
+                        ImapConstants.UID_FETCH + " %s (%s)", uidSet, Utility.combine(fields, ' ')),
+                        false);
+                fetchResponses(messageMap, fp, fetchPart, listener, brokenEnvelopes);
+            }
+            if (!brokenEnvelopes.isEmpty()) {
+                // Fetch the same again for these, but with the headers instead of ENVELOPE.
+                LogUtils.w(Logging.LOG_TAG, "Malformed ENVELOPE for %d messages; fetching headers",
+                        brokenEnvelopes.size());
+                for (int i = 0; i < fields.length; i++) {
+                    if (ImapConstants.ENVELOPE.equals(fields[i])) {
+                        fields[i] = ImapConstants.FETCH_FIELD_HEADERS;
+                    }
+                }
+                final Message[] retry = brokenEnvelopes.toArray(Message.EMPTY_ARRAY);
+                for (String uidSet : ImapStore.getMessageUidSets(retry)) {
+                    mConnection.sendCommand(String.format(Locale.US,
+                            ImapConstants.UID_FETCH + " %s (%s)", uidSet,
+                            Utility.combine(fields, ' ')), false);
+                    fetchResponses(messageMap, fp, fetchPart, listener, null);
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+        if (binary && fetchPart.getBody() == oldBody) {
+            // The server couldn't decode the part, e.g. "NO [UNKNOWN-CTE]" (RFC 3516 4.3), so
+            // fetch it as it is and decode it ourselves.
+            final FetchProfile partFp = new FetchProfile();
+            partFp.add(fetchPart);
+            fetchInternal(messages, partFp, listener, false);
+        }
+    }
+
+    /**
+     * Reads and handles the responses of a UID FETCH sent by {@link #fetchInternal}, up to and
+     * including the tagged response.
+     *
+     * @param brokenEnvelopes where to add the messages whose ENVELOPE couldn't be parsed; they're
+     *     otherwise skipped, so that they can be fetched again with the headers instead.  null if
+     *     the headers were fetched instead of ENVELOPE.
+     */
+    private void fetchResponses(HashMap<String, Message> messageMap, FetchProfile fp,
+            Part fetchPart, MessageRetrievalListener listener, List<Message> brokenEnvelopes)
+            throws IOException, MessagingException {
+        ImapResponse response;
+        do {
+            response = null;
+            try {
+                response = mConnection.readResponse();
+
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    continue; // Ignore
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                        .getString();
+                if (TextUtils.isEmpty(uid)) continue;
+
+                ImapMessage message = (ImapMessage) messageMap.get(uid);
+                if (message == null) continue;
+
+                if (fp.contains(FetchProfile.Item.FLAGS)) {
+                    parseFlags(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS), message);
+                }
+                if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                    final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                            ImapConstants.INTERNALDATE).getDateOrNull();
+                    final int size = fetchList.getKeyedStringOrEmpty(
+                            ImapConstants.RFC822_SIZE).getNumberOrZero();
+
+                    message.setInternalDate(internalDate);
+                    message.setSize(size);
+                    if (brokenEnvelopes == null) {
+                        final String header = fetchList.getKeyedStringOrEmpty(
+                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
+                        message.parse(Utility.streamFromAsciiString(header));
+                    } else if (!parseEnvelope(
+                            fetchList.getKeyedListOrEmpty(ImapConstants.ENVELOPE), message)) {
+                        brokenEnvelopes.add(message);
+                        continue;
+                    }
+                }
+                if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                    ImapList bs = fetchList.getKeyedListOrEmpty(
+                            ImapConstants.BODYSTRUCTURE);
+                    if (!bs.isEmpty()) {
+                        try {
+                            parseBodyStructure(bs, message, ImapConstants.TEXT);
+                        } catch (MessagingException e) {
+                            if (Logging.LOGD) {
+                                LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
+                            }
+                            message.setBody(null);
+                        }
+                    }
+                }
+                if (fp.contains(FetchProfile.Item.BODY)
+                        || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                    // Body is keyed by "BODY[]...".
+                    // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+                    // TODO Should we accept "RFC822" as well??
+                    ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                    InputStream bodyStream = body.getAsStream();
+                    message.parse(bodyStream);
+                }
+                if (fetchPart != null) {
+                    final ImapElement binary = fetchList.getKeyedElementOrNull("BINARY[", true);
+                    final InputStream bodyStream;
+                    final String contentTransferEncoding;
+                    int size = fetchPart.getSize();
+                    if (binary != null && binary.isString()) {
+                        // Already decoded by the server.
+                        bodyStream = ((ImapString) binary).getAsStream();
+                        contentTransferEncoding = ENCODING_BINARY;
+                        // The part's size is that of the encoded content, so use the decoded
+                        // size for the progress.
+                        final int binarySize = fetchList.getKeyedStringOrEmpty(
+                                ImapConstants.FETCH_FIELD_BINARY_SIZE_BARE + "[", true)
+                                .getNumberOrZero();
+                        if (binarySize > 0) {
+                            size = binarySize;
+                        }
+                    } else {
+                        bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+                        contentTransferEncoding = getContentTransferEncoding(fetchPart);
+                    }
+
+                    try {
+                        // TODO Don't create 2 temp files.
+                        // decodeBody creates BinaryTempFileBody, but we could avoid this
+                        // if we implement ImapStringBody.
+                        // (We'll need to share a temp file.  Protect it with a ref-count.)
+                        // Use fetchPart() when the content doesn't need to be kept in a Body.
+                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                                size, listener));
+                    } catch(Exception e) {
+                        // TODO: Figure out what kinds of exceptions might actually be thrown
+                        // from here. This blanket catch-all is because we're not sure what to
+                        // do if we don't have a contentTransferEncoding, and we don't have
+                        // time to figure out what exceptions might be thrown.
+                        LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+                    }
+                }
+
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            } finally {
+                destroyResponses();
+            }
+        } while (!response.isTagged());
+    }
+
+    /**
+     * Fetch the given body parts of several messages, whose structure must have been fetched
+     * already.  Rather than a UID FETCH per part, messages whose parts have the same section
+     * numbers (which is typical, e.g. "1.1" and "1.2" for multipart/alternative) are fetched
+     * together, in batches of at most {@link #MAX_FETCH_PARTS_BYTES} expected bytes.
+     *
+     * @param parts the parts to fetch for each message.  Each part must have
+     *     {@link MimeHeader#HEADER_ANDROID_ATTACHMENT_STORE_DATA}; parts without it are skipped.
+     */
+    public void fetchParts(Map<Message, List<Part>> parts) throws MessagingException {
+        checkOpen();
+        // Group the messages by the fetch items they need.
+        final LinkedHashMap<String, ArrayList<Message>> groups =
+                new LinkedHashMap<String, ArrayList<Message>>();
+        for (Map.Entry<Message, List<Part>> entry : parts.entrySet()) {
+            final StringBuilder fetchFields = new StringBuilder(ImapConstants.UID);
+            for (Part part : entry.getValue()) {
+                final String partId = getPartId(part);
+                if (partId != null) {
+                    fetchFields.append(' ').append(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE)
+                            .append('[').append(partId).append(']');
+                }
+            }
+            if (fetchFields.length() == ImapConstants.UID.length()) {
+                continue; // Nothing to fetch
+            }
+            final String key = fetchFields.toString();
+            ArrayList<Message> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Message>();
+                groups.put(key, group);
+            }
+            group.add(entry.getKey());
+        }
+
+        try {
+            for (Map.Entry<String, ArrayList<Message>> group : groups.entrySet()) {
+                final ArrayList<Message> batch = new ArrayList<Message>();
+                long batchBytes = 0;
+                for (Message message : group.getValue()) {
+                    long messageBytes = 0;
+                    for (Part part : parts.get(message)) {
+                        messageBytes += Math.max(0, part.getSize());
+                    }
+                    if (!batch.isEmpty() && batchBytes + messageBytes > MAX_FETCH_PARTS_BYTES) {
+                        fetchPartsBatch(batch, group.getKey(), parts);
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                    batch.add(message);
+                    batchBytes += messageBytes;
+                }
+                fetchPartsBatch(batch, group.getKey(), parts);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Sends a single UID FETCH for {@link #fetchParts}, and sets the bodies of the parts from the
+     * responses, matching them by UID and section.
+     */
+    private void fetchPartsBatch(List<Message> messages, String fetchFields,
+            Map<Message, List<Part>> parts) throws IOException, MessagingException {
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        for (String uidSet : ImapStore.getMessageUidSets(
+                messages.toArray(new Message[messages.size()]))) {
             mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
+                    ImapConstants.UID_FETCH + " %s (%s)", uidSet, fetchFields), false);
             ImapResponse response;
             do {
                 response = null;
                 try {
                     response = mConnection.readResponse();
-
                     if (!response.isDataResponse(1, ImapConstants.FETCH)) {
                         continue; // Ignore
                     }
                     final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
+                    final Message message = messageMap.get(
+                            fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+                    if (message == null) {
+                        continue;
                     }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
-                                }
-                                message.setBody(null);
-                            }
+                    for (Part part : parts.get(message)) {
+                        final String partId = getPartId(part);
+                        if (partId == null) {
+                            continue;
                         }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
+                        // Servers may split the items of a message over several FETCH
+                        // responses, so only touch the parts that are in this one.
+                        final ImapElement body =
+                                fetchList.getKeyedElementOrNull("BODY[" + partId + "]", false);
+                        if (body == null || !body.isString()) {
+                            continue;
                         }
-
                         try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                    fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
+                            part.setBody(decodeBody(((ImapString) body).getAsStream(),
+                                    getContentTransferEncoding(part), part.getSize(), null));
+                        } catch (Exception e) {
+                            // Same as fetchResponses(); a broken part shouldn't fail the sync.
                             LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
                         }
                     }
-
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
-                    }
                 } finally {
                     destroyResponses();
                 }
             } while (!response.isTagged());
+        }
+    }
+
+    /**
+     * @return the IMAP section number of {@code part}, or null if it isn't known.
+     */
+    private static String getPartId(Part part) throws MessagingException {
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        return (partIds != null && partIds.length > 0) ? partIds[0] : null;
+    }
+
+    /**
+     * Receives the content of a body part fetched by {@link #fetchPart}.
+     */
+    public interface PartSink {
+        /**
+         * Called while the part is being read from the network.
+         *
+         * @param in the content of the part, with the content transfer encoding removed.
+         */
+        void onPartContent(InputStream in) throws IOException;
+    }
+
+    /**
+     * Fetch a single body part, and pass its decoded content to {@code sink} as it is read from
+     * the network.  Unlike {@link #fetch} with a part in the {@link FetchProfile}, this doesn't
+     * store the part in temp files, so an attachment can be written straight to its final
+     * location.  If the server supports BINARY (RFC 3516), it decodes the part for us, which for
+     * base64 also saves a quarter of the bytes on the wire.
+     *
+     * @param message the message containing the part.
+     * @param part the part to fetch, which must have
+     *     {@link MimeHeader#HEADER_ANDROID_ATTACHMENT_STORE_DATA}.
+     * @param sink receives the content of the part.
+     * @param listener gets {@link MessageRetrievalListener#loadAttachmentProgress} calls.
+     * @return true if the part was received and passed to {@code sink}.
+     */
+    public boolean fetchPart(Message message, Part part, PartSink sink,
+            MessageRetrievalListener listener) throws MessagingException {
+        checkOpen();
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        if (partIds == null) {
+            return false;
+        }
+        final String contentTransferEncoding = getContentTransferEncoding(part);
+        try {
+            if (useBinary(contentTransferEncoding)) {
+                final PartLiteralSink binarySink =
+                        new PartLiteralSink(sink, ENCODING_BINARY, listener);
+                final ImapResponse response = fetchPartToSink(message, partIds[0],
+                        ImapConstants.FETCH_FIELD_BINARY_PEEK_BARE, "BINARY[", binarySink);
+                if (response.isOk() || binarySink.mReceived) {
+                    return binarySink.mReceived;
+                }
+                // The server couldn't decode the part, e.g. "NO [UNKNOWN-CTE]" (RFC 3516 4.3),
+                // so fetch it as it is and decode it ourselves.
+                LogUtils.d(Logging.LOG_TAG, "BINARY fetch failed: %s",
+                        response.getStatusResponseTextOrEmpty().getString());
+            }
+            final PartLiteralSink literalSink =
+                    new PartLiteralSink(sink, contentTransferEncoding, listener);
+            final ImapResponse response = fetchPartToSink(message, partIds[0],
+                    ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, "BODY[", literalSink);
+            if (!response.isOk()) {
+                throw new MessagingException(response.getStatusResponseTextOrEmpty().getString());
+            }
+            return literalSink.mReceived;
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
     }
 
+    /**
+     * Sends a UID FETCH for a single body part and passes the part's content to
+     * {@code literalSink}.
+     *
+     * @param fetchItem the fetch item without the section, i.e. BODY.PEEK or BINARY.PEEK.
+     * @param responseKey the start of the key of the part's content in the FETCH response.
+     * @return the tagged response.
+     */
+    private ImapResponse fetchPartToSink(Message message, String partId, String fetchItem,
+            String responseKey, PartLiteralSink literalSink)
+            throws IOException, MessagingException {
+        try {
+            mConnection.setLiteralSink(literalSink);
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " %s (%s %s[%s])", message.getUid(),
+                    ImapConstants.UID, fetchItem, partId), false);
+            ImapResponse response;
+            do {
+                response = null;
+                try {
+                    response = mConnection.readResponse();
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        continue; // Ignore
+                    }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    if (!fetchList.getKeyedStringOrEmpty(ImapConstants.UID).is(message.getUid())
+                            || literalSink.mReceived) {
+                        continue;
+                    }
+                    // If the part wasn't sent as a literal (e.g. it's empty), the sink hasn't
+                    // seen it yet.
+                    final ImapElement body = fetchList.getKeyedElementOrNull(responseKey, true);
+                    if (body != null && body.isString()) {
+                        literalSink.onLiteral(((ImapString) body).getAsStream(), 0);
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+            return response;
+        } finally {
+            if (mConnection != null) {
+                mConnection.setLiteralSink(null);
+            }
+        }
+    }
+
+    /**
+     * @return whether to fetch a part with BINARY.PEEK rather than BODY.PEEK, i.e. whether the
+     *     server supports BINARY (RFC 3516) and the part has an encoding it would remove.
+     */
+    private boolean useBinary(String contentTransferEncoding) {
+        return mConnection.isCapable(ImapConnection.CAPABILITY_BINARY)
+                && ("base64".equalsIgnoreCase(contentTransferEncoding)
+                        || "quoted-printable".equalsIgnoreCase(contentTransferEncoding));
+    }
+
+    /**
+     * Decodes a body literal and passes it to a {@link PartSink}, reporting the progress as it
+     * goes.
+     */
+    private static class PartLiteralSink implements ImapResponseParser.LiteralSink {
+        private final PartSink mSink;
+        private final String mContentTransferEncoding;
+        private final MessageRetrievalListener mListener;
+        boolean mReceived;
+
+        PartLiteralSink(PartSink sink, String contentTransferEncoding,
+                MessageRetrievalListener listener) {
+            mSink = sink;
+            mContentTransferEncoding = contentTransferEncoding;
+            mListener = listener;
+        }
+
+        @Override
+        public void onLiteral(InputStream in, final int size) throws IOException {
+            if (mReceived) {
+                return; // Only the first one.
+            }
+            mReceived = true;
+            if (mListener != null && size > 0) {
+                in = new FilterInputStream(in) {
+                    private int mCount;
+                    private int mLastProgress = -1;
+
+                    @Override
+                    public int read() throws IOException {
+                        final int b = super.read();
+                        if (b >= 0) {
+                            onRead(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int offset, int length) throws IOException {
+                        final int n = super.read(b, offset, length);
+                        if (n > 0) {
+                            onRead(n);
+                        }
+                        return n;
+                    }
+
+                    private void onRead(int n) {
+                        mCount += n;
+                        final int progress = (int) (100L * mCount / size);
+                        if (progress != mLastProgress) {
+                            mLastProgress = progress;
+                            mListener.loadAttachmentProgress(progress);
+                        }
+                    }
+                };
+            }
+            mSink.onPartContent(MimeUtility.getInputStreamForContentTransferEncoding(in,
+                    mContentTransferEncoding));
+        }
+    }
+
+    /**
+     * @return the content transfer encoding of {@code part}, defaulting to "7bit".
+     */
+    private static String getContentTransferEncoding(Part part) throws MessagingException {
+        final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (encodings != null && encodings.length > 0) {
+            return encodings[0];
+        }
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        return "7bit";
+    }
+
+    /**
+     * Sets the system flags we track on {@code message}, according to a FETCH FLAGS list.
+     */
+    static void parseFlags(ImapList flags, ImapMessage message) throws MessagingException {
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+    }
+
+    /**
+     * Sets the headers of {@code message} that we use from a FETCH ENVELOPE list, without going
+     * through the MIME parser as we would for the headers themselves.  From RFC 3501:
+     * <pre>
+     * envelope = "(" env-date SP env-subject SP env-from SP env-sender SP env-reply-to SP
+     *            env-to SP env-cc SP env-bcc SP env-in-reply-to SP env-message-id ")"
+     * </pre>
+     * The date and subject are set as they are, i.e. still RFC 2047 encoded, just as they'd be
+     * set by parsing the headers.
+     *
+     * @return false if the envelope is malformed, in which case {@code message} is left as it is.
+     */
+    @VisibleForTesting
+    static boolean parseEnvelope(ImapList envelope, ImapMessage message)
+            throws MessagingException {
+        if (envelope.size() < 10 || !envelope.getElementOrNone(0).isString()
+                || !envelope.getElementOrNone(1).isString()
+                || !envelope.getElementOrNone(9).isString()) {
+            return false;
+        }
+        Address[] from = parseEnvelopeAddresses(envelope.getElementOrNone(2));
+        final Address[] sender = parseEnvelopeAddresses(envelope.getElementOrNone(3));
+        final Address[] replyTo = parseEnvelopeAddresses(envelope.getElementOrNone(4));
+        final Address[] to = parseEnvelopeAddresses(envelope.getElementOrNone(5));
+        final Address[] cc = parseEnvelopeAddresses(envelope.getElementOrNone(6));
+        final Address[] bcc = parseEnvelopeAddresses(envelope.getElementOrNone(7));
+        if (from == null || sender == null || replyTo == null || to == null || cc == null
+                || bcc == null) {
+            return false;
+        }
+
+        setHeaderOrRemove(message, "Date", envelope.getStringOrEmpty(0).getString());
+        setHeaderOrRemove(message, "Subject", envelope.getStringOrEmpty(1).getString());
+        setHeaderOrRemove(message, "Message-ID", envelope.getStringOrEmpty(9).getString());
+        // Same as MimeMessage.getFrom(), which falls back to the Sender header.
+        if (from.length == 0) {
+            from = sender;
+        }
+        if (from.length == 1) {
+            message.setFrom(from[0]);
+        } else {
+            setHeaderOrRemove(message, "From", Address.toHeader(from));
+        }
+        message.setReplyTo(replyTo);
+        message.setRecipients(RecipientType.TO, to);
+        message.setRecipients(RecipientType.CC, cc);
+        message.setRecipients(RecipientType.BCC, bcc);
+        return true;
+    }
+
+    /**
+     * @return the addresses in an ENVELOPE address list, or null if it's malformed.  The
+     *     markers of RFC 2822 group syntax, which have no host name, are skipped.
+     */
+    private static Address[] parseEnvelopeAddresses(ImapElement element) {
+        if (element.isString()) {
+            // NIL
+            return ((ImapString) element).isEmpty() ? NO_ADDRESSES : null;
+        }
+        if (!element.isList()) {
+            return null;
+        }
+        final ImapList list = (ImapList) element;
+        final ArrayList<Address> addresses = new ArrayList<Address>(list.size());
+        for (int i = 0, count = list.size(); i < count; i++) {
+            final ImapElement item = list.getElementOrNone(i);
+            if (!item.isList() || ((ImapList) item).size() < 4) {
+                return null;
+            }
+            // (name adl mailbox host)
+            final ImapList address = (ImapList) item;
+            final String mailbox = address.getStringOrEmpty(2).getString();
+            final String host = address.getStringOrEmpty(3).getString();
+            if (TextUtils.isEmpty(mailbox) || TextUtils.isEmpty(host)) {
+                continue;
+            }
+            addresses.add(new Address(mailbox + "@" + host,
+                    address.getStringOrEmpty(0).getString()));
+        }
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    private static void setHeaderOrRemove(Part part, String name, String value)
+            throws MessagingException {
+        if (TextUtils.isEmpty(value)) {
+            part.removeHeader(name);
+        } else {
+            part.setHeader(name, value);
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -1037,125 +1817,220 @@ class ImapFolder extends Folder {
     @Override
     public void appendMessage(final Context context, final Message message, final boolean noTimeout)
             throws MessagingException {
+        appendMessages(context, new Message[] { message }, noTimeout);
+    }
+
+    /**
+     * Like {@link #appendMessage}, for several messages.  If the server supports MULTIAPPEND
+     * (RFC 3502), they're all sent in a single APPEND command, and with LITERAL+ (RFC 7888)
+     * without waiting for a continuation request before each one, so that uploading a batch of
+     * messages doesn't cost a round trip for each of them.  Otherwise they're sent one at a
+     * time, and if one of them fails, the ones before it have already been appended; callers
+     * that can't redo part of a batch should check {@link #canAppendMessagesTogether} first.
+     */
+    public void appendMessages(final Context context, final Message[] messages,
+            final boolean noTimeout) throws MessagingException {
         checkOpen();
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_MULTIAPPEND)) {
+            appendMessagesInternal(context, messages, noTimeout);
+        } else {
+            for (Message message : messages) {
+                appendMessagesInternal(context, new Message[] { message }, noTimeout);
+            }
+        }
+    }
+
+    /**
+     * @return true if {@link #appendMessages} sends all of the messages in a single APPEND, which
+     * the server either accepts or rejects as a whole.
+     */
+    public boolean canAppendMessagesTogether() throws MessagingException {
+        checkOpen();
+        return mConnection.isCapable(ImapConnection.CAPABILITY_MULTIAPPEND);
+    }
+
+    private void appendMessagesInternal(final Context context, final Message[] messages,
+            final boolean noTimeout) throws MessagingException {
+        if (messages.length == 0) {
+            return;
+        }
+        final boolean literalPlus = mConnection.isCapable(ImapConnection.CAPABILITY_LITERAL_PLUS);
+        final File[] tempFiles = new File[messages.length];
         try {
-            // Create temp file
-            /**
-             * We need to know the encoded message size before we upload it, and encoding
-             * attachments as Base64, possibly reading from a slow provider, is a non-trivial
-             * operation. So we write the contents to a temp file while measuring the size,
-             * and then use that temp file and size to do the actual upsync.
-             * For context, most classic email clients would store the message in RFC822 format
-             * internally, and so would not need to do this on-the-fly.
-             */
-            final File tempDir = context.getExternalCacheDir();
-            final File tempFile = File.createTempFile("IMAPupsync", ".eml", tempDir);
-            // Delete here so we don't leave the file lingering. We've got a handle to it so we
-            // can still use it.
-            final boolean deleteSuccessful = tempFile.delete();
-            if (!deleteSuccessful) {
-                LogUtils.w(LogUtils.TAG, "Could not delete temp file %s",
-                        tempFile.getAbsolutePath());
-            }
-            final OutputStream tempOut = new FileOutputStream(tempFile);
-            // Create output count while writing temp file
-            final CountingOutputStream out = new CountingOutputStream(tempOut);
-            final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
-            message.writeTo(eolOut);
-            eolOut.flush();
-            // Create flag list (most often this will be "\SEEN")
-            String flagList = "";
-            Flag[] flags = message.getFlags();
-            if (flags.length > 0) {
-                StringBuilder sb = new StringBuilder();
-                for (final Flag flag : flags) {
-                    if (flag == Flag.SEEN) {
-                        sb.append(" " + ImapConstants.FLAG_SEEN);
-                    } else if (flag == Flag.FLAGGED) {
-                        sb.append(" " + ImapConstants.FLAG_FLAGGED);
-                    }
-                }
-                if (sb.length() > 0) {
-                    flagList = sb.substring(1);
+            // The flags and literal size of each message, e.g. "(\SEEN) {1234}"
+            final String[] items = new String[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                // Create temp file
+                /**
+                 * We need to know the encoded message size before we upload it, and encoding
+                 * attachments as Base64, possibly reading from a slow provider, is a non-trivial
+                 * operation. So we write the contents to a temp file while measuring the size,
+                 * and then use that temp file and size to do the actual upsync.
+                 * For context, most classic email clients would store the message in RFC822
+                 * format internally, and so would not need to do this on-the-fly.
+                 */
+                final File tempDir = context.getExternalCacheDir();
+                tempFiles[i] = File.createTempFile("IMAPupsync", ".eml", tempDir);
+                final OutputStream tempOut = new FileOutputStream(tempFiles[i]);
+                // Create output count while writing temp file
+                final CountingOutputStream out = new CountingOutputStream(tempOut);
+                final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                try {
+                    messages[i].writeTo(eolOut);
+                    eolOut.flush();
+                } finally {
+                    tempOut.close();
                 }
+                items[i] = String.format(Locale.US, "(%s) {%d%s}", getAppendFlags(messages[i]),
+                        out.getCount(), literalPlus ? "+" : "");
             }
 
             mConnection.sendCommand(
-                    String.format(Locale.US, ImapConstants.APPEND + " \"%s\" (%s) {%d}",
+                    String.format(Locale.US, ImapConstants.APPEND + " \"%s\" %s",
                             ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
-                            flagList,
-                            out.getCount()), false);
+                            items[0]), false);
+            final OutputStream transportOutputStream = mConnection.mTransport.getOutputStream();
+            // The next message to send
+            int next = 0;
             ImapResponse response;
-            do {
-                final int socketTimeout = mConnection.mTransport.getSoTimeout();
-                try {
-                    // Need to set the timeout to unlimited since we might be upsyncing a pretty
-                    // big attachment so who knows how long it'll take. It would sure be nice
-                    // if this only timed out after the send buffer drained but welp.
-                    if (noTimeout) {
-                        // For now, only unset the timeout if we're doing a manual sync
-                        mConnection.mTransport.setSoTimeout(0);
+            final int socketTimeout = mConnection.mTransport.getSoTimeout();
+            try {
+                // Need to set the timeout to unlimited since we might be upsyncing a pretty
+                // big attachment so who knows how long it'll take. It would sure be nice
+                // if this only timed out after the send buffer drained but welp.
+                if (noTimeout) {
+                    // For now, only unset the timeout if we're doing a manual sync
+                    mConnection.mTransport.setSoTimeout(0);
+                }
+                if (literalPlus) {
+                    // Non-synchronizing literals; the server won't ask for them.
+                    for (; next < messages.length; next++) {
+                        writeAppendLiteral(transportOutputStream, tempFiles, items, next);
                     }
+                }
+                do {
                     response = mConnection.readResponse();
-                    if (response.isContinuationRequest()) {
-                        final OutputStream transportOutputStream =
-                                mConnection.mTransport.getOutputStream();
-                        IOUtils.copyLarge(new FileInputStream(tempFile), transportOutputStream);
-                        transportOutputStream.write('\r');
-                        transportOutputStream.write('\n');
-                        transportOutputStream.flush();
+                    if (response.isContinuationRequest() && next < messages.length) {
+                        writeAppendLiteral(transportOutputStream, tempFiles, items, next);
+                        next++;
                     } else if (!response.isTagged()) {
                         handleUntaggedResponse(response);
                     }
-                } finally {
-                    mConnection.mTransport.setSoTimeout(socketTimeout);
-                }
-            } while (!response.isTagged());
+                } while (!response.isTagged());
+            } finally {
+                mConnection.mTransport.setSoTimeout(socketTimeout);
+            }
 
-            // TODO Why not check the response?
+            // With MULTIAPPEND, a NO rejects all of the messages, not just one of them
+            if (!response.isOk()) {
+                final String responseText = response.getStatusResponseTextOrEmpty().getString();
+                throw new MessagingException(responseText);
+            }
 
-                /*
-                 * Try to recover the UID of the message from an APPENDUID response.
-                 * e.g. 11 OK [APPENDUID 2 238268] APPEND completed
-                 */
+            /*
+             * Try to recover the UIDs of the messages from an APPENDUID response.
+             * e.g. 11 OK [APPENDUID 2 238268] APPEND completed
+             * or, for MULTIAPPEND, 11 OK [APPENDUID 2 238268:238270] APPEND completed
+             */
             final ImapList appendList = response.getListOrEmpty(1);
             if ((appendList.size() >= 3) && appendList.is(0, ImapConstants.APPENDUID)) {
-                String serverUid = appendList.getStringOrEmpty(2).getString();
-                if (!TextUtils.isEmpty(serverUid)) {
-                    message.setUid(serverUid);
+                final String[] serverUids = ImapUtility.getImapSequenceValues(
+                        appendList.getStringOrEmpty(2).getString());
+                if (serverUids.length == messages.length) {
+                    for (int i = 0; i < messages.length; i++) {
+                        messages[i].setUid(serverUids[i]);
+                    }
                     return;
                 }
             }
 
-            /*
-             * Try to find the UID of the message we just appended using the
-             * Message-ID header.  If there are more than one response, take the
-             * last one, as it's most likely the newest (the one we just uploaded).
-             */
-            final String messageId = message.getMessageId();
-            if (messageId == null || messageId.length() == 0) {
-                return;
-            }
-            // Most servers don't care about parenthesis in the search query [and, some
-            // fail to work if they are used]
-            String[] uids = searchForUids(
-                    String.format(Locale.US, "HEADER MESSAGE-ID %s", messageId));
-            if (uids.length > 0) {
-                message.setUid(uids[0]);
-            }
-            // However, there's at least one server [AOL] that fails to work unless there
-            // are parenthesis, so, try this as a last resort
-            uids = searchForUids(String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
-            if (uids.length > 0) {
-                message.setUid(uids[0]);
+            for (Message message : messages) {
+                searchForAppendedUid(message);
             }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
+            for (File tempFile : tempFiles) {
+                if (tempFile != null && !tempFile.delete()) {
+                    LogUtils.w(LogUtils.TAG, "Could not delete temp file %s",
+                            tempFile.getAbsolutePath());
+                }
+            }
             destroyResponses();
         }
     }
 
+    /**
+     * @return the flags to set on {@code message} when appending it, most often "\SEEN".
+     */
+    private static String getAppendFlags(Message message) throws MessagingException {
+        String flagList = "";
+        Flag[] flags = message.getFlags();
+        if (flags.length > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (final Flag flag : flags) {
+                if (flag == Flag.SEEN) {
+                    sb.append(" " + ImapConstants.FLAG_SEEN);
+                } else if (flag == Flag.FLAGGED) {
+                    sb.append(" " + ImapConstants.FLAG_FLAGGED);
+                }
+            }
+            if (sb.length() > 0) {
+                flagList = sb.substring(1);
+            }
+        }
+        return flagList;
+    }
+
+    /**
+     * Sends the literal of an APPEND command, followed by the flags and literal size of the next
+     * message for MULTIAPPEND, or the end of the command after the last one.
+     */
+    private static void writeAppendLiteral(OutputStream out, File[] tempFiles, String[] items,
+            int index) throws IOException {
+        final InputStream in = new FileInputStream(tempFiles[index]);
+        try {
+            IOUtils.copyLarge(in, out);
+        } finally {
+            in.close();
+        }
+        if (index + 1 < items.length) {
+            out.write(' ');
+            out.write(Utility.toAscii(items[index + 1]));
+        }
+        out.write('\r');
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Try to find the UID of a message we just appended using the Message-ID header, for
+     * servers without APPENDUID.
+     */
+    private void searchForAppendedUid(Message message) throws MessagingException {
+        /*
+         * If there are more than one response, take the
+         * last one, as it's most likely the newest (the one we just uploaded).
+         */
+        final String messageId = message.getMessageId();
+        if (messageId == null || messageId.length() == 0) {
+            return;
+        }
+        // Most servers don't care about parenthesis in the search query [and, some
+        // fail to work if they are used]
+        String[] uids = searchForUids(
+                String.format(Locale.US, "HEADER MESSAGE-ID %s", messageId));
+        if (uids.length > 0) {
+            message.setUid(uids[0]);
+        }
+        // However, there's at least one server [AOL] that fails to work unless there
+        // are parenthesis, so, try this as a last resort
+        uids = searchForUids(String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
+        if (uids.length > 0) {
+            message.setUid(uids[0]);
+        }
+    }
+
     @Override
     public Message[] expunge() throws MessagingException {
         checkOpen();
@@ -1169,11 +2044,89 @@ class ImapFolder extends Folder {
         return null;
     }
 
+    /**
+     * Permanently removes {@code messages}, which should already have {@link Flag#DELETED} set.
+     * If the server supports UIDPLUS, only these messages are expunged (with UID EXPUNGE), so that
+     * other messages marked as deleted by another client are left alone.  Otherwise this is the
+     * same as {@link #expunge()}.
+     */
+    public void expungeMessages(Message[] messages) throws MessagingException {
+        checkOpen();
+        if (!mConnection.isCapable(ImapConnection.CAPABILITY_UIDPLUS)) {
+            expunge();
+            return;
+        }
+        try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                handleUntaggedResponses(mConnection.executeSimpleCommand(
+                        ImapConstants.UID_EXPUNGE + " " + uidSet));
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
     @Override
     public void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException {
+        if (value) {
+            updateFlags(messages, flags, null);
+        } else {
+            updateFlags(messages, null, flags);
+        }
+    }
+
+    /**
+     * Adds {@code setFlags} to, and removes {@code clearFlags} from, {@code messages}. Large sets
+     * of messages are split into several STOREs; all of the STOREs are pipelined, so this costs a
+     * single round trip. If any of them fails, the others are still applied and the first failure
+     * is thrown.
+     *
+     * @param setFlags the flags to add, or null
+     * @param clearFlags the flags to remove, or null
+     */
+    public void updateFlags(Message[] messages, Flag[] setFlags, Flag[] clearFlags)
+            throws MessagingException {
         checkOpen();
 
+        final List<String> commands = new ArrayList<String>();
+        addStoreCommands(commands, messages, setFlags, true);
+        addStoreCommands(commands, messages, clearFlags, false);
+        if (commands.isEmpty()) {
+            return;
+        }
+        try {
+            if (commands.size() == 1) {
+                mConnection.executeSimpleCommand(commands.get(0));
+            } else {
+                MessagingException failure = null;
+                for (CommandResult result : mConnection.executePipelinedCommands(commands)) {
+                    if (failure == null) {
+                        failure = result.mException;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Adds the UID STORE commands to set or clear {@code flags} on {@code messages}, one per UID
+     * set from {@link ImapStore#getMessageUidSets}.
+     */
+    private static void addStoreCommands(List<String> commands, Message[] messages, Flag[] flags,
+            boolean value) {
+        if (flags == null || messages.length == 0) {
+            return;
+        }
         String allFlags = "";
         if (flags.length > 0) {
             StringBuilder flagList = new StringBuilder();
@@ -1191,17 +2144,10 @@ class ImapFolder extends Folder {
             }
             allFlags = flagList.substring(1);
         }
-        try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
+        for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+            commands.add(String.format(Locale.US,
                     ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
+                    uidSet, value ? "+" : "-", allFlags));
         }
     }
 
@@ -1209,6 +2155,9 @@ class ImapFolder extends Folder {
      * Persists this folder. We will always perform the proper database operation (e.g.
      * 'save' or 'update'). As an optimization, if a folder has not been modified, no
      * database operations are performed.
+     *
+     * A count from {@link #setStatus} is written on its own, so that it doesn't rewrite the rest
+     * of the row, e.g. the sync state, from the copy read when the folder list was fetched.
      */
     void save(Context context) {
         final Mailbox mailbox = mMailbox;
@@ -1222,6 +2171,10 @@ class ImapFolder extends Folder {
                 mHash = hash;  // Save updated hash
             }
         }
+        if (mStatusMessages >= 0) {
+            mailbox.updateMessageCount(context, mStatusMessages);
+            mHash[Mailbox.CONTENT_TOTAL_COUNT_COLUMN] = mailbox.mTotalCount;
+        }
     }
 
     /**
@@ -1229,22 +2182,55 @@ class ImapFolder extends Folder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
-        final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+        final StringBuilder command = new StringBuilder(
                 String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
                         ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+        // If we can, have the SELECT report what changed since the last sync (RFC 7162 3.2.5);
+        // otherwise just ask for HIGHESTMODSEQ to be reported.
+        long qresyncModSeq = 0;
+        if (mConnection.isQresyncEnabled() && mKnownUidValidity > 0 && mKnownModSeq > 0) {
+            qresyncModSeq = mKnownModSeq;
+            command.append(String.format(Locale.US, " (" + ImapConstants.QRESYNC + " (%d %d))",
+                    mKnownUidValidity, mKnownModSeq));
+        } else if (mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE)) {
+            command.append(" (" + ImapConstants.CONDSTORE + ")");
+        }
+        final List<ImapResponse> responses =
+                mConnection.executeSimpleCommand(command.toString());
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = 0;
+        mUidNext = 0;
+        mHighestModSeq = 0;
+        mQresyncChanged.clear();
+        mQresyncVanished.clear();
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
                 messageCount = response.getStringOrEmpty(0).getNumberOrZero();
+            } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                final ImapMessage message = parseFlagsResponse(response);
+                if (message != null) {
+                    mQresyncChanged.add(message);
+                }
+            } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                parseVanished(response, mQresyncVanished);
             } else if (response.isOk()) {
                 final ImapString responseCode = response.getResponseCodeOrEmpty();
                 if (responseCode.is(ImapConstants.READ_ONLY)) {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getLongOrZero();
+                } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                    mUidNext = response.getListOrEmpty(1).getStringOrEmpty(1).getLongOrZero();
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq =
+                            response.getListOrEmpty(1).getStringOrEmpty(1).getLongOrZero();
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = 0;
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1255,6 +2241,8 @@ class ImapFolder extends Folder {
             throw new MessagingException("Did not find message count during select");
         }
         mMessageCount = messageCount;
+        // The server ignores the QRESYNC parameters if UIDVALIDITY has changed
+        mQresyncModSeq = (mUidValidity == mKnownUidValidity) ? qresyncModSeq : 0;
         mExists = true;
     }
 
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.android.email.mail.store.ImapStore.ImapMessage;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
+import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapSearchResult;
+import com.android.email.mail.store.imap.ImapUtility;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.utils.LogUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Watches a single remote mailbox for changes and reports them as they happen.
+ *
+ * Each pusher owns a dedicated connection (it is never returned to the store's pool) on which the
+ * mailbox is EXAMINEd.  If the server supports IDLE (RFC 2177) we stay in IDLE, re-issuing it
+ * before the server's inactivity timeout; otherwise we fall back to polling with NOOP.  Changes
+ * are resolved to UIDs before they are reported, so the callback can do a targeted sync rather
+ * than a full one.  Connection failures are retried with an exponential backoff.
+ */
+public class ImapPusher implements Runnable {
+    /**
+     * Servers are allowed to log out clients after 30 minutes of inactivity, even in IDLE (see
+     * RFC 2177), so we restart IDLE a bit before that.
+     */
+    private static final long IDLE_REFRESH_MILLIS = 28 * DateUtils.MINUTE_IN_MILLIS;
+    /** How often we poll servers that don't support IDLE. */
+    private static final long POLL_INTERVAL_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long MIN_BACKOFF_MILLIS = 10 * DateUtils.SECOND_IN_MILLIS;
+    private static final long MAX_BACKOFF_MILLIS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Receives the changes seen by an {@link ImapPusher}. All methods are called on the pusher's
+     * own thread; the pusher doesn't read from the server while a callback is running.
+     */
+    public interface Callback {
+        /** Messages with the given UIDs (in ascending order) were added to the mailbox. */
+        void onMessagesAdded(String[] uids);
+        /** Messages with the given UIDs were expunged from the mailbox. */
+        void onMessagesExpunged(String[] uids);
+        /** The flags of the given messages changed; each carries its complete set of flags. */
+        void onFlagsChanged(Message[] messages);
+        /**
+         * The connection was re-established after a failure. Changes made while we were
+         * disconnected have not been reported, so the mailbox should be fully synced.
+         */
+        void onReconnected();
+    }
+
+    private final ImapStore mStore;
+    private final String mName;
+    private final Callback mCallback;
+    /** Only used as the folder of the messages we report; it is never opened. */
+    private final ImapFolder mFolder;
+    private final Object mLock = new Object();
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+    private ImapConnection mConnection;
+
+    /**
+     * UIDs of the messages in the mailbox, in ascending order, i.e. mUids[n - 1] is the UID of
+     * message sequence number n.  This lets us turn EXPUNGE and FETCH responses, which only carry
+     * sequence numbers, into UIDs.
+     */
+    private long[] mUids = new long[0];
+    private int mUidCount;
+    /** The message count most recently announced by the server (EXISTS). */
+    private int mExists;
+
+    /** Changes seen since the last time they were dispatched to the callback. */
+    private boolean mPendingAdded;
+    private final ArrayList<String> mPendingExpunged = new ArrayList<String>();
+    private final LinkedHashMap<String, Message> mPendingFlags =
+            new LinkedHashMap<String, Message>();
+
+    public ImapPusher(ImapStore store, String mailboxName, Callback callback) {
+        mStore = store;
+        mName = mailboxName;
+        mCallback = callback;
+        mFolder = new ImapFolder(store, mailboxName);
+    }
+
+    /**
+     * Starts watching the mailbox on a new thread.
+     */
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, "ImapPusher " + mName);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops watching the mailbox. This does not wait for the pusher's thread to exit.
+     */
+    public void stop() {
+        mStopped = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        // Break out of any blocking read; the pusher's thread cleans up the connection.
+        final ImapConnection connection = mConnection;
+        if (connection != null && connection.mTransport != null) {
+            connection.mTransport.close();
+        }
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        boolean reconnecting = false;
+        while (!mStopped) {
+            try {
+                connect();
+                backoff = MIN_BACKOFF_MILLIS;
+                if (reconnecting) {
+                    mCallback.onReconnected();
+                }
+                reconnecting = true;
+                if (!mConnection.isCapable(ImapConnection.CAPABILITY_IDLE) || !idle()) {
+                    poll();
+                }
+            } catch (MessagingException me) {
+                LogUtils.d(Logging.LOG_TAG, me, "ImapPusher %s: error", mName);
+            } catch (IOException ioe) {
+                LogUtils.d(Logging.LOG_TAG, ioe, "ImapPusher %s: connection lost", mName);
+            } catch (RuntimeException e) { // Probably a parser error.
+                LogUtils.w(Logging.LOG_TAG, e, "ImapPusher %s: unexpected error", mName);
+                if (mConnection != null) {
+                    mConnection.logLastDiscourse();
+                }
+            } finally {
+                disconnect();
+            }
+            if (!mStopped) {
+                LogUtils.d(Logging.LOG_TAG, "ImapPusher %s: retrying in %d ms", mName, backoff);
+                sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+        LogUtils.d(Logging.LOG_TAG, "ImapPusher %s: stopped", mName);
+    }
+
+    private void sleep(long millis) {
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            try {
+                mLock.wait(millis);
+            } catch (InterruptedException e) {
+                // Just return early
+            }
+        }
+    }
+
+    /**
+     * Opens the dedicated connection, EXAMINEs the mailbox and loads its UIDs.
+     */
+    private void connect() throws IOException, MessagingException {
+        // Not from the pool; this connection stays selected and busy until we stop
+        mConnection = new ImapConnection(mStore);
+        if (mStopped) {
+            throw new IOException("Stopped");
+        }
+        try {
+            int exists = -1;
+            for (ImapResponse response : mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.EXAMINE + " \"%s\"",
+                            ImapStore.encodeFolderName(mName, mStore.mPathPrefix)))) {
+                if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+                    exists = response.getStringOrEmpty(0).getNumberOrZero();
+                }
+            }
+            if (exists == -1) {
+                throw new MessagingException("Did not find message count during examine");
+            }
+            mExists = exists;
+            loadAllUids();
+        } finally {
+            mConnection.destroyResponses();
+        }
+    }
+
+    private void disconnect() {
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+        }
+        mPendingAdded = false;
+        mPendingExpunged.clear();
+        mPendingFlags.clear();
+    }
+
+    /**
+     * Waits for changes using IDLE until stopped or until the connection fails.
+     *
+     * @return false if the server refused IDLE, in which case the caller should poll instead
+     */
+    private boolean idle() throws IOException, MessagingException {
+        while (!mStopped) {
+            // Never let the connection silently reopen; it would no longer have the mailbox
+            // selected.
+            mConnection.sendCommandInternal(ImapConstants.IDLE, false);
+            ImapResponse response;
+            try {
+                // Wait for the server to accept the command
+                while (!(response = mConnection.readResponse()).isContinuationRequest()) {
+                    if (response.isTagged()) {
+                        LogUtils.d(Logging.LOG_TAG, "ImapPusher %s: IDLE refused", mName);
+                        return false;
+                    }
+                    handleUntaggedResponse(response);
+                }
+                // Read until something changes, or it's time to refresh IDLE
+                final long idleEnd = SystemClock.elapsedRealtime() + IDLE_REFRESH_MILLIS;
+                boolean changed = false;
+                boolean done = false;
+                while (!mStopped && !changed) {
+                    final long remaining = idleEnd - SystemClock.elapsedRealtime();
+                    if (remaining <= 0 || !mConnection.waitForResponse((int) remaining)) {
+                        break;
+                    }
+                    response = mConnection.readResponse();
+                    if (response.isTagged()) {
+                        // The server ended IDLE on its own
+                        done = true;
+                        break;
+                    }
+                    changed = handleUntaggedResponse(response);
+                    mConnection.destroyResponses();
+                }
+                if (!done) {
+                    mConnection.sendIdleDone();
+                    while (!(response = mConnection.readResponse()).isTagged()) {
+                        handleUntaggedResponse(response);
+                    }
+                }
+                if (!response.isOk()) {
+                    throw new MessagingException("IDLE failed: "
+                            + response.getStatusResponseTextOrEmpty());
+                }
+            } finally {
+                mConnection.destroyResponses();
+            }
+            dispatchChanges();
+        }
+        return true;
+    }
+
+    /**
+     * Polls for changes using NOOP until stopped or until the connection fails.
+     */
+    private void poll() throws IOException, MessagingException {
+        while (!mStopped) {
+            sleep(POLL_INTERVAL_MILLIS);
+            if (mStopped) {
+                break;
+            }
+            try {
+                mConnection.sendCommandInternal(ImapConstants.NOOP, false);
+                for (ImapResponse response : mConnection.getCommandResponses()) {
+                    if (!response.isTagged()) {
+                        handleUntaggedResponse(response);
+                    }
+                }
+            } finally {
+                mConnection.destroyResponses();
+            }
+            dispatchChanges();
+        }
+    }
+
+    /**
+     * Records the change reported by an untagged response, if any.
+     *
+     * @return true if the response reported a change we're interested in
+     */
+    private boolean handleUntaggedResponse(ImapResponse response) throws MessagingException {
+        if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+            mExists = response.getStringOrEmpty(0).getNumberOrZero();
+            if (mExists > mUidCount) {
+                mPendingAdded = true;
+                return true;
+            }
+        } else if (response.isDataResponse(1, ImapConstants.EXPUNGE)) {
+            final int index = response.getStringOrEmpty(0).getNumberOrZero() - 1;
+            if (index >= 0 && index < mUidCount) {
+                final String uid = Long.toString(mUids[index]);
+                System.arraycopy(mUids, index + 1, mUids, index, mUidCount - index - 1);
+                mUidCount--;
+                mExists--;
+                mPendingExpunged.add(uid);
+                mPendingFlags.remove(uid);
+                return true;
+            }
+        } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+            // Once QRESYNC is enabled, expunged messages are reported by UID instead (RFC 7162)
+            final String set = response.getStringOrEmpty(response.size() - 1).getString();
+            boolean changed = false;
+            for (String uid : ImapUtility.getImapSequenceValues(set)) {
+                final int index = Arrays.binarySearch(mUids, 0, mUidCount, Long.parseLong(uid));
+                if (index >= 0) {
+                    System.arraycopy(mUids, index + 1, mUids, index, mUidCount - index - 1);
+                    mUidCount--;
+                    mExists--;
+                    mPendingExpunged.add(uid);
+                    mPendingFlags.remove(uid);
+                    changed = true;
+                }
+            }
+            return changed;
+        } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+            final ImapList fetchList = response.getListOrEmpty(2);
+            final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            if (flags.isEmpty() && !fetchList.contains(ImapConstants.FLAGS)) {
+                return false;
+            }
+            String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+            if (TextUtils.isEmpty(uid)) {
+                final int index = response.getStringOrEmpty(0).getNumberOrZero() - 1;
+                if (index < 0 || index >= mUidCount) {
+                    return false;
+                }
+                uid = Long.toString(mUids[index]);
+            }
+            final ImapMessage message = new ImapMessage(uid, mFolder);
+            ImapFolder.parseFlags(flags, message);
+            mPendingFlags.put(uid, message);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resolves any new messages to UIDs and reports everything seen so far to the callback.
+     */
+    private void dispatchChanges() throws IOException, MessagingException {
+        String[] added = null;
+        if (mPendingAdded) {
+            mPendingAdded = false;
+            final long lastUid = (mUidCount > 0) ? mUids[mUidCount - 1] : 0;
+            final int oldCount = mUidCount;
+            // "n:*" always matches the last message, even if its UID is less than n
+            for (long uid : searchUids(ImapConstants.UID + " " + (lastUid + 1) + ":*")) {
+                if (uid > lastUid) {
+                    addUid(uid);
+                }
+            }
+            if (mUidCount != mExists) {
+                // We've lost track of the sequence numbers; start over
+                LogUtils.d(Logging.LOG_TAG, "ImapPusher %s: expected %d messages, found %d",
+                        mName, mExists, mUidCount);
+                final long[] oldUids = Arrays.copyOf(mUids, oldCount);
+                loadAllUids();
+                added = diffUids(oldUids);
+            } else if (mUidCount > oldCount) {
+                added = new String[mUidCount - oldCount];
+                for (int i = oldCount; i < mUidCount; i++) {
+                    added[i - oldCount] = Long.toString(mUids[i]);
+                }
+            }
+        }
+        if (!mPendingExpunged.isEmpty()) {
+            final String[] expunged =
+                    mPendingExpunged.toArray(new String[mPendingExpunged.size()]);
+            mPendingExpunged.clear();
+            mCallback.onMessagesExpunged(expunged);
+        }
+        if (added != null) {
+            mCallback.onMessagesAdded(added);
+        }
+        if (!mPendingFlags.isEmpty()) {
+            final Message[] messages =
+                    mPendingFlags.values().toArray(new Message[mPendingFlags.size()]);
+            mPendingFlags.clear();
+            mCallback.onFlagsChanged(messages);
+        }
+    }
+
+    /**
+     * Compares the UIDs just reloaded with those we had before.  The ones we had that are gone
+     * are recorded as expunged, as the server's reports of them were missed.
+     *
+     * @param oldUids the UIDs we had, in ascending order
+     * @return the UIDs that are new, in ascending order, or null if there aren't any
+     */
+    private String[] diffUids(long[] oldUids) {
+        for (long uid : oldUids) {
+            if (Arrays.binarySearch(mUids, 0, mUidCount, uid) < 0) {
+                final String expunged = Long.toString(uid);
+                mPendingExpunged.add(expunged);
+                mPendingFlags.remove(expunged);
+            }
+        }
+        final ArrayList<String> added = new ArrayList<String>();
+        for (int i = 0; i < mUidCount; i++) {
+            if (Arrays.binarySearch(oldUids, mUids[i]) < 0) {
+                added.add(Long.toString(mUids[i]));
+            }
+        }
+        return added.isEmpty() ? null : added.toArray(new String[added.size()]);
+    }
+
+    private void loadAllUids() throws IOException, MessagingException {
+        mUidCount = 0;
+        for (long uid : searchUids(ImapConstants.UID + " 1:*")) {
+            addUid(uid);
+        }
+    }
+
+    private void addUid(long uid) {
+        if (mUidCount == mUids.length) {
+            mUids = Arrays.copyOf(mUids, Math.max(16, mUidCount * 2));
+        }
+        mUids[mUidCount++] = uid;
+    }
+
+    /**
+     * Runs a UID SEARCH on the pusher's connection and returns the result in ascending order.
+     */
+    private long[] searchUids(String criteria) throws IOException, MessagingException {
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    ImapFolder.getUidSearchCommand(mConnection) + " " + criteria);
+            final long[] uids = ImapSearchResult.fromResponses(responses).getUids();
+            // Any other changes the server reported along the way
+            for (ImapResponse response : responses) {
+                if (!response.isTagged() && !response.isDataResponse(0, ImapConstants.SEARCH)
+                        && !response.isDataResponse(0, ImapConstants.ESEARCH)) {
+                    handleUntaggedResponse(response);
+                }
+            }
+            final long[] result = uids.clone();
+            Arrays.sort(result);
+            return result;
+        } finally {
+            mConnection.destroyResponses();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+/**
+ * What {@link ImapConnection#open} learnt about a server the last time it did the full handshake
+ * (CAPABILITY, STARTTLS, CAPABILITY, ID, LOGIN, NAMESPACE and LIST), so that later connections
+ * to the same server can skip straight from the banner to STARTTLS, ID and LOGIN.
+ *
+ * <p>There's one per {@link ImapStore}, and so one per HostAuth.  The namespace prefix and path
+ * separator aren't kept here, as the store already keeps them for all its connections.
+ */
+class ImapSessionCache {
+    /**
+     * How long the result of a full handshake is trusted.  Servers rarely change, and if they
+     * do, the capabilities they report unasked will usually tell us.
+     */
+    static final long MAX_AGE_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    /** The capabilities of the server after login; a set of ImapConnection.CAPABILITY_* values */
+    private int mCapabilities;
+    /** The server's CAPABILITY response, flattened, which the ID command we send depends on */
+    private String mCapabilityString;
+    /**
+     * When the cache was last filled in ({@link SystemClock#elapsedRealtime}), or 0 if it's
+     * empty.
+     */
+    long mUpdatedTime;
+
+    /**
+     * @return whether the cache has been filled in recently enough to be used.
+     */
+    synchronized boolean isFresh() {
+        return mUpdatedTime != 0
+                && SystemClock.elapsedRealtime() - mUpdatedTime < MAX_AGE_MILLIS;
+    }
+
+    synchronized int getCapabilities() {
+        return mCapabilities;
+    }
+
+    synchronized String getCapabilityString() {
+        return mCapabilityString;
+    }
+
+    /**
+     * Fill in the cache after a full handshake.
+     */
+    synchronized void update(int capabilities, String capabilityString) {
+        mCapabilities = capabilities;
+        mCapabilityString = capabilityString;
+        mUpdatedTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Make the next connection do the full handshake, e.g. because the server reported
+     * capabilities that don't match the cached ones, whether it added some or dropped some.
+     */
+    synchronized void invalidate() {
+        mUpdatedTime = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mUpdatedTime == 0) {
+            return "empty";
+        }
+        return "capabilities=0x" + Integer.toHexString(mCapabilities)
+                + " age=" + (SystemClock.elapsedRealtime() - mUpdatedTime) + "ms";
+    }
+}
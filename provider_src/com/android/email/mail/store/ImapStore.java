@@ -19,16 +19,21 @@ package com.android.email.mail.store;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Base64;
 
 import com.android.email.LegacyConversions;
 import com.android.email.Preferences;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapConnection.CommandResult;
 import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapDateParser;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUidSetBuilder;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.VendorPolicyLoader;
@@ -51,15 +56,20 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 
@@ -90,8 +100,36 @@ public class ImapStore extends Store {
 
     private boolean mUseOAuth;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    /** What the last full handshake learnt about the server; shared by all our connections */
+    private final ImapSessionCache mSessionCache = new ImapSessionCache();
+
+    /** Maximum number of pooled connections, in use or idle, per store */
+    private static final int MAX_CONNECTIONS = 3;
+    /** How long to wait for a connection to be returned to the pool when all are in use */
+    private static final long CONNECTION_WAIT_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+    /** Idle connections used more recently than this are assumed to be alive, skipping the NOOP */
+    @VisibleForTesting
+    static final long CONNECTION_VERIFY_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+    /**
+     * Idle connections are closed after this long; servers may log out idle clients after 30
+     * minutes (RFC 3501 5.4), so there's no point keeping them longer.
+     */
+    private static final long CONNECTION_EVICT_MILLIS = 25 * DateUtils.MINUTE_IN_MILLIS;
+    /** The counts asked for with LIST-STATUS or STATUS when updating the folder list */
+    private static final String STATUS_ITEMS = ImapConstants.MESSAGES + " "
+            + ImapConstants.UNSEEN + " " + ImapConstants.UIDNEXT;
+
+    /** Guards the pool and its statistics */
+    private final Object mPoolLock = new Object();
+    /** Idle connections, most recently used first */
+    private final ArrayDeque<ImapConnection> mConnectionPool = new ArrayDeque<ImapConnection>();
+    /** Number of connections handed out by {@link #getConnection} and not yet returned */
+    private int mConnectionsInUse;
+    private int mPoolHits;
+    private int mPoolMisses;
+    private int mPoolEvictions;
+    private int mPoolWaits;
+    private long mPoolWaitMillis;
 
     /**
      * Static named constructor.
@@ -134,6 +172,10 @@ public class ImapStore extends Store {
         return mPassword;
     }
 
+    ImapSessionCache getSessionCache() {
+        return mSessionCache;
+    }
+
     public boolean canSyncFolderType(final int type) {
         switch (type) {
             case Mailbox.TYPE_INBOX:
@@ -159,6 +201,18 @@ public class ImapStore extends Store {
         return mConnectionPool;
     }
 
+    @Override
+    public void dump(PrintWriter pw) {
+        synchronized (mPoolLock) {
+            pw.println("  ImapStore account " + mAccount.mId);
+            pw.println("    Connections: " + mConnectionsInUse + " in use, "
+                    + mConnectionPool.size() + " idle, max " + MAX_CONNECTIONS);
+            pw.println("    Pool: hits=" + mPoolHits + " misses=" + mPoolMisses + " evictions="
+                    + mPoolEvictions + " waits=" + mPoolWaits + " waitMillis=" + mPoolWaitMillis);
+            pw.println("    Session cache: " + mSessionCache);
+        }
+    }
+
     /**
      * For testing only.  Injects a different root transport (it will be copied using
      * newInstanceWithConfiguration() each time IMAP sets up a new channel).  The transport
@@ -405,6 +459,23 @@ public class ImapStore extends Store {
         return folder;
     }
 
+    /**
+     * Records the counts from a STATUS response on the folder it's about, if that's one of
+     * {@code mailboxes}.
+     */
+    private void handleStatusResponse(HashMap<String, ImapFolder> mailboxes,
+            ImapResponse response) {
+        String folderName =
+                decodeFolderName(response.getStringOrEmpty(1).getString(), mPathPrefix);
+        if (ImapConstants.INBOX.equalsIgnoreCase(folderName)) {
+            folderName = ImapConstants.INBOX;
+        }
+        final ImapFolder folder = mailboxes.get(folderName);
+        if (folder != null) {
+            folder.setStatus(response.getListOrEmpty(2));
+        }
+    }
+
     /**
      * Persists the folders in the given list.
      */
@@ -429,6 +500,13 @@ public class ImapStore extends Store {
             if (mPathPrefix != null) {
                 imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
             }
+            final boolean listStatus =
+                    connection.isCapable(ImapConnection.CAPABILITY_LIST_STATUS);
+            if (listStatus) {
+                // Have the server report the counts of each folder along with it (RFC 5819)
+                imapCommand += " " + ImapConstants.RETURN + " (" + ImapConstants.STATUS + " "
+                        + STATUS_ITEMS + ")";
+            }
             List<ImapResponse> responses = connection.executeSimpleCommand(imapCommand);
             for (ImapResponse response : responses) {
                 // S: * LIST (\Noselect) "/" ~/Mail/foo
@@ -462,6 +540,41 @@ public class ImapStore extends Store {
                     mContext, mAccount.mId, inbox.mServerId, '\0', true /*selectable*/, inbox);
             mailboxes.put(ImapConstants.INBOX, newFolder);
 
+            if (listStatus) {
+                for (ImapResponse response : responses) {
+                    // S: * STATUS ~/Mail/foo (MESSAGES 231 UNSEEN 3 UIDNEXT 44292)
+                    if (response.isDataResponse(0, ImapConstants.STATUS)) {
+                        handleStatusResponse(mailboxes, response);
+                    }
+                }
+            } else {
+                // Ask for the counts of all the folders at once instead, in order of their names
+                final ArrayList<String> names = new ArrayList<String>(mailboxes.keySet());
+                Collections.sort(names);
+                final List<String> commands = new ArrayList<String>();
+                for (String name : names) {
+                    final ImapFolder folder = mailboxes.get(name);
+                    if ((folder.mMailbox.mFlags & Mailbox.FLAG_HOLDS_MAIL) != 0) {
+                        commands.add(String.format(Locale.US,
+                                ImapConstants.STATUS + " \"%s\" (" + STATUS_ITEMS + ")",
+                                encodeFolderName(folder.getName(), mPathPrefix)));
+                    }
+                }
+                for (CommandResult result : connection.executePipelinedCommands(commands)) {
+                    if (result.mException != null) {
+                        // Not fatal; the folder just won't have counts
+                        LogUtils.d(Logging.LOG_TAG, "%s failed: %s", result.mCommand,
+                                result.mException.getMessage());
+                        continue;
+                    }
+                    for (ImapResponse response : result.mResponses) {
+                        if (response.isDataResponse(0, ImapConstants.STATUS)) {
+                            handleStatusResponse(mailboxes, response);
+                        }
+                    }
+                }
+            }
+
             createHierarchy(mailboxes);
             saveMailboxList(mContext, mailboxes);
             return mailboxes.values().toArray(new Folder[mailboxes.size()]);
@@ -491,6 +604,8 @@ public class ImapStore extends Store {
         // so there's need to look for a pooled connection?
         // But then why doesn't it use poolConnection() after it's done?
         ImapConnection connection = new ImapConnection(this);
+        // Check the settings with the full handshake, not what we learnt from it last time.
+        mSessionCache.invalidate();
         try {
             connection.open();
             connection.close();
@@ -546,30 +661,80 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Gets a connection if one is available from the pool, or creates a new one if not.
+     * Gets a connection if one is available from the pool, or creates a new one if not. If
+     * {@link #MAX_CONNECTIONS} are already in use, waits for one to be returned; if none is
+     * returned in time, a new connection is created anyway rather than failing the caller.
+     *
+     * A pooled connection that hasn't been used recently is checked with a NOOP first.
      */
     ImapConnection getConnection() {
-        // TODO Why would we ever have (or need to have) more than one active connection?
         // TODO We set new username/password each time, but we don't actually close the transport
         // when we do this. So if that information has changed, this connection will fail.
-        ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
+        while (true) {
+            final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+            ImapConnection connection;
+            synchronized (mPoolLock) {
+                evictIdleConnectionsLocked(evicted);
+                long waitStart = 0;
+                while (mConnectionPool.isEmpty() && mConnectionsInUse >= MAX_CONNECTIONS) {
+                    final long now = SystemClock.elapsedRealtime();
+                    if (waitStart == 0) {
+                        waitStart = now;
+                        mPoolWaits++;
+                    }
+                    final long remaining = waitStart + CONNECTION_WAIT_MILLIS - now;
+                    if (remaining <= 0) {
+                        LogUtils.w(Logging.LOG_TAG,
+                                "All %d IMAP connections in use, opening another",
+                                mConnectionsInUse);
+                        break;
+                    }
+                    try {
+                        mPoolLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (waitStart != 0) {
+                    mPoolWaitMillis += SystemClock.elapsedRealtime() - waitStart;
+                }
+                connection = mConnectionPool.pollFirst();
+                if (connection != null) {
+                    mPoolHits++;
+                } else {
+                    mPoolMisses++;
+                }
+                if (connection == null) {
+                    connection = new ImapConnection(this);
+                } else {
+                    connection.setStore(this);
+                }
+                connection.mCheckedOut = true;
+                mConnectionsInUse++;
+            }
+            for (ImapConnection c : evicted) {
+                c.close();
+            }
+
+            final long idleMillis = SystemClock.elapsedRealtime() - connection.mLastUsedTime;
+            if (connection.mLastUsedTime == 0 || idleMillis < CONNECTION_VERIFY_MILLIS) {
+                // New, or used recently enough that it's almost certainly still alive
+                return connection;
+            }
             try {
-                connection.setStore(this);
                 connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
+                return connection;
             } catch (MessagingException e) {
                 // Fall through
             } catch (IOException e) {
                 // Fall through
+            } finally {
+                connection.destroyResponses();
             }
+            // Closing the connection also returns its slot; try the next one
             connection.close();
         }
-
-        if (connection == null) {
-            connection = new ImapConnection(this);
-        }
-        return connection;
     }
 
     /**
@@ -579,7 +744,56 @@ public class ImapStore extends Store {
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
             connection.destroyResponses();
-            mConnectionPool.add(connection);
+            ImapConnection extra = null;
+            synchronized (mPoolLock) {
+                releaseConnectionLocked(connection);
+                connection.mLastUsedTime = SystemClock.elapsedRealtime();
+                mConnectionPool.addFirst(connection);
+                if (mConnectionPool.size() > MAX_CONNECTIONS) {
+                    // Only happens if we had to open extra connections; drop the oldest
+                    extra = mConnectionPool.pollLast();
+                    mPoolEvictions++;
+                }
+                mPoolLock.notifyAll();
+            }
+            if (extra != null) {
+                extra.close();
+            }
+        }
+    }
+
+    /**
+     * Called when a connection is closed, so that a connection taken from the pool and closed
+     * (e.g. after an error) rather than returned no longer counts as in use.
+     */
+    void onConnectionClosed(ImapConnection connection) {
+        synchronized (mPoolLock) {
+            if (releaseConnectionLocked(connection)) {
+                mPoolLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean releaseConnectionLocked(ImapConnection connection) {
+        if (!connection.mCheckedOut) {
+            return false;
+        }
+        connection.mCheckedOut = false;
+        mConnectionsInUse--;
+        return true;
+    }
+
+    /**
+     * Removes connections that have been idle longer than {@link #CONNECTION_EVICT_MILLIS} from
+     * the pool, adding them to {@code evicted} to be closed outside the lock.
+     */
+    private void evictIdleConnectionsLocked(List<ImapConnection> evicted) {
+        final long now = SystemClock.elapsedRealtime();
+        ImapConnection oldest;
+        while ((oldest = mConnectionPool.peekLast()) != null
+                && now - oldest.mLastUsedTime > CONNECTION_EVICT_MILLIS) {
+            evicted.add(mConnectionPool.pollLast());
+            mPoolEvictions++;
         }
     }
 
@@ -632,6 +846,18 @@ public class ImapStore extends Store {
         return sb.toString();
     }
 
+    /**
+     * @return the UIDs of {@code messages} as UID sets, using ranges where possible.  Large sets
+     * are split so that each one fits in a command line.
+     */
+    static List<String> getMessageUidSets(Message[] messages) {
+        final ImapUidSetBuilder builder = new ImapUidSetBuilder();
+        for (Message m : messages) {
+            builder.add(m.getUid());
+        }
+        return builder.build();
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, ImapFolder folder) {
             mUid = uid;
@@ -647,6 +873,23 @@ public class ImapStore extends Store {
             super.parse(in);
         }
 
+        /**
+         * Parses the Date header with {@link ImapDateParser}, which is much cheaper than the
+         * generic header parser.  Dates it can't parse, and messages without one, are left to
+         * {@link MimeMessage#getSentDate}.
+         */
+        @Override
+        public Date getSentDate() throws MessagingException {
+            final String[] date = getHeader("Date");
+            if (date != null && date.length > 0) {
+                final long millis = ImapDateParser.parseRfc2822Date(date[0]);
+                if (millis != ImapDateParser.INVALID) {
+                    return new Date(millis);
+                }
+            }
+            return super.getSentDate();
+        }
+
         public void setFlagInternal(Flag flag, boolean set) throws MessagingException {
             super.setFlag(flag, set);
         }
@@ -687,8 +930,12 @@ public class ImapStore extends Store {
     }
 
     public void closeConnections() {
-        ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
+        final ArrayList<ImapConnection> connections;
+        synchronized (mPoolLock) {
+            connections = new ArrayList<ImapConnection>(mConnectionPool);
+            mConnectionPool.clear();
+        }
+        for (ImapConnection connection : connections) {
             connection.close();
         }
     }
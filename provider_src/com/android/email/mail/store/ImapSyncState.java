@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.text.TextUtils;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * The state of an IMAP mailbox as of its last successful sync.  IMAP doesn't otherwise use
+ * {@link com.android.emailcommon.provider.Mailbox#mSyncKey}, so the state is kept there, encoded
+ * as a list of "key=value" pairs separated by ';'.  Unknown keys are ignored, so that newer
+ * versions can add to the state without breaking older ones.
+ */
+public class ImapSyncState {
+    private static final String KEY_UID_VALIDITY = "v";
+    private static final String KEY_UID_NEXT = "n";
+    private static final String KEY_HIGHEST_MOD_SEQ = "m";
+
+    /** The UIDVALIDITY of the mailbox, or 0 if unknown */
+    public long mUidValidity;
+    /** The UIDNEXT of the mailbox, or 0 if unknown */
+    public long mUidNext;
+    /** The HIGHESTMODSEQ of the mailbox (RFC 7162), or 0 if unknown or not supported */
+    public long mHighestModSeq;
+
+    /**
+     * Parses a sync key written by {@link #toSyncKey}.  Anything that can't be parsed, including
+     * a null or initial ("0") sync key, results in an empty state.
+     */
+    public static ImapSyncState fromSyncKey(String syncKey) {
+        final ImapSyncState state = new ImapSyncState();
+        if (TextUtils.isEmpty(syncKey)) {
+            return state;
+        }
+        for (String item : syncKey.split(";")) {
+            final int index = item.indexOf('=');
+            if (index <= 0) {
+                continue;
+            }
+            final String key = item.substring(0, index);
+            final long value;
+            try {
+                value = Long.parseLong(item.substring(index + 1));
+            } catch (NumberFormatException e) {
+                LogUtils.d(Logging.LOG_TAG, "Invalid sync key item %s", item);
+                continue;
+            }
+            if (KEY_UID_VALIDITY.equals(key)) {
+                state.mUidValidity = value;
+            } else if (KEY_UID_NEXT.equals(key)) {
+                state.mUidNext = value;
+            } else if (KEY_HIGHEST_MOD_SEQ.equals(key)) {
+                state.mHighestModSeq = value;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return the state encoded for {@link com.android.emailcommon.provider.Mailbox#mSyncKey}.
+     */
+    public String toSyncKey() {
+        return KEY_UID_VALIDITY + "=" + mUidValidity + ";" + KEY_UID_NEXT + "=" + mUidNext + ";"
+                + KEY_HIGHEST_MOD_SEQ + "=" + mHighestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return toSyncKey();
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+/**
+ * Parses the dates we get from IMAP servers into milliseconds since the epoch: INTERNALDATE
+ * (RFC 3501), e.g. "17-May-2010 22:00:15 +0000", and Date headers (RFC 5322, including the
+ * obsolete forms of RFC 2822 4.3), e.g. "Mon, 17 May 2010 14:59:52 -0700 (PDT)".
+ *
+ * <p>Unlike SimpleDateFormat, this doesn't allocate anything, doesn't depend on the default
+ * locale or time zone, and is safe to use from several threads at once, as there's no state.
+ * Dates it can't make sense of give {@link #INVALID}, so that callers can fall back to a more
+ * forgiving parser.
+ */
+public final class ImapDateParser {
+    private ImapDateParser() {}
+
+    /** Returned for a date that can't be parsed */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+    /** Zone names from RFC 2822 4.3, plus UTC, and their offsets in minutes */
+    private static final String[] ZONE_NAMES = {
+        "UT", "UTC", "GMT", "Z", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT"
+    };
+    private static final int[] ZONE_OFFSETS = {
+        0, 0, 0, 0, -5 * 60, -4 * 60, -6 * 60, -5 * 60, -7 * 60, -6 * 60, -8 * 60, -7 * 60
+    };
+
+    /**
+     * Parses an INTERNALDATE.
+     * <pre>
+     * date-time       = DQUOTE date-day-fixed "-" date-month "-" date-year
+     *                   SP time SP zone DQUOTE
+     * </pre>
+     *
+     * @return the date in milliseconds since the epoch, or {@link #INVALID}.
+     */
+    public static long parseInternalDate(String s) {
+        if (s == null) {
+            return INVALID;
+        }
+        final int length = s.length();
+        // date-day-fixed may be padded with a space
+        int pos = skipSpaces(s, 0, length);
+        int end = digitsEnd(s, pos, length);
+        if (end == pos || end - pos > 2 || !isChar(s, end, length, '-')) {
+            return INVALID;
+        }
+        final int day = parseInt(s, pos, end);
+        pos = end + 1;
+
+        final int month = parseMonth(s, pos, length);
+        if (month < 0 || !isChar(s, pos + 3, length, '-')) {
+            return INVALID;
+        }
+        pos += 4;
+
+        end = digitsEnd(s, pos, length);
+        if (end - pos != 4) {
+            return INVALID;
+        }
+        final int year = parseInt(s, pos, end);
+        pos = skipSpaces(s, end, length);
+
+        end = timeEnd(s, pos, length);
+        if (end == pos) {
+            return INVALID;
+        }
+        final int hour = parseInt(s, pos, pos + 2);
+        final int minute = parseInt(s, pos + 3, pos + 5);
+        final int second = parseInt(s, pos + 6, pos + 8);
+        pos = skipSpaces(s, end, length);
+
+        final int zone = parseZone(s, pos, length, true);
+        if (zone == Integer.MIN_VALUE) {
+            return INVALID;
+        }
+        return toMillis(year, month, day, hour, minute, second, zone);
+    }
+
+    /**
+     * Parses the value of a Date header.  As well as what RFC 5322 allows, this accepts what
+     * mailers actually send: no day of the week or no comma after it, full or lowercase month
+     * names, "-" between the day, month and year, two and three digit years, no seconds,
+     * fractions of a second, named zones, no zone at all (taken as UTC), comments, and the
+     * asctime() format, e.g. "Mon May 17 14:59:52 2010".
+     *
+     * @return the date in milliseconds since the epoch, or {@link #INVALID}.
+     */
+    public static long parseRfc2822Date(String s) {
+        if (s == null) {
+            return INVALID;
+        }
+        final int length = s.length();
+        int pos = skipCfws(s, 0, length);
+
+        // Optional day of the week, which is ignored.  If it's a month, this is asctime().
+        if (isLetter(s, pos, length)) {
+            if (parseMonth(s, pos, length) >= 0) {
+                return parseAsctime(s, pos, length);
+            }
+            pos = skipCfws(s, lettersEnd(s, pos, length), length);
+            if (isChar(s, pos, length, ',')) {
+                pos = skipCfws(s, pos + 1, length);
+            }
+            if (isLetter(s, pos, length)) {
+                return parseAsctime(s, pos, length);
+            }
+        }
+
+        int end = digitsEnd(s, pos, length);
+        if (end == pos || end - pos > 2) {
+            return INVALID;
+        }
+        final int day = parseInt(s, pos, end);
+        pos = skipDateSeparator(s, end, length);
+
+        final int month = parseMonth(s, pos, length);
+        if (month < 0) {
+            return INVALID;
+        }
+        pos = skipDateSeparator(s, lettersEnd(s, pos, length), length);
+
+        end = digitsEnd(s, pos, length);
+        if (end - pos < 2 || end - pos > 4) {
+            return INVALID;
+        }
+        final int year = fixYear(parseInt(s, pos, end), end - pos);
+        pos = skipCfws(s, end, length);
+
+        return parseTimeAndZone(s, pos, length, year, month, day);
+    }
+
+    /**
+     * Parses the rest of an asctime() date, from the month on: "May 17 14:59:52 2010".
+     */
+    private static long parseAsctime(String s, int pos, int length) {
+        final int month = parseMonth(s, pos, length);
+        if (month < 0) {
+            return INVALID;
+        }
+        pos = skipCfws(s, lettersEnd(s, pos, length), length);
+
+        int end = digitsEnd(s, pos, length);
+        if (end == pos || end - pos > 2) {
+            return INVALID;
+        }
+        final int day = parseInt(s, pos, end);
+        pos = skipCfws(s, end, length);
+
+        final int timeEnd = timeEnd(s, pos, length);
+        if (timeEnd == pos) {
+            return INVALID;
+        }
+        final int timePos = pos;
+        pos = skipCfws(s, timeEnd, length);
+
+        // Some add a zone before the year
+        int zone = 0;
+        if (isLetter(s, pos, length)) {
+            zone = parseZone(s, pos, length, false);
+            if (zone == Integer.MIN_VALUE) {
+                zone = 0;
+            }
+            pos = skipCfws(s, lettersEnd(s, pos, length), length);
+        }
+
+        end = digitsEnd(s, pos, length);
+        if (end - pos != 4) {
+            return INVALID;
+        }
+        final int year = parseInt(s, pos, end);
+        return toMillis(year, month, day, parseInt(s, timePos, timePos + 2),
+                parseInt(s, timePos + 3, timePos + 5), parseInt(s, timePos + 6, timePos + 8),
+                zone);
+    }
+
+    /**
+     * Parses "hh:mm[:ss[.fff]] [zone]" and returns the date, given the rest of it.
+     */
+    private static long parseTimeAndZone(String s, int pos, int length, int year, int month,
+            int day) {
+        // The hour may be a single digit
+        int end = digitsEnd(s, pos, length);
+        if (end == pos || end - pos > 2 || !isChar(s, end, length, ':')) {
+            return INVALID;
+        }
+        final int hour = parseInt(s, pos, end);
+        pos = end + 1;
+
+        end = digitsEnd(s, pos, length);
+        if (end - pos != 2) {
+            return INVALID;
+        }
+        final int minute = parseInt(s, pos, end);
+        pos = end;
+
+        int second = 0;
+        if (isChar(s, pos, length, ':')) {
+            end = digitsEnd(s, pos + 1, length);
+            if (end != pos + 3) {
+                return INVALID;
+            }
+            second = parseInt(s, pos + 1, end);
+            pos = end;
+            // Fractions of a second
+            if (isChar(s, pos, length, '.')) {
+                pos = digitsEnd(s, pos + 1, length);
+            }
+        }
+        pos = skipCfws(s, pos, length);
+
+        int zone = 0;
+        if (pos < length) {
+            zone = parseZone(s, pos, length, false);
+            if (zone == Integer.MIN_VALUE) {
+                // Unknown zones are taken as UTC (RFC 2822 4.3)
+                zone = 0;
+            }
+        }
+        return toMillis(year, month, day, hour, minute, second, zone);
+    }
+
+    /**
+     * @return the end of "hh:mm:ss" starting at {@code pos}, or {@code pos} if there isn't one.
+     * Fractions of a second are included.
+     */
+    private static int timeEnd(String s, int pos, int length) {
+        if (digitsEnd(s, pos, length) != pos + 2 || !isChar(s, pos + 2, length, ':')
+                || digitsEnd(s, pos + 3, length) != pos + 5 || !isChar(s, pos + 5, length, ':')
+                || digitsEnd(s, pos + 6, length) != pos + 8) {
+            return pos;
+        }
+        int end = pos + 8;
+        if (isChar(s, end, length, '.')) {
+            end = digitsEnd(s, end + 1, length);
+        }
+        return end;
+    }
+
+    /**
+     * Parses a zone: "+hhmm", "-hhmm", "+hh:mm", or a name from {@link #ZONE_NAMES}.  Other
+     * single letters are military zones, which RFC 2822 says to take as UTC.
+     *
+     * @param numericOnly whether only a numeric zone is allowed, as in INTERNALDATE.
+     * @return the offset in minutes, or {@link Integer#MIN_VALUE} if it can't be parsed.
+     */
+    private static int parseZone(String s, int pos, int length, boolean numericOnly) {
+        if (isChar(s, pos, length, '+') || isChar(s, pos, length, '-')) {
+            final int sign = (s.charAt(pos) == '-') ? -1 : 1;
+            pos++;
+            int end = digitsEnd(s, pos, length);
+            int hours;
+            int minutes = 0;
+            if (end - pos == 4) {
+                hours = parseInt(s, pos, pos + 2);
+                minutes = parseInt(s, pos + 2, end);
+            } else if (end - pos == 2 || end - pos == 1) {
+                hours = parseInt(s, pos, end);
+                if (isChar(s, end, length, ':') && digitsEnd(s, end + 1, length) == end + 3) {
+                    minutes = parseInt(s, end + 1, end + 3);
+                }
+            } else {
+                return Integer.MIN_VALUE;
+            }
+            if (minutes > 59) {
+                return Integer.MIN_VALUE;
+            }
+            return sign * (hours * 60 + minutes);
+        }
+        if (numericOnly) {
+            return Integer.MIN_VALUE;
+        }
+        final int end = lettersEnd(s, pos, length);
+        final int nameLength = end - pos;
+        if (nameLength == 0) {
+            return Integer.MIN_VALUE;
+        }
+        for (int i = 0; i < ZONE_NAMES.length; i++) {
+            final String name = ZONE_NAMES[i];
+            if (name.length() == nameLength && s.regionMatches(true, pos, name, 0, nameLength)) {
+                return ZONE_OFFSETS[i];
+            }
+        }
+        if (nameLength == 1) {
+            return 0;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the month (0 for January) named by the three letters at {@code pos}, or -1.
+     */
+    private static int parseMonth(String s, int pos, int length) {
+        if (pos + 3 > length) {
+            return -1;
+        }
+        for (int i = 0; i < 12; i++) {
+            if (s.regionMatches(true, pos, MONTHS, i * 3, 3)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the four digit year for a year with {@code digits} digits (RFC 2822 4.3).
+     */
+    private static int fixYear(int year, int digits) {
+        if (digits == 2) {
+            return (year < 50) ? year + 2000 : year + 1900;
+        }
+        if (digits == 3) {
+            return year + 1900;
+        }
+        return year;
+    }
+
+    /**
+     * @return the date in milliseconds since the epoch, or {@link #INVALID} if a field is out of
+     * range.  As with a lenient Calendar, a day past the end of the month moves into the next.
+     */
+    private static long toMillis(int year, int month, int day, int hour, int minute, int second,
+            int zoneMinutes) {
+        if (day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60
+                || zoneMinutes == Integer.MIN_VALUE) {
+            return INVALID;
+        }
+        final long days = daysFromCivil(year, month + 1, day);
+        return ((days * 24 + hour) * 60 + minute - zoneMinutes) * 60000L + second * 1000L;
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to the given date in the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        final int era = (year >= 0 ? year : year - 399) / 400;
+        final int yearOfEra = year - era * 400;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /** Skips the space, "-" or "/" between the day, month and year, plus any whitespace. */
+    private static int skipDateSeparator(String s, int pos, int length) {
+        pos = skipCfws(s, pos, length);
+        if (isChar(s, pos, length, '-') || isChar(s, pos, length, '/')) {
+            pos = skipCfws(s, pos + 1, length);
+        }
+        return pos;
+    }
+
+    /** Skips whitespace (including folding) and comments, which may be nested. */
+    private static int skipCfws(String s, int pos, int length) {
+        int depth = 0;
+        while (pos < length) {
+            final char c = s.charAt(pos);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && depth > 0) {
+                depth--;
+            } else if (depth == 0 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipSpaces(String s, int pos, int length) {
+        while (pos < length && s.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int digitsEnd(String s, int pos, int length) {
+        while (isDigit(s, pos, length)) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int lettersEnd(String s, int pos, int length) {
+        while (isLetter(s, pos, length)) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /** Parses the digits from {@code start} to {@code end}, which must all be digits. */
+    private static int parseInt(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static boolean isChar(String s, int pos, int length, char c) {
+        return pos < length && s.charAt(pos) == c;
+    }
+
+    private static boolean isDigit(String s, int pos, int length) {
+        if (pos >= length) {
+            return false;
+        }
+        final char c = s.charAt(pos);
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(String s, int pos, int length) {
+        if (pos >= length) {
+            return false;
+        }
+        final char c = s.charAt(pos);
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -112,7 +112,7 @@ public class ImapList extends ImapElement {
      * Return an element keyed by {@code key}.  Return null if not found.  {@code key} has to be
      * at an even index.
      */
-    /* package */ final ImapElement getKeyedElementOrNull(String key, boolean prefixMatch) {
+    public final ImapElement getKeyedElementOrNull(String key, boolean prefixMatch) {
         for (int i = 1; i < size(); i += 2) {
             if (is(i-1, key, prefixMatch)) {
                 return mList.get(i);
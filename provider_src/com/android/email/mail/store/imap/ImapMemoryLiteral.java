@@ -64,6 +64,18 @@ public class ImapMemoryLiteral extends ImapString {
         return new ByteArrayInputStream(mData);
     }
 
+    @Override
+    /* package */ boolean equalsIgnoreCase(String s) {
+        // Compare the bytes, so that we don't decode the whole literal just to compare it with
+        // a (usually short, ASCII) keyword.
+        return (mData.length == s.length()) && regionMatchesIgnoreCase(mData, 0, s);
+    }
+
+    @Override
+    /* package */ boolean startsWithIgnoreCase(String prefix) {
+        return (mData.length >= prefix.length()) && regionMatchesIgnoreCase(mData, 0, prefix);
+    }
+
     @Override
     public String toString() {
         return String.format("{%d byte literal(memory)}", mData.length);
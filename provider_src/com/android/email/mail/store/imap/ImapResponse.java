@@ -44,6 +44,13 @@ public class ImapResponse extends ImapList {
         return mTag != null;
     }
 
+    /**
+     * @return the tag of a tagged response, or null.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a continuation request.
      */
@@ -52,7 +59,13 @@ public class ImapResponse extends ImapList {
     }
 
     public boolean isStatusResponse() {
-        return isStatusResponse(getStringOrEmpty(0).getString());
+        // Same as isStatusResponse(String), without decoding the symbol.
+        final ImapString symbol = getStringOrEmpty(0);
+        return symbol.is(ImapConstants.OK)
+                || symbol.is(ImapConstants.NO)
+                || symbol.is(ImapConstants.BAD)
+                || symbol.is(ImapConstants.PREAUTH)
+                || symbol.is(ImapConstants.BYE);
     }
 
     /**
@@ -16,11 +16,8 @@
 
 package com.android.email.mail.store.imap;
 
-import android.text.TextUtils;
-
 import com.android.email.DebugUtils;
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
@@ -33,6 +30,11 @@ import java.util.ArrayList;
 
 /**
  * IMAP response parser.
+ *
+ * <p>The parser reads the stream through its own buffer, and copies atoms and quoted strings into
+ * a token buffer that is shared by all the responses until {@link #destroyResponses()}.  The
+ * {@link ImapSimpleString}s it creates refer to ranges of that buffer and are decoded lazily, so
+ * parsing a large FETCH response doesn't create a String for every element.
  */
 public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
@@ -42,8 +44,69 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final int TOKEN_BUFFER_INITIAL_SIZE = 1024;
+
+    /**
+     * When the token buffer has grown larger than this, it's released in
+     * {@link #destroyResponses()} rather than reused.
+     */
+    private static final int TOKEN_BUFFER_MAX_KEEP_SIZE = 64 * 1024;
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /** Bytes read from {@link #mIn}; the bytes from {@link #mReadPos} to {@link #mReadLimit} are
+     * yet to be parsed. */
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private int mReadPos;
+    private int mReadLimit;
+
+    /** Position in {@link #mReadBuffer} up to which the bytes have been logged. */
+    private int mLogPos;
+
+    /**
+     * Atoms and quoted strings of the responses that have not been destroyed yet.  When it needs
+     * to grow, a new array is allocated, so existing {@link ImapSimpleString}s keep referring to
+     * the old one.
+     */
+    private byte[] mTokenBuffer = new byte[TOKEN_BUFFER_INITIAL_SIZE];
+    private int mTokenLength;
+
+    /**
+     * Stream used to read literals: it returns what's left in {@link #mReadBuffer} first.
+     * Literals are not logged.
+     */
+    private final InputStream mLiteralIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mReadPos == mReadLimit && !fillLiteral()) {
+                return -1;
+            }
+            return mReadBuffer[mReadPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mReadPos == mReadLimit) {
+                if (length >= mReadBuffer.length) {
+                    // Large read; no point in copying it through the buffer.
+                    return mIn.read(b, offset, length);
+                }
+                if (!fillLiteral()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(length, mReadLimit - mReadPos);
+            System.arraycopy(mReadBuffer, mReadPos, b, offset, count);
+            mReadPos += count;
+            return count;
+        }
+    };
 
     /**
      * To log network activities when the parser crashes.
@@ -54,18 +117,31 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
-
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
-
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
      * time to time to destroy them and clear it.
      */
     private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+    /**
+     * Receives body literals straight from the network, instead of them being stored in
+     * {@link ImapMemoryLiteral}s or {@link ImapTempFileLiteral}s.  See {@link #setLiteralSink}.
+     */
+    public interface LiteralSink {
+        /**
+         * Called for a literal keyed by "BODY[...]" or "BINARY[...]" in a FETCH response.  Whatever isn't read
+         * from {@code in} is skipped afterwards.  The literal is replaced with
+         * {@link ImapString#EMPTY} in the response.
+         *
+         * @param in the literal.
+         * @param size the size of the literal in bytes.
+         */
+        void onLiteral(InputStream in, int size) throws IOException;
+    }
+
+    /** If not null, body literals are passed to it rather than stored. */
+    private LiteralSink mLiteralSink;
+
     /**
      * Exception thrown when we receive BYE.  It derives from IOException, so it'll be treated
      * in the same way EOF does.
@@ -92,11 +168,18 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
 
+    /**
+     * Set a {@link LiteralSink} to receive body literals, or null to store them as usual.
+     */
+    public void setLiteralSink(LiteralSink sink) {
+        mLiteralSink = sink;
+    }
+
     private static IOException newEOSException() {
         final String message = "End of stream reached";
         if (DebugUtils.DEBUG) {
@@ -105,6 +188,49 @@ public class ImapResponseParser {
         return new IOException(message);
     }
 
+    /**
+     * Put the bytes consumed since the last call in {@link #mDiscourseLogger}.
+     */
+    private void flushLog() {
+        if (mLogPos < mReadPos) {
+            mDiscourseLogger.addReceivedBytes(mReadBuffer, mLogPos, mReadPos - mLogPos);
+        }
+        mLogPos = mReadPos;
+    }
+
+    /**
+     * Refill {@link #mReadBuffer}, which must have been fully consumed.
+     *
+     * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
+     * we shouldn't see EOF during parsing.
+     */
+    private void fill() throws IOException {
+        flushLog();
+        final int count = mIn.read(mReadBuffer, 0, mReadBuffer.length);
+        if (count <= 0) {
+            throw newEOSException();
+        }
+        mReadPos = 0;
+        mReadLimit = count;
+        mLogPos = 0;
+    }
+
+    /**
+     * Refill {@link #mReadBuffer} in the middle of a literal, without logging the consumed bytes.
+     *
+     * @return false if reaches EOF.
+     */
+    private boolean fillLiteral() throws IOException {
+        final int count = mIn.read(mReadBuffer, 0, mReadBuffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        mReadPos = 0;
+        mReadLimit = count;
+        mLogPos = 0;
+        return true;
+    }
+
     /**
      * Peek next one byte.
      *
@@ -112,26 +238,58 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
-            throw newEOSException();
+        if (mReadPos == mReadLimit) {
+            fill();
         }
-        return next;
+        return mReadBuffer[mReadPos] & 0xff;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Read and return one byte from {@link #mIn}.  It'll be put in {@link #mDiscourseLogger}
+     * by {@link #flushLog()}.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
+        if (mReadPos == mReadLimit) {
+            fill();
+        }
+        return mReadBuffer[mReadPos++] & 0xff;
+    }
+
+    /** Append a byte to {@link #mTokenBuffer}. */
+    private void appendToken(int b) {
+        if (mTokenLength == mTokenBuffer.length) {
+            growTokenBuffer(1);
+        }
+        mTokenBuffer[mTokenLength++] = (byte) b;
+    }
+
+    /** Append {@code length} bytes of {@code b} to {@link #mTokenBuffer}. */
+    private void appendToken(byte[] b, int offset, int length) {
+        if (mTokenLength + length > mTokenBuffer.length) {
+            growTokenBuffer(length);
         }
-        mDiscourseLogger.addReceivedByte(next);
-        return next;
+        System.arraycopy(b, offset, mTokenBuffer, mTokenLength, length);
+        mTokenLength += length;
+    }
+
+    private void growTokenBuffer(int minExtra) {
+        final int newSize = Math.max(mTokenBuffer.length * 2, mTokenLength + minExtra);
+        final byte[] newBuffer = new byte[newSize];
+        System.arraycopy(mTokenBuffer, 0, newBuffer, 0, mTokenLength);
+        mTokenBuffer = newBuffer;
+    }
+
+    /**
+     * Blocks until the next response starts to arrive, without consuming any of it.
+     *
+     * Unlike {@link #readResponse()}, a socket timeout thrown from here leaves the parser in a
+     * clean state, so it can be used to wait for unsolicited responses, e.g. during IDLE.
+     */
+    public void waitForResponse() throws IOException {
+        peek();
     }
 
     /**
@@ -144,6 +302,12 @@ public class ImapResponseParser {
             r.destroy();
         }
         mResponsesToDestroy.clear();
+
+        // No one refers to the token buffer any more.
+        mTokenLength = 0;
+        if (mTokenBuffer.length > TOKEN_BUFFER_MAX_KEEP_SIZE) {
+            mTokenBuffer = new byte[TOKEN_BUFFER_INITIAL_SIZE];
+        }
     }
 
     /**
@@ -161,6 +325,7 @@ public class ImapResponseParser {
         ImapResponse response = null;
         try {
             response = parseResponse();
+            flushLog();
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, "<<< " + response.toString());
             }
@@ -201,6 +366,7 @@ public class ImapResponseParser {
             }
         } catch (IOException ignore) {
         }
+        flushLog();
         LogUtils.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
         mDiscourseLogger.logLastDiscourse();
     }
@@ -218,28 +384,50 @@ public class ImapResponseParser {
     }
 
     /**
-     * Read bytes until we find {@code end}, and return all as string.
-     * The {@code end} will be read (rather than peeked) and won't be included in the result.
+     * Read bytes until we find {@code end}, and append them to {@link #mTokenBuffer}.
+     * The {@code end} will be read (rather than peeked) and won't be appended.
+     *
+     * @return the number of bytes appended.
      */
-    /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+    private int readTokenUntil(char end) throws IOException {
+        final int start = mTokenLength;
+        final byte endByte = (byte) end;
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            if (mReadPos == mReadLimit) {
+                fill();
+            }
+            int pos = mReadPos;
+            while (pos < mReadLimit && mReadBuffer[pos] != endByte) {
+                pos++;
+            }
+            appendToken(mReadBuffer, mReadPos, pos - mReadPos);
+            if (pos < mReadLimit) {
+                mReadPos = pos + 1; // Skip end
+                return mTokenLength - start;
             }
+            mReadPos = pos;
         }
     }
 
     /**
-     * Read all bytes until \r\n.
+     * Read bytes until we find {@code end}, and return all as string.
+     * The {@code end} will be read (rather than peeked) and won't be included in the result.
+     */
+    /* package for test */ String readUntil(char end) throws IOException {
+        final int start = mTokenLength;
+        final int length = readTokenUntil(end);
+        mTokenLength = start; // We don't keep it in the token buffer.
+        return ImapString.decode(mTokenBuffer, start, length);
+    }
+
+    /**
+     * Read all bytes until \r\n, and return them as a string in the token buffer.
      */
-    /* package */ String readUntilEol() throws IOException {
-        String ret = readUntil('\r');
+    private ImapString readStringUntilEol() throws IOException {
+        final int start = mTokenLength;
+        final int length = readTokenUntil('\r');
         expect('\n'); // TODO Should this really be error?
-        return ret;
+        return new ImapSimpleString(mTokenBuffer, start, length);
     }
 
     /**
@@ -263,7 +451,7 @@ public class ImapResponseParser {
                 responseToDestroy = new ImapResponse(null, true);
 
                 // If it's continuation request, we don't really care what's in it.
-                responseToDestroy.add(new ImapSimpleString(readUntilEol()));
+                responseToDestroy.add(readStringUntilEol());
 
                 // Response has successfully been built.  Let's return it.
                 responseToReturn = responseToDestroy;
@@ -300,10 +488,13 @@ public class ImapResponseParser {
                             }
                         }
 
-                        String rest = readUntilEol();
-                        if (!TextUtils.isEmpty(rest)) {
+                        final int start = mTokenLength;
+                        final int length = readTokenUntil('\r');
+                        expect('\n'); // TODO Should this really be error?
+                        if (length > 0) {
                             // The rest is free-form text.
-                            responseToDestroy.add(new ImapSimpleString(rest));
+                            responseToDestroy.add(
+                                    new ImapSimpleString(mTokenBuffer, start, length));
                         }
                     } else { // It's a response data.
                         parseElements(responseToDestroy, '\0');
@@ -334,9 +525,12 @@ public class ImapResponseParser {
                 return parseList('(', ')');
             case '[':
                 return parseList('[', ']');
-            case '"':
+            case '"': {
                 readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                final int start = mTokenLength;
+                final int length = readTokenUntil('"');
+                return new ImapSimpleString(mTokenBuffer, start, length);
+            }
             case '{':
                 return parseLiteral();
             case '\r':  // CR
@@ -359,9 +553,12 @@ public class ImapResponseParser {
      * (e.g. "BODY[HEADER.FIELDS ("DATE" ...)]" will become a single ImapString)
      *
      * If the value is "NIL", returns an empty string.
+     *
+     * Special case: "~" followed by "{" starts a literal8 (RFC 3516), which is parsed like any
+     * other literal.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        final int start = mTokenLength;
         for (;;) {
             final int ch = peek();
 
@@ -378,23 +575,30 @@ public class ImapResponseParser {
                     // it as a flag instead
                     // ch == '"' || ch == '\' ||
                     ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
+                final int length = mTokenLength - start;
+                if (length == 0) {
                     throw new MessagingException("Expected string, none found.");
                 }
-                String s = mParseBareString.toString();
+                if (ch == '{' && length == 1 && mTokenBuffer[start] == '~') {
+                    mTokenLength = start;
+                    return parseLiteral();
+                }
 
                 // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                if (length == ImapConstants.NIL.length()
+                        && ImapString.regionMatchesIgnoreCase(mTokenBuffer, start,
+                                ImapConstants.NIL)) {
+                    mTokenLength = start;
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return new ImapSimpleString(mTokenBuffer, start, length);
             } else if (ch == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                appendToken(readByte());
+                readTokenUntil(']');
+                appendToken(']'); // readTokenUntil won't include the end char.
             } else {
-                mParseBareString.append((char) readByte());
+                appendToken(readByte());
             }
         }
     }
@@ -413,7 +617,15 @@ public class ImapResponseParser {
                 // Skip space
                 readByte();
             }
-            final ImapElement el = parseElement();
+            final ImapElement el;
+            if (mLiteralSink != null && (peek() == '{' || peek() == '~') && isBodyKey(list)) {
+                if (peek() == '~') {
+                    readByte(); // literal8
+                }
+                el = parseLiteralToSink();
+            } else {
+                el = parseElement();
+            }
             if (el == null) { // EOL
                 return;
             }
@@ -421,6 +633,15 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * @return whether the last element of {@code list} is a key whose value is the content of a
+     *     message or body part, i.e. "BODY[...]" or "BINARY[...]".
+     */
+    private static boolean isBodyKey(ImapList list) {
+        final ImapString key = list.getStringOrEmpty(list.size() - 1);
+        return key.startsWith("BODY[") || key.startsWith("BINARY[");
+    }
+
     private ImapList parseList(char opening, char closing)
             throws IOException, MessagingException {
         expect(opening);
@@ -431,6 +652,36 @@ public class ImapResponseParser {
     }
 
     private ImapString parseLiteral() throws IOException, MessagingException {
+        final FixedLengthInputStream in = readLiteralStart();
+        final ImapString literal;
+        if (in.getLength() > mLiteralKeepInMemoryThreshold) {
+            literal = new ImapTempFileLiteral(in);
+        } else {
+            literal = new ImapMemoryLiteral(in);
+        }
+        mLogPos = mReadPos; // Don't log the literal.
+        return literal;
+    }
+
+    private ImapString parseLiteralToSink() throws IOException, MessagingException {
+        final FixedLengthInputStream in = readLiteralStart();
+        mLiteralSink.onLiteral(in, in.getLength());
+        // Skip whatever the sink didn't read.
+        while (in.available() > 0) {
+            if (in.skip(in.available()) <= 0) {
+                throw newEOSException();
+            }
+        }
+        mLogPos = mReadPos; // Don't log the literal.
+        return ImapString.EMPTY;
+    }
+
+    /**
+     * Parse the "{size}\r\n" part of a literal.
+     *
+     * @return a stream to read the literal from.
+     */
+    private FixedLengthInputStream readLiteralStart() throws IOException, MessagingException {
         expect('{');
         final int size;
         try {
@@ -443,11 +694,7 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
-            return new ImapTempFileLiteral(in);
-        } else {
-            return new ImapMemoryLiteral(in);
-        }
+        flushLog();
+        return new FixedLengthInputStream(mLiteralIn, size);
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The result of a UID SEARCH or UID SORT.  A server with ESEARCH (RFC 4731) reports the UIDs as
+ * a sequence set, e.g. "2,10:11", along with their count, and they're only expanded when they're
+ * asked for.  Otherwise they come from SEARCH or SORT responses, one number per UID.
+ */
+public class ImapSearchResult {
+    private static final long[] EMPTY_UIDS = new long[0];
+
+    /** The result of a search that found nothing */
+    public static final ImapSearchResult EMPTY =
+            new ImapSearchResult(null, EMPTY_UIDS, 0, false);
+
+    /** The ESEARCH ALL sequence set, until it's expanded into {@link #mUids} */
+    private String mSequenceSet;
+    private long[] mUids;
+    /** The ESEARCH COUNT, or -1 if the UIDs have to be counted */
+    private final int mCount;
+    /** Whether the UIDs are in the order the server sorted them in (RFC 5256) */
+    private final boolean mSorted;
+
+    private ImapSearchResult(String sequenceSet, long[] uids, int count, boolean sorted) {
+        mSequenceSet = sequenceSet;
+        mUids = uids;
+        mCount = count;
+        mSorted = sorted;
+    }
+
+    /**
+     * Builds the result from the responses to a UID SEARCH or UID SORT command, which may be
+     * SEARCH, ESEARCH or SORT responses.
+     */
+    public static ImapSearchResult fromResponses(List<ImapResponse> responses) {
+        long[] uids = EMPTY_UIDS;
+        int uidCount = 0;
+        boolean sorted = false;
+        for (ImapResponse response : responses) {
+            // S: * ESEARCH (TAG "A282") UID MIN 2 MAX 11 COUNT 3 ALL 2,10:11
+            if (response.isDataResponse(0, ImapConstants.ESEARCH)) {
+                // The keys aren't at fixed positions, so skip the tag and UID indicator and
+                // then walk the name/value pairs.
+                int i = 1;
+                if (response.getElementOrNone(i).isList()) {
+                    i++;
+                }
+                if (response.is(i, ImapConstants.UID)) {
+                    i++;
+                }
+                ImapString count = ImapString.EMPTY;
+                ImapString all = ImapString.EMPTY;
+                for (; i + 1 < response.size(); i += 2) {
+                    if (response.is(i, ImapConstants.COUNT)) {
+                        count = response.getStringOrEmpty(i + 1);
+                    } else if (response.is(i, ImapConstants.ALL)) {
+                        all = response.getStringOrEmpty(i + 1);
+                    }
+                }
+                if (all.isEmpty()) {
+                    // No messages matched
+                    return EMPTY;
+                }
+                return new ImapSearchResult(all.getString(), null,
+                        count.isNumber() ? count.getNumberOrZero() : -1, false);
+            }
+            // S: * SEARCH 2 3 6
+            // S: * SORT 6 2 3
+            if (response.isDataResponse(0, ImapConstants.SORT)) {
+                sorted = true;
+            } else if (!response.isDataResponse(0, ImapConstants.SEARCH)) {
+                continue;
+            }
+            for (int i = 1; i < response.size(); i++) {
+                final ImapString s = response.getStringOrEmpty(i);
+                if (!s.isNumber()) {
+                    continue;
+                }
+                if (uidCount == uids.length) {
+                    uids = Arrays.copyOf(uids, Math.max(16, uidCount * 2));
+                }
+                uids[uidCount++] = s.getLongOrZero();
+            }
+        }
+        return new ImapSearchResult(null, Arrays.copyOf(uids, uidCount), -1, sorted);
+    }
+
+    /**
+     * @return the number of UIDs found.  With ESEARCH this doesn't expand the UIDs.
+     */
+    public int getCount() {
+        if (mCount >= 0) {
+            return mCount;
+        }
+        return getUids().length;
+    }
+
+    /**
+     * @return whether the UIDs are in the order the server sorted them in, i.e. the result of a
+     * UID SORT.  Otherwise the order has no meaning.
+     */
+    public boolean isSorted() {
+        return mSorted;
+    }
+
+    /**
+     * @return the UIDs found, in the order the server reported them.  The array is shared, so
+     * it must not be modified.
+     */
+    public long[] getUids() {
+        if (mUids == null) {
+            mUids = ImapUtility.getImapSequenceLongs(mSequenceSet);
+            mSequenceSet = null;
+        }
+        return mUids;
+    }
+
+    /**
+     * @return the UIDs found as strings, e.g. for creating messages.
+     */
+    public String[] getUidStrings() {
+        final long[] uids = getUids();
+        final String[] strings = new String[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            strings[i] = Long.toString(uids[i]);
+        }
+        return strings;
+    }
+}
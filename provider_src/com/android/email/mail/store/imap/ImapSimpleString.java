@@ -23,33 +23,69 @@ import java.io.InputStream;
 
 /**
  * Subclass of {@link ImapString} used for non literals.
+ *
+ * <p>Strings created by {@link ImapResponseParser} refer to a range of the parser's token buffer,
+ * and are decoded only when {@link #getString} is called.  The range stays valid until the
+ * response is destroyed.
  */
 public class ImapSimpleString extends ImapString {
     private String mString;
+    private byte[] mData;
+    private int mOffset;
+    private int mLength;
 
     /* package */  ImapSimpleString(String string) {
         mString = (string != null) ? string : "";
     }
 
+    /* package */ ImapSimpleString(byte[] data, int offset, int length) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+    }
+
     @Override
     public void destroy() {
         mString = null;
+        mData = null;
         super.destroy();
     }
 
     @Override
     public String getString() {
+        if (mString == null && mData != null) {
+            mString = decode(mData, mOffset, mLength);
+        }
         return mString;
     }
 
     @Override
     public InputStream getAsStream() {
+        if (mData != null) {
+            return new ByteArrayInputStream(mData, mOffset, mLength);
+        }
         return new ByteArrayInputStream(Utility.toAscii(mString));
     }
 
+    @Override
+    /* package */ boolean equalsIgnoreCase(String s) {
+        if (mData == null) {
+            return super.equalsIgnoreCase(s);
+        }
+        return (mLength == s.length()) && regionMatchesIgnoreCase(mData, mOffset, s);
+    }
+
+    @Override
+    /* package */ boolean startsWithIgnoreCase(String prefix) {
+        if (mData == null) {
+            return super.startsWithIgnoreCase(prefix);
+        }
+        return (mLength >= prefix.length()) && regionMatchesIgnoreCase(mData, mOffset, prefix);
+    }
+
     @Override
     public String toString() {
         // Purposefully not return just mString, in order to prevent using it instead of getString.
-        return "\"" + mString + "\"";
+        return "\"" + getString() + "\"";
     }
 }
@@ -21,10 +21,7 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
 /**
  * Class represents an IMAP "element" that is not a list.
@@ -55,12 +52,6 @@ public abstract class ImapString extends ImapElement {
         }
     };
 
-    // This is used only for parsing IMAP's FETCH ENVELOPE command, in which
-    // en_US-like date format is used like "01-Jan-2009 11:20:39 -0800", so this should be
-    // handled by Locale.US
-    private final static SimpleDateFormat DATE_TIME_FORMAT =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
-
     private boolean mIsInteger;
     private int mParsedInteger;
     private Date mParsedDate;
@@ -118,7 +109,21 @@ public abstract class ImapString extends ImapElement {
     }
 
     /**
-     * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
+     * @return value parsed as a long, or 0 if it can't be parsed.  Use this rather than
+     * {@link #getNumberOrZero()} for values that may not fit in an int, such as UIDs,
+     * UIDVALIDITY or mod-sequences.
+     */
+    public final long getLongOrZero() {
+        try {
+            return Long.parseLong(getString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return whether it can be parsed as an INTERNALDATE, e.g. "01-Jan-2009 11:20:39 -0800".
+     * See {@link ImapDateParser#parseInternalDate}.
      */
     public final boolean isDate() {
         if (mParsedDate != null) {
@@ -127,13 +132,13 @@ public abstract class ImapString extends ImapElement {
         if (isEmpty()) {
             return false;
         }
-        try {
-            mParsedDate = DATE_TIME_FORMAT.parse(getString());
-            return true;
-        } catch (ParseException e) {
+        final long millis = ImapDateParser.parseInternalDate(getString());
+        if (millis == ImapDateParser.INVALID) {
             LogUtils.w(Logging.LOG_TAG, getString() + " can't be parsed as a date.");
             return false;
         }
+        mParsedDate = new Date(millis);
+        return true;
     }
 
     /**
@@ -153,7 +158,7 @@ public abstract class ImapString extends ImapElement {
         if (s == null) {
             return false;
         }
-        return getString().equalsIgnoreCase(s);
+        return equalsIgnoreCase(s);
     }
 
 
@@ -164,11 +169,59 @@ public abstract class ImapString extends ImapElement {
         if (prefix == null) {
             return false;
         }
-        final String me = this.getString();
-        if (me.length() < prefix.length()) {
+        return startsWithIgnoreCase(prefix);
+    }
+
+    /**
+     * Implementation of {@link #is}.  Subclasses that hold the raw bytes override it to compare
+     * them directly, rather than decoding the value into a String.
+     */
+    /* package */ boolean equalsIgnoreCase(String s) {
+        return getString().equalsIgnoreCase(s);
+    }
+
+    /**
+     * Implementation of {@link #startsWith}.  See {@link #equalsIgnoreCase}.
+     */
+    /* package */ boolean startsWithIgnoreCase(String prefix) {
+        final String me = getString();
+        return me.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    /**
+     * Case-insensitively compares {@code s} with the {@code s.length()} bytes of {@code data}
+     * starting at {@code offset}, each byte taken as an ISO-8859-1 char.  The caller must make sure
+     * there are enough bytes.
+     */
+    /* package */ static boolean regionMatchesIgnoreCase(byte[] data, int offset, String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c1 = (char) (data[offset + i] & 0xff);
+            final char c2 = s.charAt(i);
+            if (c1 == c2) {
+                continue;
+            }
+            // Same as String.regionMatches(true, ...)
+            final char u1 = Character.toUpperCase(c1);
+            final char u2 = Character.toUpperCase(c2);
+            if (u1 == u2 || Character.toLowerCase(u1) == Character.toLowerCase(u2)) {
+                continue;
+            }
             return false;
         }
-        return me.substring(0, prefix.length()).equalsIgnoreCase(prefix);
+        return true;
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code data} starting at {@code offset} as ISO-8859-1, which
+     * is what the parser has always done for atoms and quoted strings.
+     */
+    /* package */ static String decode(byte[] data, int offset, int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (data[offset + i] & 0xff);
+        }
+        return new String(chars);
     }
 
     // To force subclasses to implement it.
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds UID sets per RFC 3501, using ranges for consecutive UIDs, e.g. "1000:1499,1503".
+ * <pre>
+ * sequence-set    = (sequence-number / sequence-range) *("," sequence-set)
+ * </pre>
+ *
+ * <p>The UIDs can be added in any order.  {@link #build} splits the result into several sets when
+ * a single one would be longer than the maximum length, so that each can be sent in its own
+ * command without the command line getting too long for the server.
+ */
+public class ImapUidSetBuilder {
+    /**
+     * Default maximum length of a single set.  RFC 7162 recommends that clients keep command
+     * lines under 8192 octets; this leaves plenty of room for the rest of the command.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 4000;
+
+    private final int mMaxLength;
+    private long[] mUids = new long[16];
+    private int mCount;
+    /** UIDs that aren't numbers; they're added to the sets as they are. */
+    private ArrayList<String> mOthers;
+
+    public ImapUidSetBuilder() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength the maximum length of a single set.  A set holding a single item may still
+     *     be longer.
+     */
+    public ImapUidSetBuilder(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    public ImapUidSetBuilder add(long uid) {
+        if (mCount == mUids.length) {
+            mUids = Arrays.copyOf(mUids, mCount * 2);
+        }
+        mUids[mCount++] = uid;
+        return this;
+    }
+
+    public ImapUidSetBuilder add(String uid) {
+        final long value;
+        try {
+            value = Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            if (mOthers == null) {
+                mOthers = new ArrayList<String>();
+            }
+            mOthers.add(uid);
+            return this;
+        }
+        return add(value);
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0 && mOthers == null;
+    }
+
+    /**
+     * @return the UID sets, none of which is longer than the maximum length unless it holds a
+     *     single item.  Duplicate UIDs are removed.  Empty if no UIDs have been added.
+     */
+    public List<String> build() {
+        final ArrayList<String> sets = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        final long[] uids = Arrays.copyOf(mUids, mCount);
+        Arrays.sort(uids);
+        int i = 0;
+        while (i < uids.length) {
+            final long first = uids[i];
+            long last = first;
+            i++;
+            while (i < uids.length && uids[i] <= last + 1) {
+                last = uids[i];
+                i++;
+            }
+            appendItem(sets, sb, (first == last) ? Long.toString(first) : (first + ":" + last));
+        }
+        if (mOthers != null) {
+            for (String uid : mOthers) {
+                appendItem(sets, sb, uid);
+            }
+        }
+        if (sb.length() > 0) {
+            sets.add(sb.toString());
+        }
+        return sets;
+    }
+
+    private void appendItem(List<String> sets, StringBuilder sb, String item) {
+        if (sb.length() > 0) {
+            if (sb.length() + 1 + item.length() > mMaxLength) {
+                sets.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(',');
+            }
+        }
+        sb.append(item);
+    }
+}
@@ -20,6 +20,7 @@ import com.android.emailcommon.Logging;
 import com.android.mail.utils.LogUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Utility methods for use with IMAP.
@@ -72,7 +73,8 @@ public class ImapUtility {
                 if (item.indexOf(':') == -1) {
                     // simple item
                     try {
-                        Integer.parseInt(item); // Don't need the value; just ensure it's valid
+                        // UIDs can be up to 2^32 - 1, so they don't always fit in an int.
+                        Long.parseLong(item); // Don't need the value; just ensure it's valid
                         list.add(item);
                     } catch (NumberFormatException e) {
                         LogUtils.d(Logging.LOG_TAG, "Invalid UID value", e);
@@ -89,6 +91,44 @@ public class ImapUtility {
         return list.toArray(stringList);
     }
 
+    /**
+     * Like {@link #getImapSequenceValues}, but returns the values as numbers, without creating a
+     * String for each of them.  Invalid items are skipped.
+     */
+    public static long[] getImapSequenceLongs(String set) {
+        long[] values = new long[16];
+        int count = 0;
+        if (set != null) {
+            for (String item : set.split(",")) {
+                final long first;
+                final long last;
+                try {
+                    final int colonPos = item.indexOf(':');
+                    if (colonPos == -1) {
+                        first = last = Long.parseLong(item);
+                    } else {
+                        first = Long.parseLong(item.substring(0, colonPos));
+                        last = Long.parseLong(item.substring(colonPos + 1));
+                    }
+                } catch (NumberFormatException e) {
+                    LogUtils.d(Logging.LOG_TAG, "Invalid sequence set item %s", item);
+                    continue;
+                }
+                final long step = (first <= last) ? 1 : -1;
+                for (long value = first; ; value += step) {
+                    if (count == values.length) {
+                        values = Arrays.copyOf(values, count * 2);
+                    }
+                    values[count++] = value;
+                    if (value == last) {
+                        break;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
     /**
      * Expand the given number range into a list of individual numbers. If the range is not valid,
      * an empty array is returned.
@@ -104,15 +144,15 @@ public class ImapUtility {
             if (range != null) {
                 int colonPos = range.indexOf(':');
                 if (colonPos > 0) {
-                    int first  = Integer.parseInt(range.substring(0, colonPos));
-                    int second = Integer.parseInt(range.substring(colonPos + 1));
+                    long first  = Long.parseLong(range.substring(0, colonPos));
+                    long second = Long.parseLong(range.substring(colonPos + 1));
                     if (first < second) {
-                        for (int i = first; i <= second; i++) {
-                            list.add(Integer.toString(i));
+                        for (long i = first; i <= second; i++) {
+                            list.add(Long.toString(i));
                         }
                     } else {
-                        for (int i = first; i >= second; i--) {
-                            list.add(Integer.toString(i));
+                        for (long i = first; i >= second; i--) {
+                            list.add(Long.toString(i));
                         }
                     }
                 }
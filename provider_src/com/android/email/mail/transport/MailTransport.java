@@ -29,6 +29,8 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,6 +39,10 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -62,6 +68,16 @@ public class MailTransport {
     private InputStream mIn;
     private OutputStream mOut;
 
+    /** Set by {@link #startCompression}; null if the current socket isn't compressed */
+    private Inflater mInflater;
+    private Deflater mDeflater;
+    /** Bytes read from and written to the socket */
+    private long mSocketBytesRead;
+    private long mSocketBytesWritten;
+    /** Bytes read and written by the caller, i.e. before compression */
+    private long mBytesRead;
+    private long mBytesWritten;
+
     public MailTransport(Context context, String debugLabel, HostAuth hostAuth) {
         super();
         mContext = context;
@@ -111,13 +127,13 @@ public class MailTransport {
 
         try {
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
+            mSocket = new Socket();
+            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             if (canTrySslSecurity()) {
-                mSocket = SSLUtils.getSSLSocketFactory(
-                        mContext, mHostAuth, null, canTrustAllCertificates()).createSocket();
-            } else {
-                mSocket = new Socket();
+                // Start TLS over the connected socket, rather than connecting an unconnected
+                // SSL socket, so that the TLS session can be looked up by host and port.
+                mSocket = startTls(mSocket);
             }
-            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             // After the socket connects to an SSL server, confirm that the hostname is as expected
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
@@ -132,8 +148,7 @@ public class MailTransport {
                             sslSocket.getSession().getCipherSuite(), 0);
                 }
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            createStreams();
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
@@ -153,6 +168,97 @@ public class MailTransport {
         }
     }
 
+    private void createStreams() throws IOException {
+        endCompression();
+        mIn = new BufferedInputStream(
+                new CountingInputStream(mSocket.getInputStream(), false), 1024);
+        mOut = new BufferedOutputStream(
+                new CountingOutputStream(mSocket.getOutputStream(), false), 512);
+    }
+
+    /**
+     * Starts compressing the data sent and received with DEFLATE (RFC 1951), e.g. after the
+     * server has accepted an IMAP COMPRESS command (RFC 4978).  Each {@link OutputStream#flush}
+     * of {@link #getOutputStream} does a sync flush, so that the server can decompress
+     * everything written so far.  Anything already buffered from the input stream is taken to be
+     * compressed.
+     *
+     * <p>Requires KitKat, which added sync flushing to {@link DeflaterOutputStream}.
+     */
+    public void startCompression() {
+        mInflater = new Inflater(true);
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final InputStream in = new InflaterInputStream(mIn, mInflater, 8192);
+        final OutputStream out = new DeflaterOutputStream(mOut, mDeflater, 8192, true);
+        // No BufferedInputStream on top: InflaterInputStream.available() doesn't reflect what
+        // can be read without blocking, so BufferedInputStream would block trying to fill up.
+        mIn = new CountingInputStream(in, true);
+        mOut = new BufferedOutputStream(new CountingOutputStream(out, true), 512);
+    }
+
+    public boolean isCompressing() {
+        return mInflater != null;
+    }
+
+    /** Release the native memory of the inflater and deflater, which the streams don't do. */
+    private void endCompression() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes read from the socket since this transport was created.  This
+     *     is less than {@link #getBytesRead} when compression is used.
+     */
+    public long getSocketBytesRead() {
+        return mSocketBytesRead;
+    }
+
+    /**
+     * @return the number of bytes written to the socket since this transport was created.  This
+     *     is less than {@link #getBytesWritten} when compression is used.
+     */
+    public long getSocketBytesWritten() {
+        return mSocketBytesWritten;
+    }
+
+    /** @return the number of (uncompressed) bytes read since this transport was created. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** @return the number of (uncompressed) bytes written since this transport was created. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Layers TLS over {@code socket} and does the handshake.  The factories from
+     * {@link SSLUtils#getSSLSocketFactory} keep the TLS sessions of the servers we've talked to,
+     * so that later connections to them can resume the session with an abbreviated handshake.
+     */
+    private SSLSocket startTls(Socket socket) throws IOException {
+        final long handshakeStart = System.currentTimeMillis();
+        final SSLSocket sslSocket = (SSLSocket) SSLUtils.getSSLSocketFactory(mContext, mHostAuth,
+                null, canTrustAllCertificates()).createSocket(socket, getHost(), getPort(), true);
+        sslSocket.startHandshake();
+        final boolean resumed = SSLUtils.countHandshake(sslSocket.getSession(), handshakeStart);
+        if (DebugUtils.DEBUG) {
+            LogUtils.d(Logging.LOG_TAG, "*** " + mDebugLabel + " TLS handshake "
+                    + (resumed ? "resumed" : "full") + " in "
+                    + (System.currentTimeMillis() - handshakeStart) + "ms; full="
+                    + SSLUtils.getFullHandshakeCount() + " resumed="
+                    + SSLUtils.getResumedHandshakeCount());
+        }
+        return sslSocket;
+    }
+
     /**
      * Attempts to reopen a TLS connection using the Uri supplied for connection parameters.
      *
@@ -163,12 +269,9 @@ public class MailTransport {
      */
     public void reopenTls() throws MessagingException {
         try {
-            mSocket = SSLUtils.getSSLSocketFactory(mContext, mHostAuth, null,
-                    canTrustAllCertificates())
-                    .createSocket(mSocket, getHost(), getPort(), true);
+            mSocket = startTls(mSocket);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            createStreams();
 
             Analytics.getInstance().sendEvent("socket_certificates",
                     "reopenTls", Boolean.toString(canTrustAllCertificates()), 0);
@@ -271,6 +374,7 @@ public class MailTransport {
         } catch (Exception e) {
             // May fail if the connection is already closed.
         }
+        endCompression();
         mIn = null;
         mOut = null;
         mSocket = null;
@@ -330,6 +434,86 @@ public class MailTransport {
         return ret;
     }
 
+    /**
+     * Counts the bytes read from the socket, or from the inflater if {@code uncompressed}.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean mUncompressed;
+
+        public CountingInputStream(InputStream in, boolean uncompressed) {
+            super(in);
+            mUncompressed = uncompressed;
+        }
+
+        private void count(long n) {
+            if (!mUncompressed) {
+                mSocketBytesRead += n;
+            }
+            if (mUncompressed || !isCompressing()) {
+                mBytesRead += n;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int n = in.read(buffer, offset, count);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            final long n = in.skip(byteCount);
+            count(n);
+            return n;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the socket, or to the deflater if {@code uncompressed}.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+        private final boolean mUncompressed;
+
+        public CountingOutputStream(OutputStream out, boolean uncompressed) {
+            super(out);
+            mUncompressed = uncompressed;
+        }
+
+        private void count(long n) {
+            if (!mUncompressed) {
+                mSocketBytesWritten += n;
+            }
+            if (mUncompressed || !isCompressing()) {
+                mBytesWritten += n;
+            }
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            // FilterOutputStream would write the bytes one at a time.
+            out.write(buffer, offset, count);
+            count(count);
+        }
+    }
+
     public InetAddress getLocalAddress() {
         if (isOpen()) {
             return mSocket.getLocalAddress();
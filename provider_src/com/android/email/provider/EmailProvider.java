@@ -2501,8 +2501,14 @@ public class EmailProvider extends ContentProvider
         }
 
         // We want to send the message list changed notification if baseUri is Message.NOTIFIER_URI.
+        // During applyBatch() it's sent once, at the end of the batch.
         if (baseUri.equals(Message.NOTIFIER_URI)) {
-            sendMessageListDataChangedNotification();
+            final Set<Uri> batchNotifications = getBatchNotificationsSet();
+            if (batchNotifications != null) {
+                batchNotifications.add(Message.NOTIFIER_URI);
+            } else {
+                sendMessageListDataChangedNotification();
+            }
         }
     }
 
@@ -2552,6 +2558,9 @@ public class EmailProvider extends ContentProvider
                 // TODO(rtenneti): Enable notifications.
                 // context.getContentResolver().notifyChange(uri, null);
             }
+            if (notifications.contains(Message.NOTIFIER_URI)) {
+                sendMessageListDataChangedNotification();
+            }
         }
     }
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the syncs of each POP3 and IMAP account, while letting different accounts sync at
+ * the same time, so that one slow account doesn't hold up the others.  A sync covers the whole
+ * account rather than one mailbox, as it also uploads the account's pending changes.
+ *
+ * <p>Syncs run on the threads of the sync manager and of the push sessions, so rather than hand
+ * them to an executor, this bounds how many accounts sync at once to
+ * {@link #MAX_CONCURRENT_SYNCS}.  The lock is reentrant; only the outermost hold takes a slot.
+ *
+ * <pre>
+ * AccountSyncLock.lock(accountId);
+ * try {
+ *     ...
+ * } finally {
+ *     AccountSyncLock.unlock(accountId);
+ * }
+ * </pre>
+ */
+class AccountSyncLock {
+    /** How many accounts may sync at once */
+    @VisibleForTesting
+    static final int MAX_CONCURRENT_SYNCS = 3;
+
+    /** The lock for each account that has synced; there are never many accounts. */
+    private static final HashMap<Long, ReentrantLock> sLocks = new HashMap<Long, ReentrantLock>();
+    private static final Semaphore sSyncSlots = new Semaphore(MAX_CONCURRENT_SYNCS, true);
+
+    private AccountSyncLock() {}
+
+    private static ReentrantLock getLock(long accountId) {
+        synchronized (sLocks) {
+            ReentrantLock lock = sLocks.get(accountId);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                sLocks.put(accountId, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Waits until no other thread is syncing {@code accountId}, and there's a free slot.
+     */
+    static void lock(long accountId) {
+        final ReentrantLock lock = getLock(accountId);
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            // Take the slot after the account's lock, so that threads waiting for the same
+            // account don't tie up slots that other accounts could use.
+            sSyncSlots.acquireUninterruptibly();
+        }
+    }
+
+    static void unlock(long accountId) {
+        final ReentrantLock lock = getLock(accountId);
+        if (lock.getHoldCount() == 1) {
+            sSyncSlots.release();
+        }
+        lock.unlock();
+    }
+}
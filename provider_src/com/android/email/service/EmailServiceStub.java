@@ -30,6 +30,7 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -63,6 +64,7 @@ import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.InputStream;
 import java.util.HashSet;
 
 /**
@@ -125,7 +127,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
         Folder remoteFolder = null;
         try {
             //1. Check if the attachment is already here and return early in that case
-            Attachment attachment =
+            final Attachment attachment =
                 Attachment.restoreAttachmentWithId(mContext, attachmentId);
             if (attachment == null) {
                 cb.loadAttachmentStatus(0, attachmentId,
@@ -214,20 +216,36 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             storeMessage.setBody(multipart);
 
             // 4. Now ask for the attachment to be fetched
-            final FetchProfile fp = new FetchProfile();
-            fp.add(storePart);
-            remoteFolder.fetch(new Message[] { storeMessage }, fp,
-                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb));
-
-            // If we failed to load the attachment, throw an Exception here, so that
-            // AttachmentService knows that we failed
-            if (storePart.getBody() == null) {
-                throw new MessagingException("Attachment not loaded.");
-            }
+            final MessageRetrievalListener listener =
+                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb);
+            if (remoteFolder instanceof ImapFolder) {
+                // Decode the attachment straight from the network to wherever it's going,
+                // rather than through temp files.
+                final boolean loaded = ((ImapFolder) remoteFolder).fetchPart(storeMessage,
+                        storePart, new ImapFolder.PartSink() {
+                            @Override
+                            public void onPartContent(InputStream in) {
+                                AttachmentUtilities.saveAttachment(mContext, in, attachment);
+                            }
+                        }, listener);
+                if (!loaded) {
+                    throw new MessagingException("Attachment not loaded.");
+                }
+            } else {
+                final FetchProfile fp = new FetchProfile();
+                fp.add(storePart);
+                remoteFolder.fetch(new Message[] { storeMessage }, fp, listener);
+
+                // If we failed to load the attachment, throw an Exception here, so that
+                // AttachmentService knows that we failed
+                if (storePart.getBody() == null) {
+                    throw new MessagingException("Attachment not loaded.");
+                }
 
-            // Save the attachment to wherever it's going
-            AttachmentUtilities.saveAttachment(mContext, storePart.getBody().getInputStream(),
-                    attachment);
+                // Save the attachment to wherever it's going
+                AttachmentUtilities.saveAttachment(mContext,
+                        storePart.getBody().getInputStream(), attachment);
+            }
 
             // 6. Report success
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
@@ -36,6 +36,11 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
+import com.android.email.mail.store.ImapPusher;
+import com.android.email.mail.store.ImapStore;
+import com.android.email.mail.store.ImapSyncState;
+import com.android.email.mail.store.imap.ImapSearchResult;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -64,12 +69,16 @@ import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ImapService extends Service {
     // TODO get these from configurations or settings.
@@ -79,14 +88,19 @@ public class ImapService extends Service {
 
     // The maximum number of messages to fetch in a single command.
     private static final int MAX_MESSAGES_TO_FETCH = 500;
+    // The number of messages whose text is fetched in one go, and then written while the next
+    // ones are fetched.
+    private static final int VIEWABLES_TO_FETCH = 25;
+    // The number of messages that can wait to be written before the network reads stop.  The
+    // text of the messages is held until they're written, so there's less room for it.
+    private static final int ENVELOPES_TO_QUEUE = 100;
+    private static final int VIEWABLES_TO_QUEUE = VIEWABLES_TO_FETCH;
     private static final int MINIMUM_MESSAGES_TO_SYNC = 10;
     private static final int LOAD_MORE_MIN_INCREMENT = 10;
     private static final int LOAD_MORE_MAX_INCREMENT = 20;
     private static final long INITIAL_WINDOW_SIZE_INCREASE = 24 * 60 * 60 * 1000;
 
-    private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
-    private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
-    private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
+    private static final Flag[] FLAG_LIST_DELETED = new Flag[] { Flag.DELETED };
 
     /**
      * Simple cache for last search result mailbox by account and serverId, since the most common
@@ -98,17 +112,34 @@ public class ImapService extends Service {
 
     /**
      * Cache search results by account; this allows for "load more" support without having to
-     * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
-     * shouldn't be an issue
+     * redo the search (which can be quite slow).  Only the UIDs are kept, newest first, and at
+     * most {@link #MAX_SEARCH_RESULTS} of them; messages are created for each page as it's loaded.
      */
-    private static final HashMap<Long, SortableMessage[]> sSearchResults =
-            new HashMap<Long, SortableMessage[]>();
+    private static final HashMap<Long, long[]> sSearchResults = new HashMap<Long, long[]>();
+
+    /**
+     * The number of messages the server found for each account's cached search, which may be
+     * more than the UIDs kept in {@link #sSearchResults}.
+     */
+    private static final HashMap<Long, Integer> sSearchResultCounts = new HashMap<Long, Integer>();
+
+    /**
+     * The most search results kept for an account (about 80KB of UIDs).  Nobody pages through
+     * more than this, and a search that matches most of a large mailbox shouldn't pin all of it.
+     */
+    private static final int MAX_SEARCH_RESULTS = 10000;
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
      */
     private static final String LOCAL_SERVERID_PREFIX = "Local-";
 
+    /**
+     * The running push sessions, by account id.
+     */
+    private static final HashMap<Long, ArrayList<ImapPusher>> sPushers =
+            new HashMap<Long, ArrayList<ImapPusher>>();
+
     private static String sMessageDecodeErrorString;
 
     /**
@@ -146,6 +177,11 @@ public class ImapService extends Service {
             }
             return 0;
         }
+
+        @Override
+        public void pushModify(long accountId) {
+            updatePush(getApplicationContext(), accountId);
+        }
     };
 
     @Override
@@ -154,20 +190,28 @@ public class ImapService extends Service {
         return mBinder;
     }
 
+    @Override
+    public void dump(final FileDescriptor fd, final PrintWriter pw, final String[] args) {
+        pw.println("ImapService");
+        Store.dumpStores(pw);
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
      * TODO this should use ID's instead of fully-restored objects
+     * Syncs of the same account are serialized; see {@link AccountSyncLock}.
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
         Store remoteStore = null;
+        AccountSyncLock.lock(account.mId);
         try {
             remoteStore = Store.getInstance(account, context);
             processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
@@ -187,6 +231,7 @@ public class ImapService extends Service {
             if (remoteStore != null) {
                 remoteStore.closeConnections();
             }
+            AccountSyncLock.unlock(account.mId);
         }
         // TODO: Rather than use exceptions as logic above, return the status and handle it
         // correctly in caller.
@@ -194,45 +239,52 @@ public class ImapService extends Service {
     }
 
     /**
-     * Lightweight record for the first pass of message sync, where I'm just seeing if
-     * the local message requires sync.  Later (for messages that need syncing) we'll do a full
-     * readout from the DB.
+     * The changes waiting to be made in a remote mailbox.  They're collected while the pending
+     * updates are scanned, so that the mailbox is selected once, each flag is set (or cleared)
+     * on all of its messages with a single STORE, and all of the messages moving to the same
+     * mailbox are moved together.  The flags are changed before the moves, so that the messages
+     * take them along.
      */
-    private static class LocalMessageInfo {
-        private static final int COLUMN_ID = 0;
-        private static final int COLUMN_FLAG_READ = 1;
-        private static final int COLUMN_FLAG_FAVORITE = 2;
-        private static final int COLUMN_FLAG_LOADED = 3;
-        private static final int COLUMN_SERVER_ID = 4;
-        private static final int COLUMN_FLAGS =  5;
-        private static final int COLUMN_TIMESTAMP =  6;
-        private static final String[] PROJECTION = {
-                MessageColumns._ID,
-                MessageColumns.FLAG_READ,
-                MessageColumns.FLAG_FAVORITE,
-                MessageColumns.FLAG_LOADED,
-                SyncColumns.SERVER_ID,
-                MessageColumns.FLAGS,
-                MessageColumns.TIMESTAMP
-        };
+    private static class PendingChanges {
+        final Mailbox mMailbox;
+        /** The server ids of the messages to set each flag on */
+        final HashMap<Flag, ArrayList<String>> mSetFlags = new HashMap<Flag, ArrayList<String>>();
+        /** The server ids of the messages to clear each flag from */
+        final HashMap<Flag, ArrayList<String>> mClearFlags =
+                new HashMap<Flag, ArrayList<String>>();
+        /** The ids of the messages whose updates are done once their flags have been changed */
+        final ArrayList<Long> mFlagChangeIds = new ArrayList<Long>();
+        /** The moves out of this mailbox, keyed by the ids of the mailboxes they're moving to */
+        final LinkedHashMap<Long, PendingMoves> mMoves = new LinkedHashMap<Long, PendingMoves>();
+
+        PendingChanges(Mailbox mailbox) {
+            mMailbox = mailbox;
+        }
 
-        final long mId;
-        final boolean mFlagRead;
-        final boolean mFlagFavorite;
-        final int mFlagLoaded;
-        final String mServerId;
-        final int mFlags;
-        final long mTimestamp;
-
-        public LocalMessageInfo(Cursor c) {
-            mId = c.getLong(COLUMN_ID);
-            mFlagRead = c.getInt(COLUMN_FLAG_READ) != 0;
-            mFlagFavorite = c.getInt(COLUMN_FLAG_FAVORITE) != 0;
-            mFlagLoaded = c.getInt(COLUMN_FLAG_LOADED);
-            mServerId = c.getString(COLUMN_SERVER_ID);
-            mFlags = c.getInt(COLUMN_FLAGS);
-            mTimestamp = c.getLong(COLUMN_TIMESTAMP);
-            // Note: mailbox key and account key not needed - they are projected for the SELECT
+        void addFlagChange(Flag flag, boolean value, String serverId) {
+            final HashMap<Flag, ArrayList<String>> flags = value ? mSetFlags : mClearFlags;
+            ArrayList<String> serverIds = flags.get(flag);
+            if (serverIds == null) {
+                serverIds = new ArrayList<String>();
+                flags.put(flag, serverIds);
+            }
+            serverIds.add(serverId);
+        }
+    }
+
+    /**
+     * Messages waiting to be moved from one remote mailbox to another.
+     */
+    private static class PendingMoves {
+        final Mailbox mFromMailbox;
+        final Mailbox mToMailbox;
+        /** The current versions of the messages, keyed by their server ids */
+        final HashMap<String, EmailContent.Message> mMessages =
+                new HashMap<String, EmailContent.Message>();
+
+        PendingMoves(Mailbox fromMailbox, Mailbox toMailbox) {
+            mFromMailbox = fromMailbox;
+            mToMailbox = toMailbox;
         }
     }
 
@@ -257,42 +309,138 @@ public class ImapService extends Service {
 
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.STRUCTURE);
-        remoteFolder.fetch(messages.toArray(new Message[messages.size()]), fp, null);
-        Message [] oneMessageArray = new Message[1];
+        final Message[] messageArray = messages.toArray(new Message[messages.size()]);
+        remoteFolder.fetch(messageArray, fp, null);
+        // Download the viewables immediately
+        final SyncPipeline<Message> pipeline = newMessagePipeline(context, account, toMailbox);
+        try {
+            fetchViewables(remoteFolder, messageArray, pipeline);
+            pipeline.finish();
+        } finally {
+            pipeline.abort();
+        }
+    }
+
+    /**
+     * Starts a pipeline that stores messages whose viewables have been downloaded locally, and
+     * marks them fully loaded.
+     */
+    private static SyncPipeline<Message> newMessagePipeline(final Context context,
+            final Account account, final Mailbox toMailbox) {
+        return new SyncPipeline<Message>("ImapService messages", VIEWABLES_TO_QUEUE) {
+            @Override
+            protected void write(List<Message> messages) {
+                for (Message message : messages) {
+                    Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
+                            EmailContent.Message.FLAG_LOADED_COMPLETE);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts a pipeline that saves messages with just their flags and envelopes filled in, a
+     * batch at a time.  The ids of the unread ones are added to {@code unseenMessages}, if it
+     * isn't null, once they've been saved.
+     */
+    private static SyncPipeline<EmailContent.Message> newEnvelopePipeline(final Context context,
+            final ArrayList<Long> unseenMessages) {
+        return new SyncPipeline<EmailContent.Message>("ImapService envelopes",
+                ENVELOPES_TO_QUEUE) {
+            @Override
+            protected void write(List<EmailContent.Message> localMessages) {
+                final SyncWriteBatch batch = new SyncWriteBatch(context);
+                for (EmailContent.Message localMessage : localMessages) {
+                    batch.saveOrUpdate(localMessage);
+                }
+                batch.flush();
+                if (unseenMessages != null) {
+                    for (EmailContent.Message localMessage : localMessages) {
+                        if (!localMessage.mFlagRead && localMessage.isSaved()) {
+                            unseenMessages.add(localMessage.mId);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Downloads the viewable parts of messages whose structure has been fetched, a few messages
+     * at a time, and hands each few to {@code pipeline} to be stored while the next are
+     * downloaded.
+     */
+    private static void fetchViewables(Folder remoteFolder, Message[] messages,
+            SyncPipeline<Message> pipeline) throws MessagingException {
+        for (int start = 0; start < messages.length; start += VIEWABLES_TO_FETCH) {
+            final Message[] someMessages = Arrays.copyOfRange(messages, start,
+                    Math.min(start + VIEWABLES_TO_FETCH, messages.length));
+            fetchViewables(remoteFolder, someMessages);
+            for (Message message : someMessages) {
+                pipeline.put(message);
+            }
+        }
+    }
+
+    /**
+     * Download the viewable parts (i.e. the text) of messages whose structure has been fetched.
+     * Attachments are left for later.  IMAP folders fetch the parts of many messages per command;
+     * other folders fetch them one part at a time.
+     */
+    private static void fetchViewables(Folder remoteFolder, Message[] messages)
+            throws MessagingException {
+        final LinkedHashMap<Message, List<Part>> viewablesMap =
+                new LinkedHashMap<Message, List<Part>>();
         for (Message message : messages) {
-            // Build a list of parts we are interested in. Text parts will be downloaded
-            // right now, attachments will be left for later.
             ArrayList<Part> viewables = new ArrayList<Part>();
             ArrayList<Part> attachments = new ArrayList<Part>();
             MimeUtility.collectParts(message, viewables, attachments);
-            // Download the viewables immediately
-            oneMessageArray[0] = message;
-            for (Part part : viewables) {
+            viewablesMap.put(message, viewables);
+        }
+        if (remoteFolder instanceof ImapFolder) {
+            ((ImapFolder) remoteFolder).fetchParts(viewablesMap);
+            return;
+        }
+        final FetchProfile fp = new FetchProfile();
+        final Message[] oneMessageArray = new Message[1];
+        for (Map.Entry<Message, List<Part>> entry : viewablesMap.entrySet()) {
+            oneMessageArray[0] = entry.getKey();
+            for (Part part : entry.getValue()) {
                 fp.clear();
                 fp.add(part);
                 remoteFolder.fetch(oneMessageArray, fp, null);
             }
-            // Store the updated message locally and mark it fully loaded
-            Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
-                    EmailContent.Message.FLAG_LOADED_COMPLETE);
         }
     }
 
     public static void downloadFlagAndEnvelope(final Context context, final Account account,
             final Mailbox mailbox, Folder remoteFolder, ArrayList<Message> unsyncedMessages,
-            HashMap<String, LocalMessageInfo> localMessageMap, final ArrayList<Long> unseenMessages)
+            LocalMessageIndex localMessages, final ArrayList<Long> unseenMessages)
             throws MessagingException {
+        // The messages are saved on another thread, while the rest are read from the network
+        final SyncPipeline<EmailContent.Message> pipeline =
+                newEnvelopePipeline(context, unseenMessages);
+        try {
+            fetchFlagAndEnvelope(context, account, mailbox, remoteFolder, unsyncedMessages,
+                    localMessages != null ? localMessages : LocalMessageIndex.EMPTY, pipeline);
+            pipeline.finish();
+        } finally {
+            pipeline.abort();
+        }
+    }
+
+    /**
+     * Fetches the flags and envelopes of {@code unsyncedMessages}, and puts the local messages
+     * made from them into {@code pipeline}.  Messages we already have are reloaded first, as the
+     * envelopes are copied over them.
+     */
+    private static void fetchFlagAndEnvelope(final Context context, final Account account,
+            final Mailbox mailbox, Folder remoteFolder, ArrayList<Message> unsyncedMessages,
+            final LocalMessageIndex localMessages,
+            final SyncPipeline<EmailContent.Message> pipeline) throws MessagingException {
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
         fp.add(FetchProfile.Item.ENVELOPE);
-
-        final HashMap<String, LocalMessageInfo> localMapCopy;
-        if (localMessageMap != null)
-            localMapCopy = new HashMap<String, LocalMessageInfo>(localMessageMap);
-        else {
-            localMapCopy = new HashMap<String, LocalMessageInfo>();
-        }
-
         remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
                 new MessageRetrievalListener() {
                     @Override
@@ -300,9 +448,8 @@ public class ImapService extends Service {
                         try {
                             // Determine if the new message was already known (e.g. partial)
                             // And create or reload the full message info
-                            final LocalMessageInfo localMessageInfo =
-                                    localMapCopy.get(message.getUid());
-                            final boolean localExists = localMessageInfo != null;
+                            final int localPosition = localMessages.find(message.getUid());
+                            final boolean localExists = localPosition >= 0;
 
                             if (!localExists && message.isSet(Flag.DELETED)) {
                                 // This is a deleted message that we don't have locally, so don't
@@ -315,7 +462,7 @@ public class ImapService extends Service {
                                 localMessage = new EmailContent.Message();
                             } else {
                                 localMessage = EmailContent.Message.restoreMessageWithId(
-                                        context, localMessageInfo.mId);
+                                        context, localMessages.getId(localPosition));
                             }
 
                             if (localMessage != null) {
@@ -323,12 +470,9 @@ public class ImapService extends Service {
                                     // Copy the fields that are available into the message
                                     LegacyConversions.updateMessageFields(localMessage,
                                             message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    Utilities.saveOrUpdate(localMessage, context);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
-                                    }
+                                    // Commit the message to the local store, and track the
+                                    // "new" ness of the downloaded message
+                                    pipeline.put(localMessage);
                                 } catch (MessagingException me) {
                                     LogUtils.e(Logging.LOG_TAG,
                                             "Error while copying downloaded message." + me);
@@ -345,7 +489,6 @@ public class ImapService extends Service {
                     public void loadAttachmentProgress(int progress) {
                     }
                 });
-
     }
 
     /**
@@ -359,7 +502,7 @@ public class ImapService extends Service {
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
+    private static void synchronizeMailboxGeneric(final Context context,
             final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
             final boolean uiRefresh)
             throws MessagingException {
@@ -367,8 +510,6 @@ public class ImapService extends Service {
         LogUtils.d(Logging.LOG_TAG, "synchronizeMailboxGeneric " + account + " " + mailbox + " "
                 + loadMore + " " + uiRefresh);
 
-        final ArrayList<Long> unseenMessages = new ArrayList<Long>();
-
         ContentResolver resolver = context.getContentResolver();
 
         // 0. We do not ever sync DRAFTS or OUTBOX (down or up)
@@ -386,7 +527,7 @@ public class ImapService extends Service {
         // full sync so we should perform the full sync.
         final long timeSinceLastFullSync = SystemClock.elapsedRealtime() -
                 mailbox.mLastFullSyncTime;
-        final boolean fullSync = (uiRefresh || loadMore ||
+        boolean fullSync = (uiRefresh || loadMore ||
                 timeSinceLastFullSync >= FULL_SYNC_INTERVAL_MILLIS || timeSinceLastFullSync < 0);
 
         if (account.mSyncLookback == SyncWindow.SYNC_WINDOW_ALL) {
@@ -452,7 +593,66 @@ public class ImapService extends Service {
                 }
             }
         }
+        // If this is an IMAP folder, tell it what we knew as of the last sync, so that it can
+        // report what has changed since then (RFC 7162).
+        final ImapSyncState syncState = ImapSyncState.fromSyncKey(mailbox.mSyncKey);
+        final ImapFolder imapFolder =
+                (remoteFolder instanceof ImapFolder) ? (ImapFolder) remoteFolder : null;
+        if (imapFolder != null) {
+            imapFolder.setKnownSyncState(syncState.mUidValidity, syncState.mHighestModSeq);
+        }
         remoteFolder.open(OpenMode.READ_WRITE);
+        try {
+            synchronizeOpenMailbox(context, account, mailbox, loadMore, remoteFolder, imapFolder,
+                    syncState, fullSync, endDate);
+        } finally {
+            // 14. Clean up and report results
+            remoteFolder.close(false);
+        }
+    }
+
+    /**
+     * Steps 3 to 13 of {@link #synchronizeMailboxGeneric}, with the remote folder open.
+     *
+     * @param imapFolder the remote folder if it's an IMAP one, or null
+     * @param syncState the sync state as of the last sync
+     * @param fullSync whether to do a full sync
+     * @param endDate the oldest date of the sync window
+     */
+    private static void synchronizeOpenMailbox(final Context context, final Account account,
+            final Mailbox mailbox, final boolean loadMore, final Folder remoteFolder,
+            final ImapFolder imapFolder, final ImapSyncState syncState, boolean fullSync,
+            long endDate) throws MessagingException {
+        final ArrayList<Long> unseenMessages = new ArrayList<Long>();
+
+        // We can sync flags and deletions incrementally if the server supports mod-sequences
+        // for this mailbox, and we have a HIGHESTMODSEQ from a previous sync against the same
+        // UIDVALIDITY.
+        final ImapSyncState newSyncState = new ImapSyncState();
+        if (imapFolder != null) {
+            newSyncState.mUidValidity = imapFolder.getUidValidity();
+            newSyncState.mUidNext = imapFolder.getUidNext();
+            newSyncState.mHighestModSeq = imapFolder.getHighestModSeq();
+        }
+        final boolean sameUidValidity = newSyncState.mUidValidity != 0
+                && newSyncState.mUidValidity == syncState.mUidValidity;
+        final boolean incrementalSync = sameUidValidity && newSyncState.mHighestModSeq > 0
+                && syncState.mHighestModSeq > 0;
+        // On a quick sync, new mail can only have UIDs from the UIDNEXT we saw last time.
+        final boolean uidNextSync = sameUidValidity && !fullSync
+                && newSyncState.mUidNext > 0 && syncState.mUidNext > 0;
+        // If UIDVALIDITY has changed, the UIDs we have locally no longer mean anything
+        // (RFC 3501 2.3.1.1), so we start over with a full sync.
+        final boolean uidValidityChanged = syncState.mUidValidity != 0
+                && newSyncState.mUidValidity != 0 && !sameUidValidity;
+        if (uidValidityChanged) {
+            LogUtils.d(Logging.LOG_TAG, "UIDVALIDITY changed from " + syncState.mUidValidity
+                    + " to " + newSyncState.mUidValidity + ", resyncing " + mailbox);
+            if (!fullSync && endDate != 0) {
+                endDate = System.currentTimeMillis() - FULL_SYNC_WINDOW_MILLIS;
+            }
+            fullSync = true;
+        }
 
         // 3. Trash any remote messages that are marked as trashed locally.
         // TODO - this comment was here, but no code was here.
@@ -465,9 +665,18 @@ public class ImapService extends Service {
         // 5. Save folder message count locally.
         mailbox.updateMessageCount(context, remoteMessageCount);
 
-        // 6. Get all message Ids in our sync window:
+        // 6. Get all message Ids in our sync window, or on a quick sync just the new ones; if
+        // UIDNEXT hasn't moved since the last sync, there aren't any.
         Message[] remoteMessages;
-        remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        if (uidNextSync) {
+            if (newSyncState.mUidNext == syncState.mUidNext) {
+                remoteMessages = Message.EMPTY_ARRAY;
+            } else {
+                remoteMessages = imapFolder.getMessagesFromUid(syncState.mUidNext);
+            }
+        } else {
+            remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        }
         LogUtils.d(Logging.LOG_TAG, "received " + remoteMessages.length + " messages");
 
         // 7. See if we need any additional messages beyond our date query range results.
@@ -533,52 +742,85 @@ public class ImapService extends Service {
             remoteMessages = allMessages;
         }
 
-        // 8. Get the all of the local messages within the sync window, and create
-        // an index of the uids.
-        // The IMAP query for messages ignores time, and only looks at the date part of the endDate.
-        // So if we query for messages since Aug 11 at 3:00 PM, we can get messages from any time
-        // on Aug 11. Our IMAP query results can include messages up to 24 hours older than endDate,
-        // or up to 25 hours older at a daylight savings transition.
-        // It is important that we have the Id of any local message that could potentially be
-        // returned by the IMAP query, or we will create duplicate copies of the same messages.
-        // So we will increase our local query range by this much.
+        // If we're syncing incrementally, ask for the messages that changed since the last sync
+        // (nothing at all if HIGHESTMODSEQ hasn't moved) now, so that we know which local
+        // messages to look at; the server also reports the messages expunged since then if
+        // QRESYNC is enabled.
+        Message[] changedMessages = null;
+        final HashSet<String> remoteDeletedUids = new HashSet<String>();
+        if (incrementalSync) {
+            if (newSyncState.mHighestModSeq == syncState.mHighestModSeq) {
+                changedMessages = Message.EMPTY_ARRAY;
+            } else {
+                final ArrayList<String> vanishedUids = new ArrayList<String>();
+                changedMessages = imapFolder.fetchChangedSince(syncState.mHighestModSeq,
+                        vanishedUids);
+                remoteDeletedUids.addAll(vanishedUids);
+            }
+            LogUtils.d(Logging.LOG_TAG, "incremental sync since modseq "
+                    + syncState.mHighestModSeq + ": " + changedMessages.length + " changed, "
+                    + remoteDeletedUids.size() + " vanished");
+        }
+
+        // 8. Get the local messages this sync might touch, and create an index of their uids:
+        // those with uids from the lowest one the server returned up, so that we don't
+        // create duplicate copies of any of them, and those in the sync window, which we check
+        // against the server's list. The window is needed unless we only asked for new and
+        // changed messages, in which case we need the changed ones.
+        // We don't use the date to find the messages the server returned, as the IMAP query
+        // only looks at the date part of the endDate, and as some messages are stored with a
+        // date of zero (b/10508861).
         // Note that this complicates deletion: It's not okay to delete anything that is in the
-        // localMessageMap but not in the remote result, because we know that we may be getting
-        // Ids of local messages that are outside the IMAP query window.
-        Cursor localUidCursor = null;
-        HashMap<String, LocalMessageInfo> localMessageMap = new HashMap<String, LocalMessageInfo>();
-        try {
-            // FLAG: There is a problem that causes us to store the wrong date on some messages,
-            // so messages get a date of zero. If we filter these messages out and don't put them
-            // in our localMessageMap, then we'll end up loading the same message again.
-            // See b/10508861
-//            final long queryEndDate = endDate - DateUtils.DAY_IN_MILLIS - DateUtils.HOUR_IN_MILLIS;
-            final long queryEndDate = 0;
-            localUidCursor = resolver.query(
-                    EmailContent.Message.CONTENT_URI,
-                    LocalMessageInfo.PROJECTION,
-                    EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
-                            + " AND " + MessageColumns.MAILBOX_KEY + "=?"
-                            + " AND " + MessageColumns.TIMESTAMP + ">=?",
-                    new String[] {
-                            String.valueOf(account.mId),
-                            String.valueOf(mailbox.mId),
-                            String.valueOf(queryEndDate) },
-                    null);
-            while (localUidCursor.moveToNext()) {
-                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
-                // If the message has no server id, it's local only. This should only happen for
-                // mail created on the client that has failed to upsync. We want to ignore such
-                // mail during synchronization (i.e. leave it as-is and let the next sync try again
-                // to upsync).
-                if (!TextUtils.isEmpty(info.mServerId)) {
-                    localMessageMap.put(info.mServerId, info);
+        // index but not in the remote result, because we know that we may be getting Ids of
+        // local messages that are outside the IMAP query window.
+        // The local writes of the sync are applied in a few transactions rather than one each
+        final SyncWriteBatch batch = new SyncWriteBatch(context);
+        final LocalMessageIndex localMessages;
+        if (uidValidityChanged) {
+            deleteAllLocalMessages(context, batch, account.mId, mailbox.mId);
+            batch.flush();
+            localMessages = LocalMessageIndex.EMPTY;
+        } else {
+            long minUid = Long.MAX_VALUE;
+            for (final Message message : remoteMessages) {
+                final long uid = LocalMessageIndex.parseUid(message.getUid());
+                if (uid > 0) {
+                    minUid = Math.min(minUid, uid);
                 }
             }
-        } finally {
-            if (localUidCursor != null) {
-                localUidCursor.close();
+            final long minTimestamp = (uidNextSync && incrementalSync) ? Long.MAX_VALUE : endDate;
+            String[] moreUids = null;
+            if (changedMessages != null) {
+                final ArrayList<String> uids = new ArrayList<String>(remoteDeletedUids);
+                for (final Message message : changedMessages) {
+                    uids.add(message.getUid());
+                }
+                moreUids = uids.toArray(new String[uids.size()]);
+            }
+            localMessages = LocalMessageIndex.load(context, account.mId, mailbox.mId, minUid,
+                    minTimestamp, moreUids);
+            LogUtils.d(Logging.LOG_TAG, "local messages " + localMessages.size());
+        }
+
+        // The local messages that are only in the remote list so that their flags are refreshed
+        final HashSet<String> flagsOnlyUids = new HashSet<String>();
+        if (uidNextSync && !incrementalSync) {
+            // Without mod-sequences, we still have to refresh the flags of the local messages
+            // in the sync window; treat them as if the server had returned them.
+            final HashSet<String> remoteUids = new HashSet<String>();
+            final ArrayList<Message> windowMessages = new ArrayList<Message>();
+            for (final Message message : remoteMessages) {
+                remoteUids.add(message.getUid());
+                windowMessages.add(message);
+            }
+            for (int i = 0; i < localMessages.size(); i++) {
+                final String uid = Long.toString(localMessages.getUid(i));
+                if (localMessages.getTimestamp(i) >= endDate && !remoteUids.contains(uid)) {
+                    windowMessages.add(remoteFolder.createMessage(uid));
+                    flagsOnlyUids.add(uid);
+                }
             }
+            remoteMessages = windowMessages.toArray(Message.EMPTY_ARRAY);
         }
 
         // 9. Get a list of the messages that are in the remote list but not on the
@@ -596,17 +838,18 @@ public class ImapService extends Service {
             LogUtils.d(Logging.LOG_TAG, "remote message " + message.getUid());
             remoteUidMap.put(message.getUid(), message);
 
-            LocalMessageInfo localMessage = localMessageMap.get(message.getUid());
+            final int localPosition = localMessages.find(message.getUid());
 
-            // localMessage == null -> message has never been created (not even headers)
+            // localPosition < 0 -> message has never been created (not even headers)
             // mFlagLoaded = UNLOADED -> message created, but none of body loaded
             // mFlagLoaded = PARTIAL -> message created, a "sane" amt of body has been loaded
             // mFlagLoaded = COMPLETE -> message body has been completely loaded
             // mFlagLoaded = DELETED -> message has been deleted
             // Only the first two of these are "unsynced", so let's retrieve them
-            if (localMessage == null ||
-                    (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
-                    (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+            if (localPosition < 0 || (localMessages.getFlagLoaded(localPosition)
+                    == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
+                    (localMessages.getFlagLoaded(localPosition)
+                    == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
                 unsyncedMessages.add(message);
             }
         }
@@ -618,30 +861,49 @@ public class ImapService extends Service {
          */
         if (unsyncedMessages.size() > 0) {
             downloadFlagAndEnvelope(context, account, mailbox, remoteFolder, unsyncedMessages,
-                    localMessageMap, unseenMessages);
+                    localMessages, unseenMessages);
         }
 
         // 11. Refresh the flags for any messages in the local store that we didn't just download.
+        // If we're syncing incrementally, we already have the messages that changed since the
+        // last sync.
         // TODO This is a bit wasteful because we're also updating any messages we already did get
         // the flags and envelope for previously.
         // TODO: the fetch() function, and others, should take List<>s of messages, not
         // arrays of messages.
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
-            List<Message> remoteMessageList = Arrays.asList(remoteMessages);
-            for (int start = 0; start < remoteMessageList.size(); start += MAX_MESSAGES_TO_FETCH) {
-                int end = start + MAX_MESSAGES_TO_FETCH;
-                if (end >= remoteMessageList.size()) {
-                    end = remoteMessageList.size() - 1;
+        if (!incrementalSync) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            // The folder splits the FETCH into several commands if there are a lot of UIDs.
+            final HashSet<String> fetchedUids = new HashSet<String>();
+            remoteFolder.fetch(remoteMessages, fp, new MessageRetrievalListener() {
+                @Override
+                public void messageRetrieved(Message message) {
+                    fetchedUids.add(message.getUid());
+                }
+
+                @Override
+                public void loadAttachmentProgress(int progress) {
                 }
-                List<Message> chunk = remoteMessageList.subList(start, end);
-                final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
-                // Fetch this one chunk of messages
-                remoteFolder.fetch(partialArray, fp, null);
+            });
+            if (!flagsOnlyUids.isEmpty()) {
+                // If the server didn't return the flags of a message we only asked about for
+                // them, it has been expunged, and its empty flags mustn't be copied locally.
+                final ArrayList<Message> fetchedMessages =
+                        new ArrayList<Message>(remoteMessages.length);
+                for (final Message message : remoteMessages) {
+                    final String uid = message.getUid();
+                    if (flagsOnlyUids.contains(uid) && !fetchedUids.contains(uid)) {
+                        remoteUidMap.remove(uid);
+                        unsyncedMessages.remove(message);
+                        remoteDeletedUids.add(uid);
+                    } else {
+                        fetchedMessages.add(message);
+                    }
+                }
+                remoteMessages = fetchedMessages.toArray(Message.EMPTY_ARRAY);
             }
-        } else {
-            remoteFolder.fetch(remoteMessages, fp, null);
+            changedMessages = remoteMessages;
         }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
@@ -660,35 +922,13 @@ public class ImapService extends Service {
 
         // 12. Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
-                LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
-                if (localMessageInfo == null) {
+            for (Message remoteMessage : changedMessages) {
+                final int localPosition = localMessages.find(remoteMessage.getUid());
+                if (localPosition < 0) {
                     continue;
                 }
-                boolean localSeen = localMessageInfo.mFlagRead;
-                boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
-                boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
-                boolean localFlagged = localMessageInfo.mFlagFavorite;
-                boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
-                boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
-                int localFlags = localMessageInfo.mFlags;
-                boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
-                boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
-                boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
-                if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
-                    if (remoteAnswered) {
-                        localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
-                    } else {
-                        localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
-                    }
-                    updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
-                }
+                updateLocalFlags(batch, localMessages, localPosition, remoteMessage,
+                        remoteSupportsSeen, remoteSupportsFlagged, remoteSupportsAnswered);
             }
         }
 
@@ -698,44 +938,130 @@ public class ImapService extends Service {
             if (remoteMessage.isSet(Flag.DELETED)) {
                 remoteUidMap.remove(remoteMessage.getUid());
                 unsyncedMessages.remove(remoteMessage);
+                remoteDeletedUids.add(remoteMessage.getUid());
+            }
+        }
+        if (changedMessages != remoteMessages) {
+            for (final Message changedMessage : changedMessages) {
+                if (changedMessage.isSet(Flag.DELETED)) {
+                    final String uid = changedMessage.getUid();
+                    unsyncedMessages.remove(remoteUidMap.remove(uid));
+                    remoteDeletedUids.add(uid);
+                }
             }
         }
 
         // 13. Remove messages that are in the local store and in the current sync window,
-        // but no longer on the remote store. Note that localMessageMap can contain messages
+        // but no longer on the remote store. Note that the index can contain messages
         // that are not actually in our sync window. We need to check the timestamp to ensure
-        // that it is before deleting.
-        for (final LocalMessageInfo info : localMessageMap.values()) {
+        // that it is before deleting. Messages the server told us were deleted or expunged
+        // can be removed regardless of the window. If we only asked for new messages, the
+        // remote list says nothing about the others.
+        for (int i = 0; i < localMessages.size(); i++) {
             // If this message is inside our sync window, and we cannot find it in our list
             // of remote messages, then we know it's been deleted from the server.
-            if (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId)) {
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+            final String uid = Long.toString(localMessages.getUid(i));
+            if (((!uidNextSync && localMessages.getTimestamp(i) >= endDate)
+                    || remoteDeletedUids.contains(uid))
+                    && !remoteUidMap.containsKey(uid)) {
+                deleteLocalMessage(context, batch, account.mId, localMessages.getId(i));
             }
         }
+        batch.flush();
 
         loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
 
         if (fullSync) {
             mailbox.updateLastFullSyncTime(context, SystemClock.elapsedRealtime());
         }
+        if (imapFolder != null) {
+            // Remember the state as of the SELECT, so the next sync starts from there
+            mailbox.updateSyncKey(context, newSyncState.toSyncKey());
+        }
+    }
+
+    /**
+     * Copies the SEEN/FLAGGED/ANSWERED flags of a remote message to its local copy, if they
+     * differ.  The update is added to {@code batch}.
+     */
+    private static void updateLocalFlags(SyncWriteBatch batch, LocalMessageIndex localMessages,
+            int localPosition, Message remoteMessage, boolean remoteSupportsSeen,
+            boolean remoteSupportsFlagged, boolean remoteSupportsAnswered) {
+        boolean localSeen = localMessages.isRead(localPosition);
+        boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
+        boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
+        boolean localFlagged = localMessages.isFavorite(localPosition);
+        boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
+        boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
+        int localFlags = localMessages.getFlags(localPosition);
+        boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+        boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
+        boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
+        if (newSeen || newFlagged || newAnswered) {
+            Uri uri = ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, localMessages.getId(localPosition));
+            ContentValues updateValues = new ContentValues();
+            updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
+            updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
+            if (remoteAnswered) {
+                localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
+            } else {
+                localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
+            }
+            updateValues.put(MessageColumns.FLAGS, localFlags);
+            batch.update(uri, updateValues);
+        }
+    }
 
-        // 14. Clean up and report results
-        remoteFolder.close(false);
+    /**
+     * Deletes a local message that no longer exists on the server, along with its attachment
+     * files and any pending updates or deletes for it.  The attachment files are deleted right
+     * away; the rows are deleted when {@code batch} is flushed.
+     */
+    private static void deleteLocalMessage(Context context, SyncWriteBatch batch, long accountId,
+            long messageId) {
+        // Delete associated data (attachment files)
+        // Attachment & Body records are auto-deleted when we delete the Message record
+        AttachmentUtilities.deleteAllAttachmentFiles(context, accountId, messageId);
+
+        // Delete the message itself
+        final Uri uriToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.CONTENT_URI, messageId);
+        batch.delete(uriToDelete);
+
+        // Delete extra rows (e.g. updated or deleted)
+        final Uri updateRowToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.UPDATED_CONTENT_URI, messageId);
+        batch.delete(updateRowToDelete);
+        final Uri deleteRowToDelete = ContentUris.withAppendedId(
+                EmailContent.Message.DELETED_CONTENT_URI, messageId);
+        batch.delete(deleteRowToDelete);
+    }
+
+    /**
+     * Deletes all of the local messages in a mailbox that came from the server, as
+     * {@link #deleteLocalMessage} does.  Messages that are local only are left alone.
+     */
+    private static void deleteAllLocalMessages(Context context, SyncWriteBatch batch,
+            long accountId, long mailboxId) {
+        final Cursor c = context.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                new String[] { MessageColumns._ID, SyncColumns.SERVER_ID },
+                EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
+                        + " AND " + MessageColumns.MAILBOX_KEY + "=?",
+                new String[] { String.valueOf(accountId), String.valueOf(mailboxId) },
+                null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (!TextUtils.isEmpty(c.getString(1))) {
+                    deleteLocalMessage(context, batch, accountId, c.getLong(0));
+                }
+            }
+        } finally {
+            c.close();
+        }
     }
 
     /**
@@ -772,12 +1098,13 @@ public class ImapService extends Service {
     /**
      * Get the mailbox corresponding to the remote location of a message; this will normally be
      * the mailbox whose _id is mailboxKey, except for search results, where we must look it up
-     * by serverId.
+     * by serverId.  Synchronized, as the last search mailbox is cached across the syncs of all
+     * accounts.
      *
      * @param message the message in question
      * @return the mailbox in which the message resides on the server
      */
-    private static Mailbox getRemoteMailboxForMessage(
+    private static synchronized Mailbox getRemoteMailboxForMessage(
             Context context, EmailContent.Message message) {
         // If this is a search result, use the protocolSearchInfo field to get the server info
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
@@ -887,8 +1214,6 @@ public class ImapService extends Service {
             while (mailboxes.moveToNext()) {
                 long mailboxId = mailboxes.getLong(Mailbox.ID_PROJECTION_COLUMN);
                 String[] mailboxKeyArgs = new String[] { Long.toString(mailboxId) };
-                // Demand load mailbox
-                Mailbox mailbox = null;
 
                 // First handle the "new" messages (serverId == null)
                 Cursor upsyncs1 = resolver.query(EmailContent.Message.CONTENT_URI,
@@ -898,28 +1223,36 @@ public class ImapService extends Service {
                         + " or " + MessageColumns.SERVER_ID + "=''" + ")",
                         mailboxKeyArgs,
                         null);
+                // They're uploaded together, so that an IMAP server with MULTIAPPEND can take
+                // them in a single command.
+                final ArrayList<Long> messageIds = new ArrayList<Long>();
                 try {
                     while (upsyncs1.moveToNext()) {
-                        // Load the remote store if it will be needed
-                        if (remoteStore == null) {
-                            remoteStore = Store.getInstance(account, context);
-                        }
-                        // Load the mailbox if it will be needed
-                        if (mailbox == null) {
-                            mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
-                            if (mailbox == null) {
-                                continue; // Mailbox removed. Move to the next message.
-                            }
-                        }
-                        // upsync the message
-                        long id = upsyncs1.getLong(EmailContent.Message.ID_PROJECTION_COLUMN);
-                        lastMessageId = id;
-                        processUploadMessage(context, remoteStore, mailbox, id, manualSync);
+                        messageIds.add(upsyncs1.getLong(
+                                EmailContent.Message.ID_PROJECTION_COLUMN));
                     }
                 } finally {
                     if (upsyncs1 != null) {
                         upsyncs1.close();
                     }
+                }
+                if (messageIds.isEmpty()) {
+                    continue;
+                }
+                try {
+                    // Load the remote store if it will be needed
+                    if (remoteStore == null) {
+                        remoteStore = Store.getInstance(account, context);
+                    }
+                    // Load the mailbox
+                    final Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
+                    if (mailbox == null) {
+                        continue; // Mailbox removed. Move to the next one.
+                    }
+                    // upsync the messages
+                    lastMessageId = messageIds.get(0);
+                    processUploadMessages(context, remoteStore, mailbox, messageIds, manualSync);
+                } finally {
                     if (remoteStore != null) {
                         remoteStore.closeConnections();
                     }
@@ -951,6 +1284,9 @@ public class ImapService extends Service {
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
         long lastMessageId = -1;
+        // The changes to make, keyed by the ids of the remote mailboxes they're made in
+        final LinkedHashMap<Long, PendingChanges> pendingChanges =
+                new LinkedHashMap<Long, PendingChanges>();
         try {
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
@@ -993,19 +1329,28 @@ public class ImapService extends Service {
                 }
 
                 // Dispatch here for specific change types
+                boolean changeQueued = false;
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(context, remoteStore, mailbox, oldMessage,
-                            newMessage);
+                    changeQueued = processPendingMoveToTrash(context, mailbox, oldMessage,
+                            newMessage, pendingChanges);
                 } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(context, remoteStore, mailbox, changeRead,
-                            changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage);
+                    changeQueued = processPendingDataChange(context, mailbox, changeRead,
+                            changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage,
+                            pendingChanges);
                 }
 
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
+                // Finally, delete the update (for queued changes, once they've been made)
+                if (!changeQueued) {
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.UPDATED_CONTENT_URI, oldMessage.mId);
+                    resolver.delete(uri, null, null);
+                }
+            }
+
+            // Now make the changes, a mailbox at a time
+            for (PendingChanges changes : pendingChanges.values()) {
+                processPendingChanges(context, remoteStore, changes);
             }
 
         } catch (MessagingException me) {
@@ -1034,55 +1379,75 @@ public class ImapService extends Service {
      *
      * @param mailbox the actual mailbox
      */
-    private static void processUploadMessage(Context context, Store remoteStore, Mailbox mailbox,
-            long messageId, boolean manualSync)
+    private static void processUploadMessages(Context context, Store remoteStore,
+            Mailbox mailbox, List<Long> messageIds, boolean manualSync)
             throws MessagingException {
-        EmailContent.Message newMessage =
-                EmailContent.Message.restoreMessageWithId(context, messageId);
-        final boolean deleteUpdate;
-        if (newMessage == null) {
-            deleteUpdate = true;
-            LogUtils.d(Logging.LOG_TAG, "Upsync failed for null message, id=" + messageId);
-        } else if (mailbox.mType == Mailbox.TYPE_DRAFTS) {
-            deleteUpdate = false;
-            LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=drafts, id=" + messageId);
-        } else if (mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            deleteUpdate = false;
-            LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=outbox, id=" + messageId);
-        } else if (mailbox.mType == Mailbox.TYPE_TRASH) {
-            deleteUpdate = false;
-            LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=trash, id=" + messageId);
-        } else if (newMessage.mMailboxKey != mailbox.mId) {
-            deleteUpdate = false;
-            LogUtils.d(Logging.LOG_TAG, "Upsync skipped; mailbox changed, id=" + messageId);
-        } else {
-            LogUtils.d(Logging.LOG_TAG, "Upsync triggered for message id=" + messageId);
-            deleteUpdate =
-                    processPendingAppend(context, remoteStore, mailbox, newMessage, manualSync);
+        final ArrayList<EmailContent.Message> newMessages =
+                new ArrayList<EmailContent.Message>(messageIds.size());
+        for (long messageId : messageIds) {
+            EmailContent.Message newMessage =
+                    EmailContent.Message.restoreMessageWithId(context, messageId);
+            if (newMessage == null) {
+                LogUtils.d(Logging.LOG_TAG, "Upsync failed for null message, id=" + messageId);
+                deleteUploadUpdate(context, messageId);
+            } else if (mailbox.mType == Mailbox.TYPE_DRAFTS) {
+                LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=drafts, id=" + messageId);
+            } else if (mailbox.mType == Mailbox.TYPE_OUTBOX) {
+                LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=outbox, id=" + messageId);
+            } else if (mailbox.mType == Mailbox.TYPE_TRASH) {
+                LogUtils.d(Logging.LOG_TAG, "Upsync skipped for mailbox=trash, id=" + messageId);
+            } else if (newMessage.mMailboxKey != mailbox.mId) {
+                LogUtils.d(Logging.LOG_TAG, "Upsync skipped; mailbox changed, id=" + messageId);
+            } else {
+                LogUtils.d(Logging.LOG_TAG, "Upsync triggered for message id=" + messageId);
+                newMessages.add(newMessage);
+            }
         }
-        if (deleteUpdate) {
-            // Finally, delete the update (if any)
-            Uri uri = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, messageId);
-            context.getContentResolver().delete(uri, null, null);
+        // The batch is only uploaded together when the server takes or rejects it as a whole;
+        // otherwise each update is deleted as soon as its message is appended, so that a failure
+        // part way through doesn't upload the earlier messages again on the next attempt.
+        if (newMessages.size() > 1 && remoteStore instanceof ImapStore
+                && processPendingAppends(context, remoteStore, mailbox, newMessages, manualSync)) {
+            for (EmailContent.Message newMessage : newMessages) {
+                deleteUploadUpdate(context, newMessage.mId);
+            }
+            return;
+        }
+        for (EmailContent.Message newMessage : newMessages) {
+            if (processPendingAppend(context, remoteStore, mailbox, newMessage, manualSync)) {
+                deleteUploadUpdate(context, newMessage.mId);
+            }
         }
     }
 
     /**
-     * Upsync changes to read, flagged, or mailbox
+     * Delete the update (if any) of a message that has been upsynced.
+     */
+    private static void deleteUploadUpdate(Context context, long messageId) {
+        Uri uri = ContentUris.withAppendedId(
+                EmailContent.Message.UPDATED_CONTENT_URI, messageId);
+        context.getContentResolver().delete(uri, null, null);
+    }
+
+    /**
+     * Upsync changes to read, flagged, or mailbox.  The changes are left for
+     * {@link #processPendingChanges}, so that they can be made together with the other changes
+     * in the same remote mailbox.
      *
-     * @param remoteStore the remote store for this mailbox
      * @param mailbox the mailbox the message is stored in
      * @param changeRead whether the message's read state has changed
      * @param changeFlagged whether the message's flagged state has changed
      * @param changeMailbox whether the message's mailbox has changed
      * @param oldMessage the message in it's pre-change state
      * @param newMessage the current version of the message
+     * @param pendingChanges the changes to make once all of the updates have been processed
+     * @return true if the message has been added to {@code pendingChanges}, in which case its
+     *      update is deleted once the changes have been made
      */
-    private static void processPendingDataChange(final Context context, Store remoteStore,
-            Mailbox mailbox, boolean changeRead, boolean changeFlagged, boolean changeMailbox,
+    private static boolean processPendingDataChange(final Context context, Mailbox mailbox,
+            boolean changeRead, boolean changeFlagged, boolean changeMailbox,
             boolean changeAnswered, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+            final EmailContent.Message newMessage, Map<Long, PendingChanges> pendingChanges) {
         // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
         // being moved
         Mailbox newMailbox = mailbox;
@@ -1092,29 +1457,14 @@ public class ImapService extends Service {
         // 0. No remote update if the message is local-only
         if (newMessage.mServerId == null || newMessage.mServerId.equals("")
                 || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
-            return;
+            return false;
         }
 
         // 1. No remote update for DRAFTS or OUTBOX
         if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            return;
-        }
-
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return;
+            return false;
         }
 
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
-        }
         if (DebugUtils.DEBUG) {
             LogUtils.d(Logging.LOG_TAG,
                     "Update for msg id=" + newMessage.mId
@@ -1124,63 +1474,47 @@ public class ImapService extends Service {
                     + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
                     + " new mailbox=" + newMessage.mMailboxKey);
         }
-        Message[] messages = new Message[] { remoteMessage };
+
+        // 2. Leave the changes until all the messages in the same mailbox are known
+        final PendingChanges changes = getPendingChanges(pendingChanges, mailbox);
         if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
+            changes.addFlagChange(Flag.SEEN, newMessage.mFlagRead, newMessage.mServerId);
         }
         if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
+            changes.addFlagChange(Flag.FLAGGED, newMessage.mFlagFavorite, newMessage.mServerId);
         }
         if (changeAnswered) {
-            remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED,
-                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
+            changes.addFlagChange(Flag.ANSWERED,
+                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0,
+                    newMessage.mServerId);
         }
         if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
-                return;
-            }
-            // We may need the message id to search for the message in the destination folder
-            remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    // We only have one message, so, any updates _must_ be for it. Otherwise,
-                    // we'd have to cycle through to find the one with the same server ID.
-                    context.getContentResolver().update(ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, newMessage.mId), cv, null, null);
-                }
-
-                @Override
-                public void onMessageNotFound(Message message) {
-                }
-            });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+            addPendingMove(pendingChanges, mailbox, newMailbox, newMessage);
+        } else {
+            changes.mFlagChangeIds.add(newMessage.mId);
         }
-        remoteFolder.close(false);
+        return true;
     }
 
     /**
-     * Process a pending trash message command.
+     * Process a pending trash message command.  The move itself is left for
+     * {@link #processPendingChanges}, so that it can be done together with the other messages
+     * being moved to the trash.
      *
-     * @param remoteStore the remote store we're working in
      * @param newMailbox The local trash mailbox
      * @param oldMessage The message copy that was saved in the updates shadow table
      * @param newMessage The message that was moved to the mailbox
+     * @param pendingChanges the changes to make once all of the updates have been processed
+     * @return true if the message has been added to {@code pendingChanges}
      */
-    private static void processPendingMoveToTrash(final Context context, Store remoteStore,
+    private static boolean processPendingMoveToTrash(final Context context,
             Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+            final EmailContent.Message newMessage, Map<Long, PendingChanges> pendingChanges) {
 
         // 0. No remote move if the message is local-only
         if (newMessage.mServerId == null || newMessage.mServerId.equals("")
                 || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
+            return false;
         }
 
         // 1. Escape early if we can't find the local mailbox
@@ -1188,84 +1522,165 @@ public class ImapService extends Service {
         Mailbox oldMailbox = getRemoteMailboxForMessage(context, oldMessage);
         if (oldMailbox == null) {
             // can't find old mailbox, it may have been deleted.  just return.
-            return;
+            return false;
         }
         // 2. We don't support delete-from-trash here
         if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
-            return;
+            return false;
         }
 
-        // The rest of this method handles server-side deletion
+        // The rest is handled by processPendingChanges()
+        addPendingMove(pendingChanges, oldMailbox, newMailbox, newMessage);
+        return true;
+    }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
+    private static PendingChanges getPendingChanges(Map<Long, PendingChanges> pendingChanges,
+            Mailbox mailbox) {
+        PendingChanges changes = pendingChanges.get(mailbox.mId);
+        if (changes == null) {
+            changes = new PendingChanges(mailbox);
+            pendingChanges.put(mailbox.mId, changes);
         }
+        return changes;
+    }
 
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteFolder.close(false);
-            return;
+    private static void addPendingMove(Map<Long, PendingChanges> pendingChanges,
+            Mailbox fromMailbox, Mailbox toMailbox, EmailContent.Message message) {
+        final PendingChanges changes = getPendingChanges(pendingChanges, fromMailbox);
+        PendingMoves moves = changes.mMoves.get(toMailbox.mId);
+        if (moves == null) {
+            moves = new PendingMoves(fromMailbox, toMailbox);
+            changes.mMoves.put(toMailbox.mId, moves);
         }
+        moves.mMessages.put(message.mServerId, message);
+    }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
+    /**
+     * Makes the changes waiting for a remote mailbox: selects it, changes the flags with one
+     * STORE per flag and value, moves the messages with one MOVE (if the server supports it) per
+     * destination, and then deletes their updates.  If the mailbox can't be found or changed on
+     * the server, the updates are dropped.
+     *
+     * @param remoteStore the remote store we're working in
+     * @param changes the changes to make
+     */
+    private static void processPendingChanges(final Context context, Store remoteStore,
+            final PendingChanges changes) throws MessagingException {
+        // 1. Find the remote mailbox, and open it
+        final Folder remoteFolder = remoteStore.getFolder(changes.mMailbox.mServerId);
+        if (remoteFolder.exists()) {
+            remoteFolder.open(OpenMode.READ_WRITE);
+            try {
+                if (remoteFolder.getMode() == OpenMode.READ_WRITE) {
+                    // 2. Change the flags, before the messages are moved
+                    storePendingFlags(remoteFolder, changes.mSetFlags, true);
+                    storePendingFlags(remoteFolder, changes.mClearFlags, false);
+
+                    // 3. Move the messages
+                    for (PendingMoves moves : changes.mMoves.values()) {
+                        processPendingMoves(context, remoteStore, remoteFolder, moves);
+                    }
+                }
+            } finally {
+                remoteFolder.close(false);
+            }
         }
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+        // 4. Finally, delete the updates
+        final ContentResolver resolver = context.getContentResolver();
+        for (long messageId : changes.mFlagChangeIds) {
+            resolver.delete(ContentUris.withAppendedId(
+                    EmailContent.Message.UPDATED_CONTENT_URI, messageId), null, null);
+        }
+        for (PendingMoves moves : changes.mMoves.values()) {
+            for (EmailContent.Message message : moves.mMessages.values()) {
+                resolver.delete(ContentUris.withAppendedId(
+                        EmailContent.Message.UPDATED_CONTENT_URI, message.mId), null, null);
+            }
         }
+    }
 
-        // 7. Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
-                return;
+    /**
+     * Sets or clears each flag in {@code flags} on the messages with the given server ids.
+     */
+    private static void storePendingFlags(Folder remoteFolder,
+            HashMap<Flag, ArrayList<String>> flags, boolean value) throws MessagingException {
+        for (Map.Entry<Flag, ArrayList<String>> entry : flags.entrySet()) {
+            final ArrayList<String> serverIds = entry.getValue();
+            final Message[] remoteMessages = new Message[serverIds.size()];
+            for (int i = 0; i < remoteMessages.length; i++) {
+                remoteMessages[i] = remoteFolder.createMessage(serverIds.get(i));
             }
+            remoteFolder.setFlags(remoteMessages, new Flag[] { entry.getKey() }, value);
+        }
+    }
 
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
-                    new Folder.MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    context.getContentResolver().update(newMessage.getUri(), cv, null, null);
+    /**
+     * Moves messages between two remote mailboxes, with a single UID MOVE (per UID set) if the
+     * server supports it.
+     *
+     * @param remoteStore the remote store we're working in
+     * @param remoteFolder the remote mailbox the messages are moving from, open read-write
+     * @param moves the messages to move, and the mailboxes they're moving between
+     */
+    private static void processPendingMoves(final Context context, Store remoteStore,
+            Folder remoteFolder, final PendingMoves moves) throws MessagingException {
+        final boolean toTrash = moves.mToMailbox.mType == Mailbox.TYPE_TRASH;
+
+        // 1. Find the remote destination folder; the trash is created if not found
+        Folder toFolder = remoteStore.getFolder(moves.mToMailbox.mServerId);
+        if (toTrash && !toFolder.exists()) {
+            toFolder.create(FolderType.HOLDS_MESSAGES);
+        }
+
+        final Message[] remoteMessages = new Message[moves.mMessages.size()];
+        int i = 0;
+        for (EmailContent.Message message : moves.mMessages.values()) {
+            remoteMessages[i] = remoteFolder.createMessage(message.mServerId);
+            // We may need the message id to search for the message in the destination
+            remoteMessages[i].setMessageId(message.mMessageId);
+            i++;
+        }
+        final MessageUpdateCallbacks callbacks = new MessageUpdateCallbacks() {
+            @Override
+            public void onMessageUidChange(Message message, String newUid) {
+                final EmailContent.Message localMessage = moves.mMessages.get(message.getUid());
+                if (localMessage == null) {
+                    return;
                 }
+                ContentValues cv = new ContentValues();
+                cv.put(MessageColumns.SERVER_ID, newUid);
+                context.getContentResolver().update(localMessage.getUri(), cv, null, null);
+            }
 
-                /**
-                 * This will be called if the deleted message doesn't exist and can't be
-                 * deleted (e.g. it was already deleted from the server.)  In this case,
-                 * attempt to delete the local copy as well.
-                 */
-                @Override
-                public void onMessageNotFound(Message message) {
-                    context.getContentResolver().delete(newMessage.getUri(), null, null);
+            /**
+             * This will be called if the message doesn't exist and can't be moved (e.g. it was
+             * already deleted from the server.)  If it was being moved to the trash, attempt to
+             * delete the local copy as well.
+             */
+            @Override
+            public void onMessageNotFound(Message message) {
+                final EmailContent.Message localMessage = moves.mMessages.get(message.getUid());
+                if (toTrash && localMessage != null) {
+                    context.getContentResolver().delete(localMessage.getUri(), null, null);
                 }
-            });
-            remoteTrashFolder.close(false);
-        }
+            }
+        };
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
-        remoteFolder.close(false);
+        // 2. Move the messages
+        if (toFolder.exists()) {
+            if (remoteFolder instanceof ImapFolder) {
+                ((ImapFolder) remoteFolder).moveMessages(remoteMessages, toFolder, callbacks);
+            } else {
+                remoteFolder.copyMessages(remoteMessages, toFolder, callbacks);
+                remoteFolder.setFlags(remoteMessages, FLAG_LIST_DELETED, true);
+                expungeMessages(remoteFolder, remoteMessages);
+            }
+        } else if (toTrash) {
+            // Note, this will be the case for POP3 because there's no remote trash
+            remoteFolder.setFlags(remoteMessages, FLAG_LIST_DELETED, true);
+            expungeMessages(remoteFolder, remoteMessages);
+        }
     }
 
     /**
@@ -1291,22 +1706,23 @@ public class ImapService extends Service {
         }
 
         remoteTrashFolder.open(OpenMode.READ_WRITE);
-        if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteTrashFolder.close(false);
-            return;
-        }
+        try {
+            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
+                return;
+            }
+
+            // 3. Find the remote original message
+            Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
+            if (remoteMessage == null) {
+                return;
+            }
 
-        // 3. Find the remote original message
-        Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
+            // 4. Delete the message from the remote trash folder
+            remoteMessage.setFlag(Flag.DELETED, true);
+            expungeMessages(remoteTrashFolder, new Message[] { remoteMessage });
+        } finally {
             remoteTrashFolder.close(false);
-            return;
         }
-
-        // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
-        remoteTrashFolder.close(false);
     }
 
     /**
@@ -1336,91 +1752,95 @@ public class ImapService extends Service {
             }
         }
         remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return false;
-        }
+        try {
+            if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+                return false;
+            }
 
-        // 2. If possible, load a remote message with the matching UID
-        Message remoteMessage = null;
-        if (message.mServerId != null && message.mServerId.length() > 0) {
-            remoteMessage = remoteFolder.getMessage(message.mServerId);
-        }
-
-        // 3. If a remote message could not be found, upload our local message
-        if (remoteMessage == null) {
-            // TODO:
-            // if we have a serverId and remoteMessage is still null, then probably the message
-            // has been deleted and we should delete locally.
-            // 3a. Create a legacy message to upload
-            Message localMessage = LegacyConversions.makeMessage(context, message);
-            // 3b. Upload it
-            //FetchProfile fp = new FetchProfile();
-            //fp.add(FetchProfile.Item.BODY);
-            // Note that this operation will assign the Uid to localMessage
-            remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
-
-            // 3b. And record the UID from the server
-            message.mServerId = localMessage.getUid();
-            updateInternalDate = true;
-            updateMessage = true;
-        } else {
-            // 4. If the remote message exists we need to determine which copy to keep.
-            // TODO:
-            // I don't see a good reason we should be here. If the message already has a serverId,
-            // then we should be handling it in processPendingUpdates(),
-            // not processPendingUploads()
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.ENVELOPE);
-            remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-            Date localDate = new Date(message.mServerTimeStamp);
-            Date remoteDate = remoteMessage.getInternalDate();
-            if (remoteDate != null && remoteDate.compareTo(localDate) > 0) {
-                // 4a. If the remote message is newer than ours we'll just
-                // delete ours and move on. A sync will get the server message
-                // if we need to be able to see it.
-                deleteMessage = true;
-            } else {
-                // 4b. Otherwise we'll upload our message and then delete the remote message.
+            // 2. If possible, load a remote message with the matching UID
+            Message remoteMessage = null;
+            if (message.mServerId != null && message.mServerId.length() > 0) {
+                remoteMessage = remoteFolder.getMessage(message.mServerId);
+            }
 
-                // Create a legacy message to upload
-                // TODO: This strategy has a problem: This will create a second message,
-                // so that at least temporarily, we will have two messages for what the
-                // user would think of as one.
+            // 3. If a remote message could not be found, upload our local message
+            if (remoteMessage == null) {
+                // TODO:
+                // if we have a serverId and remoteMessage is still null, then probably the message
+                // has been deleted and we should delete locally.
+                // 3a. Create a legacy message to upload
                 Message localMessage = LegacyConversions.makeMessage(context, message);
-
-                // 4c. Upload it
-                fp.clear();
-                fp = new FetchProfile();
-                fp.add(FetchProfile.Item.BODY);
+                // 3b. Upload it
+                //FetchProfile fp = new FetchProfile();
+                //fp.add(FetchProfile.Item.BODY);
+                // Note that this operation will assign the Uid to localMessage
                 remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
 
-                // 4d. Record the UID and new internalDate from the server
+                // 3b. And record the UID from the server
                 message.mServerId = localMessage.getUid();
                 updateInternalDate = true;
                 updateMessage = true;
+            } else {
+                // 4. If the remote message exists we need to determine which copy to keep.
+                // TODO:
+                // I don't see a good reason we should be here. If the message already has a
+                // serverId, then we should be handling it in processPendingUpdates(),
+                // not processPendingUploads()
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.ENVELOPE);
+                remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+                Date localDate = new Date(message.mServerTimeStamp);
+                Date remoteDate = remoteMessage.getInternalDate();
+                if (remoteDate != null && remoteDate.compareTo(localDate) > 0) {
+                    // 4a. If the remote message is newer than ours we'll just
+                    // delete ours and move on. A sync will get the server message
+                    // if we need to be able to see it.
+                    deleteMessage = true;
+                } else {
+                    // 4b. Otherwise we'll upload our message and then delete the remote message.
+
+                    // Create a legacy message to upload
+                    // TODO: This strategy has a problem: This will create a second message,
+                    // so that at least temporarily, we will have two messages for what the
+                    // user would think of as one.
+                    Message localMessage = LegacyConversions.makeMessage(context, message);
 
-                // 4e. And delete the old copy of the message from the server.
-                remoteMessage.setFlag(Flag.DELETED, true);
+                    // 4c. Upload it
+                    fp.clear();
+                    fp = new FetchProfile();
+                    fp.add(FetchProfile.Item.BODY);
+                    remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+
+                    // 4d. Record the UID and new internalDate from the server
+                    message.mServerId = localMessage.getUid();
+                    updateInternalDate = true;
+                    updateMessage = true;
+
+                    // 4e. And delete the old copy of the message from the server.
+                    remoteMessage.setFlag(Flag.DELETED, true);
+                }
             }
-        }
 
-        // 5. If requested, Best-effort to capture new "internaldate" from the server
-        if (updateInternalDate && message.mServerId != null) {
-            try {
-                Message remoteMessage2 = remoteFolder.getMessage(message.mServerId);
-                if (remoteMessage2 != null) {
-                    FetchProfile fp2 = new FetchProfile();
-                    fp2.add(FetchProfile.Item.ENVELOPE);
-                    remoteFolder.fetch(new Message[] { remoteMessage2 }, fp2, null);
-                    final Date remoteDate = remoteMessage2.getInternalDate();
-                    if (remoteDate != null) {
-                        message.mServerTimeStamp = remoteMessage2.getInternalDate().getTime();
-                        updateMessage = true;
+            // 5. If requested, Best-effort to capture new "internaldate" from the server
+            if (updateInternalDate && message.mServerId != null) {
+                try {
+                    Message remoteMessage2 = remoteFolder.getMessage(message.mServerId);
+                    if (remoteMessage2 != null) {
+                        FetchProfile fp2 = new FetchProfile();
+                        fp2.add(FetchProfile.Item.ENVELOPE);
+                        remoteFolder.fetch(new Message[] { remoteMessage2 }, fp2, null);
+                        final Date remoteDate = remoteMessage2.getInternalDate();
+                        if (remoteDate != null) {
+                            message.mServerTimeStamp = remoteMessage2.getInternalDate().getTime();
+                            updateMessage = true;
+                        }
                     }
+                } catch (MessagingException me) {
+                    // skip it - we can live without this
                 }
-            } catch (MessagingException me) {
-                // skip it - we can live without this
             }
+        } finally {
+            remoteFolder.close(false);
         }
 
         // 6. Perform required edits to local copy of message
@@ -1441,15 +1861,299 @@ public class ImapService extends Service {
     }
 
     /**
-     * A message and numeric uid that's easily sortable
+     * Like {@link #processPendingAppend}, for several new messages (without a server id) in the
+     * same mailbox of an IMAP account.  They're uploaded with a single APPEND, which needs a
+     * server that supports MULTIAPPEND, and their internal dates are fetched with a single FETCH.
+     *
+     * @return true if successfully uploaded, false if none of them were uploaded (including when
+     * the server can't take them in a single APPEND)
+     */
+    private static boolean processPendingAppends(Context context, Store remoteStore,
+            Mailbox mailbox, List<EmailContent.Message> messages, boolean manualSync)
+            throws MessagingException {
+        // 1. Find the remote folder that we're appending to and create and/or open it
+        final ImapFolder remoteFolder = (ImapFolder) remoteStore.getFolder(mailbox.mServerId);
+        if (!remoteFolder.exists()) {
+            if (!remoteFolder.create(FolderType.HOLDS_MESSAGES)) {
+                // This is a (hopefully) transient error and we return false to try again later
+                return false;
+            }
+        }
+        final Message[] localMessages = new Message[messages.size()];
+        final HashMap<String, Message> remoteMessages = new HashMap<String, Message>();
+        remoteFolder.open(OpenMode.READ_WRITE);
+        try {
+            if (remoteFolder.getMode() != OpenMode.READ_WRITE
+                    || !remoteFolder.canAppendMessagesTogether()) {
+                return false;
+            }
+
+            // 2. Upload them.  Note that this will assign the Uids to localMessages
+            for (int i = 0; i < localMessages.length; i++) {
+                localMessages[i] = LegacyConversions.makeMessage(context, messages.get(i));
+            }
+            remoteFolder.appendMessages(context, localMessages, manualSync /* no timeout */);
+
+            // 3. Best-effort to capture the new "internaldate"s from the server
+            for (Message localMessage : localMessages) {
+                final String uid = localMessage.getUid();
+                if (uid != null) {
+                    remoteMessages.put(uid, remoteFolder.createMessage(uid));
+                }
+            }
+            if (!remoteMessages.isEmpty()) {
+                try {
+                    final FetchProfile fp = new FetchProfile();
+                    fp.add(FetchProfile.Item.ENVELOPE);
+                    remoteFolder.fetch(remoteMessages.values().toArray(Message.EMPTY_ARRAY), fp,
+                            null);
+                } catch (MessagingException me) {
+                    // skip it - we can live without this
+                }
+            }
+        } finally {
+            remoteFolder.close(false);
+        }
+
+        // 4. Record the UIDs and internal dates in the local copies
+        final ContentResolver resolver = context.getContentResolver();
+        for (int i = 0; i < localMessages.length; i++) {
+            final EmailContent.Message message = messages.get(i);
+            message.mServerId = localMessages[i].getUid();
+            final ContentValues cv = new ContentValues();
+            cv.put(MessageColumns.SERVER_ID, message.mServerId);
+            final Message remoteMessage = remoteMessages.get(message.mServerId);
+            if (remoteMessage != null && remoteMessage.getInternalDate() != null) {
+                message.mServerTimeStamp = remoteMessage.getInternalDate().getTime();
+                cv.put(MessageColumns.SERVER_TIMESTAMP, message.mServerTimeStamp);
+            }
+            resolver.update(ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI,
+                    message.mId), cv, null, null);
+        }
+        return true;
+    }
+
+    /**
+     * Starts or stops push for an account, according to its sync interval. Any push sessions
+     * that are already running for the account are restarted, so that they pick up changes to
+     * the account's settings and to the set of mailboxes enabled for sync.
      */
-    private static class SortableMessage {
-        private final Message mMessage;
-        private final long mUid;
+    static void updatePush(final Context context, final long accountId) {
+        synchronized (sPushers) {
+            final ArrayList<ImapPusher> oldPushers = sPushers.remove(accountId);
+            if (oldPushers != null) {
+                for (ImapPusher pusher : oldPushers) {
+                    pusher.stop();
+                }
+            }
+            final Account account = Account.restoreAccountWithId(context, accountId);
+            if (account == null || account.mSyncInterval != Account.CHECK_INTERVAL_PUSH) {
+                return;
+            }
+            final Store remoteStore;
+            try {
+                remoteStore = Store.getInstance(account, context);
+            } catch (MessagingException me) {
+                LogUtils.d(Logging.LOG_TAG, me, "Unable to start push for account %d", accountId);
+                return;
+            }
+            if (!(remoteStore instanceof ImapStore)) {
+                return;
+            }
+            final ArrayList<ImapPusher> pushers = new ArrayList<ImapPusher>();
+            final Cursor c = Mailbox.getMailboxIdsForSync(context.getContentResolver(), accountId);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        final Mailbox mailbox = Mailbox.restoreMailboxWithId(context,
+                                c.getLong(Mailbox.ID_PROJECTION_COLUMN));
+                        if (mailbox == null || mailbox.mType == Mailbox.TYPE_DRAFTS
+                                || mailbox.mType == Mailbox.TYPE_OUTBOX
+                                || mailbox.mType == Mailbox.TYPE_SEARCH) {
+                            continue;
+                        }
+                        final ImapPusher pusher = new ImapPusher((ImapStore) remoteStore,
+                                mailbox.mServerId, new PushCallback(context, accountId,
+                                mailbox.mId));
+                        pusher.start();
+                        pushers.add(pusher);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            LogUtils.d(Logging.LOG_TAG, "Started push for %d mailboxes of account %d",
+                    pushers.size(), accountId);
+            sPushers.put(accountId, pushers);
+        }
+    }
+
+    /**
+     * Makes sure push is running for an account that wants it, without disturbing push sessions
+     * that are already running.
+     */
+    static void startPushIfNeeded(final Context context, final Account account) {
+        synchronized (sPushers) {
+            final boolean running = sPushers.containsKey(account.mId);
+            if (running != (account.mSyncInterval == Account.CHECK_INTERVAL_PUSH)) {
+                updatePush(context, account.mId);
+            }
+        }
+    }
+
+    /**
+     * Expunges {@code messages}, which have been marked as deleted, from {@code folder}.  On IMAP
+     * folders this leaves other deleted messages alone if the server supports it.
+     */
+    private static void expungeMessages(Folder folder, Message[] messages)
+            throws MessagingException {
+        if (folder instanceof ImapFolder) {
+            ((ImapFolder) folder).expungeMessages(messages);
+        } else {
+            folder.expunge();
+        }
+    }
+
+    /**
+     * Applies the changes reported by an {@link ImapPusher} to the local copy of its mailbox.
+     * Each change only touches the messages involved, rather than syncing the whole mailbox.
+     *
+     * These hold the account's {@link AccountSyncLock}, as {@link #synchronizeMailboxSynchronous}
+     * does, so that push and regular sync don't step on each other.
+     */
+    private static class PushCallback implements ImapPusher.Callback {
+        private final Context mContext;
+        private final long mAccountId;
+        private final long mMailboxId;
+
+        PushCallback(Context context, long accountId, long mailboxId) {
+            mContext = context;
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+        }
+
+        @Override
+        public void onMessagesAdded(String[] uids) {
+            AccountSyncLock.lock(mAccountId);
+            try {
+                final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+                final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
+                if (account == null || mailbox == null) {
+                    return;
+                }
+                TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+                final LocalMessageIndex localMessages =
+                        LocalMessageIndex.load(mContext, mAccountId, mMailboxId, uids);
+                Store remoteStore = null;
+                try {
+                    remoteStore = Store.getInstance(account, mContext);
+                    final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+                    remoteFolder.open(OpenMode.READ_WRITE);
+                    try {
+                        final Message[] remoteMessages = remoteFolder.getMessages(uids, null);
+                        // Load the most recent message first, as in synchronizeMailboxGeneric()
+                        final ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
+                        for (int i = remoteMessages.length - 1; i >= 0; i--) {
+                            final int localPosition =
+                                    localMessages.find(remoteMessages[i].getUid());
+                            if (localPosition < 0 ||
+                                    (localMessages.getFlagLoaded(localPosition) ==
+                                            EmailContent.Message.FLAG_LOADED_UNLOADED) ||
+                                    (localMessages.getFlagLoaded(localPosition) ==
+                                            EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+                                unsyncedMessages.add(remoteMessages[i]);
+                            }
+                        }
+                        if (unsyncedMessages.size() > 0) {
+                            downloadFlagAndEnvelope(mContext, account, mailbox, remoteFolder,
+                                    unsyncedMessages, localMessages, null);
+                            for (final Message remoteMessage : remoteMessages) {
+                                if (remoteMessage.isSet(Flag.DELETED)) {
+                                    unsyncedMessages.remove(remoteMessage);
+                                }
+                            }
+                            loadUnsyncedMessages(mContext, account, remoteFolder, unsyncedMessages,
+                                    mailbox);
+                        }
+                    } finally {
+                        remoteFolder.close(false);
+                    }
+                } catch (MessagingException me) {
+                    LogUtils.d(Logging.LOG_TAG, me, "Error loading pushed messages");
+                } finally {
+                    if (remoteStore != null) {
+                        remoteStore.closeConnections();
+                    }
+                }
+            } finally {
+                AccountSyncLock.unlock(mAccountId);
+            }
+        }
+
+        @Override
+        public void onMessagesExpunged(String[] uids) {
+            AccountSyncLock.lock(mAccountId);
+            try {
+                final SyncWriteBatch batch = new SyncWriteBatch(mContext);
+                final LocalMessageIndex localMessages =
+                        LocalMessageIndex.load(mContext, mAccountId, mMailboxId, uids);
+                for (int i = 0; i < localMessages.size(); i++) {
+                    deleteLocalMessage(mContext, batch, mAccountId, localMessages.getId(i));
+                }
+                batch.flush();
+            } finally {
+                AccountSyncLock.unlock(mAccountId);
+            }
+        }
 
-        SortableMessage(Message message, long uid) {
-            mMessage = message;
-            mUid = uid;
+        @Override
+        public void onFlagsChanged(Message[] messages) {
+            AccountSyncLock.lock(mAccountId);
+            try {
+                final String[] uids = new String[messages.length];
+                for (int i = 0; i < messages.length; i++) {
+                    uids[i] = messages[i].getUid();
+                }
+                final LocalMessageIndex localMessages =
+                        LocalMessageIndex.load(mContext, mAccountId, mMailboxId, uids);
+                final SyncWriteBatch batch = new SyncWriteBatch(mContext);
+                for (Message remoteMessage : messages) {
+                    final int localPosition = localMessages.find(remoteMessage.getUid());
+                    if (localPosition >= 0) {
+                        updateLocalFlags(batch, localMessages, localPosition, remoteMessage,
+                                true, true, true);
+                    }
+                }
+                batch.flush();
+            } finally {
+                AccountSyncLock.unlock(mAccountId);
+            }
+        }
+
+        @Override
+        public void onReconnected() {
+            final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
+            if (account == null || mailbox == null) {
+                return;
+            }
+            try {
+                synchronizeMailboxSynchronous(mContext, account, mailbox, false, false);
+            } catch (MessagingException me) {
+                LogUtils.d(Logging.LOG_TAG, me, "Error syncing mailbox after reconnect");
+            }
+        }
+    }
+
+    /**
+     * Sorts {@code uids} in place, highest (i.e. newest) first.
+     */
+    private static void sortNewestFirst(long[] uids) {
+        Arrays.sort(uids);
+        for (int i = 0, j = uids.length - 1; i < j; i++, j--) {
+            final long uid = uids[i];
+            uids[i] = uids[j];
+            uids[j] = uid;
         }
     }
 
@@ -1470,53 +2174,70 @@ public class ImapService extends Service {
         destMailbox.update(context, statusValues);
 
         Store remoteStore = null;
+        Folder remoteFolder = null;
         int numSearchResults = 0;
         try {
             remoteStore = Store.getInstance(account, context);
-            final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+            remoteFolder = remoteStore.getFolder(mailbox.mServerId);
             remoteFolder.open(OpenMode.READ_WRITE);
 
-            SortableMessage[] sortableMessages = new SortableMessage[0];
+            long[] uids = null;
             if (searchParams.mOffset == 0) {
-                // Get the "bare" messages (basically uid)
-                final Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
-                final int remoteCount = remoteMessages.length;
-                if (remoteCount > 0) {
-                    sortableMessages = new SortableMessage[remoteCount];
-                    int i = 0;
-                    for (Message msg : remoteMessages) {
-                        sortableMessages[i++] = new SortableMessage(msg,
-                                Long.parseLong(msg.getUid()));
+                boolean sorted = false;
+                if (remoteFolder instanceof ImapFolder) {
+                    // Just the UIDs; with ESEARCH the server sends them as a sequence set, and
+                    // with SORT it sends them newest first.
+                    final ImapSearchResult result =
+                            ((ImapFolder) remoteFolder).search(searchParams);
+                    uids = result.getUids().clone();
+                    sorted = result.isSorted();
+                } else {
+                    // Get the "bare" messages (basically uid)
+                    final Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
+                    uids = new long[remoteMessages.length];
+                    for (int i = 0; i < remoteMessages.length; i++) {
+                        uids[i] = Long.parseLong(remoteMessages[i].getUid());
                     }
+                }
+                if (!sorted) {
                     // Sort the uid's, most recent first
                     // Note: Not all servers will be nice and return results in the order of
                     // request; those that do will see messages arrive from newest to oldest
-                    Arrays.sort(sortableMessages, new Comparator<SortableMessage>() {
-                        @Override
-                        public int compare(SortableMessage lhs, SortableMessage rhs) {
-                            return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
-                        }
-                    });
-                    sSearchResults.put(accountId, sortableMessages);
+                    sortNewestFirst(uids);
+                }
+                // Report how many messages the server found, even if we only keep the newest
+                numSearchResults = uids.length;
+                if (uids.length > MAX_SEARCH_RESULTS) {
+                    uids = Arrays.copyOf(uids, MAX_SEARCH_RESULTS);
+                }
+                if (uids.length > 0) {
+                    sSearchResults.put(accountId, uids);
+                    sSearchResultCounts.put(accountId, numSearchResults);
+                } else {
+                    sSearchResults.remove(accountId);
+                    sSearchResultCounts.remove(accountId);
                 }
             } else {
                 // It seems odd for this to happen, but if the previous query returned zero results,
                 // but the UI somehow still attempted to load more, then sSearchResults will have
                 // a null value for this account. We need to handle this below.
-                sortableMessages = sSearchResults.get(accountId);
+                uids = sSearchResults.get(accountId);
+                final Integer count = sSearchResultCounts.get(accountId);
+                numSearchResults = (count != null ? count : 0);
             }
 
-            numSearchResults = (sortableMessages != null ? sortableMessages.length : 0);
+            final int numLoadable = (uids != null ? uids.length : 0);
             final int numToLoad =
-                    Math.min(numSearchResults - searchParams.mOffset, searchParams.mLimit);
+                    Math.min(numLoadable - searchParams.mOffset, searchParams.mLimit);
             destMailbox.updateMessageCount(context, numSearchResults);
             if (numToLoad <= 0) {
                 return 0;
             }
 
-            final ArrayList<Message> messageList = new ArrayList<>();
-            for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-                messageList.add(sortableMessages[i].mMessage);
+            final Message[] messageArray = new Message[numToLoad];
+            for (int i = 0; i < numToLoad; i++) {
+                final long uid = uids[searchParams.mOffset + i];
+                messageArray[i] = remoteFolder.createMessage(Long.toString(uid));
             }
             // First fetch FLAGS and ENVELOPE. In a second pass, we'll fetch STRUCTURE and
             // the first body part.
@@ -1524,85 +2245,70 @@ public class ImapService extends Service {
             fp.add(FetchProfile.Item.FLAGS);
             fp.add(FetchProfile.Item.ENVELOPE);
 
-            Message[] messageArray = messageList.toArray(new Message[messageList.size()]);
-
-            // TODO: We are purposely processing messages with a MessageRetrievalListener here,
-            // rather than just walking the messageArray after the operation completes. This is so
-            // that we can immediately update the database so the user can see something useful
-            // happening, even if the message body has not yet been fetched.
-            // There are some issues with this approach:
-            // 1. It means that we have a single thread doing both network and database operations,
-            // and either can block the other. The database updates could slow down the network
-            // reads, keeping our network connection open longer than is really necessary.
-            // 2. We still load all of this data into messageArray, even though it's not used.
-            // It would be nicer if we had one thread doing the network operation, and a separate
-            // thread consuming that data and performing the appropriate database work, then
-            // discarding the data as soon as it is no longer needed. This would reduce our memory
-            // footprint and potentially allow our network operation to complete faster.
-            remoteFolder.fetch(messageArray, fp, new MessageRetrievalListener() {
-                @Override
-                public void messageRetrieved(Message message) {
-                    try {
-                        EmailContent.Message localMessage = new EmailContent.Message();
-
-                        // Copy the fields that are available into the message
-                        LegacyConversions.updateMessageFields(localMessage,
-                                message, account.mId, mailbox.mId);
-                        // Save off the mailbox that this message *really* belongs in.
-                        // We need this information if we need to do more lookups
-                        // (like loading attachments) for this message. See b/11294681
-                        localMessage.mMainMailboxKey = localMessage.mMailboxKey;
-                        localMessage.mMailboxKey = destMailboxId;
-                        // We load 50k or so; maybe it's complete, maybe not...
-                        int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                        // We store the serverId of the source mailbox into protocolSearchInfo
-                        // This will be used by loadMessageForView, etc. to use the proper remote
-                        // folder
-                        localMessage.mProtocolSearchInfo = mailbox.mServerId;
-                        // Commit the message to the local store
-                        Utilities.saveOrUpdate(localMessage, context);
-                    } catch (MessagingException me) {
-                        LogUtils.e(Logging.LOG_TAG, me,
-                                "Error while copying downloaded message.");
-                    } catch (Exception e) {
-                        LogUtils.e(Logging.LOG_TAG, e,
-                                "Error while storing downloaded message.");
+            // We process messages with a MessageRetrievalListener here, rather than just walking
+            // the messageArray after the operation completes, so that the user sees something
+            // useful happening even if the message body has not yet been fetched. The database
+            // work is done on another thread, so that it doesn't hold up the network reads.
+            final SyncPipeline<EmailContent.Message> envelopes =
+                    newEnvelopePipeline(context, null);
+            final SyncPipeline<Message> messages =
+                    newMessagePipeline(context, account, destMailbox);
+            try {
+                remoteFolder.fetch(messageArray, fp, new MessageRetrievalListener() {
+                    @Override
+                    public void messageRetrieved(Message message) {
+                        try {
+                            EmailContent.Message localMessage = new EmailContent.Message();
+
+                            // Copy the fields that are available into the message
+                            LegacyConversions.updateMessageFields(localMessage,
+                                    message, account.mId, mailbox.mId);
+                            // Save off the mailbox that this message *really* belongs in.
+                            // We need this information if we need to do more lookups
+                            // (like loading attachments) for this message. See b/11294681
+                            localMessage.mMainMailboxKey = localMessage.mMailboxKey;
+                            localMessage.mMailboxKey = destMailboxId;
+                            // We store the serverId of the source mailbox into
+                            // protocolSearchInfo. This will be used by loadMessageForView, etc.
+                            // to use the proper remote folder
+                            localMessage.mProtocolSearchInfo = mailbox.mServerId;
+                            // Commit the message to the local store
+                            envelopes.put(localMessage);
+                        } catch (MessagingException me) {
+                            LogUtils.e(Logging.LOG_TAG, me,
+                                    "Error while copying downloaded message.");
+                        } catch (Exception e) {
+                            LogUtils.e(Logging.LOG_TAG, e,
+                                    "Error while storing downloaded message.");
+                        }
                     }
-                }
 
-                @Override
-                public void loadAttachmentProgress(int progress) {
-                }
-            });
+                    @Override
+                    public void loadAttachmentProgress(int progress) {
+                    }
+                });
 
-            // Now load the structure for all of the messages:
-            fp.clear();
-            fp.add(FetchProfile.Item.STRUCTURE);
-            remoteFolder.fetch(messageArray, fp, null);
-
-            // Finally, load the first body part (i.e. message text).
-            // This means attachment contents are not yet loaded, but that's okay,
-            // we'll load them as needed, same as in synced messages.
-            Message[] oneMessageArray = new Message[1];
-            for (Message message : messageArray) {
-                // Build a list of parts we are interested in. Text parts will be downloaded
-                // right now, attachments will be left for later.
-                ArrayList<Part> viewables = new ArrayList<>();
-                ArrayList<Part> attachments = new ArrayList<>();
-                MimeUtility.collectParts(message, viewables, attachments);
-                // Download the viewables immediately
-                oneMessageArray[0] = message;
-                for (Part part : viewables) {
-                    fp.clear();
-                    fp.add(part);
-                    remoteFolder.fetch(oneMessageArray, fp, null);
-                }
-                // Store the updated message locally and mark it fully loaded
-                Utilities.copyOneMessageToProvider(context, message, account, destMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                // Now load the structure for all of the messages:
+                fp.clear();
+                fp.add(FetchProfile.Item.STRUCTURE);
+                remoteFolder.fetch(messageArray, fp, null);
+                // The messages are stored over the envelopes, so those must be saved by now
+                envelopes.finish();
+
+                // Finally, load the first body part (i.e. message text).
+                // This means attachment contents are not yet loaded, but that's okay,
+                // we'll load them as needed, same as in synced messages.
+                fetchViewables(remoteFolder, messageArray, messages);
+                messages.finish();
+            } finally {
+                envelopes.abort();
+                messages.abort();
             }
 
         } finally {
+            if (remoteFolder != null) {
+                remoteFolder.close(false);
+            }
             if (remoteStore != null) {
                 remoteStore.closeConnections();
             }
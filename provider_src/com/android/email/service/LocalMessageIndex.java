@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+
+import java.util.Arrays;
+
+/**
+ * What an IMAP sync needs to know about the local copies of the messages it looks at: their ids,
+ * the flags the sync compares with the server's, whether they've been loaded, and their
+ * timestamps.  The messages are kept sorted by UID in arrays, rather than as an object per
+ * message in a map, as a sync may look at tens of thousands of them.
+ *
+ * <p>Messages are looked up by UID, and walked by position, from 0 to {@link #size()}.  Messages
+ * without a UID are local only, and are left out.
+ */
+class LocalMessageIndex {
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_FLAG_READ = 1;
+    private static final int COLUMN_FLAG_FAVORITE = 2;
+    private static final int COLUMN_FLAG_LOADED = 3;
+    private static final int COLUMN_SERVER_ID = 4;
+    private static final int COLUMN_FLAGS = 5;
+    private static final int COLUMN_TIMESTAMP = 6;
+    private static final String[] PROJECTION = {
+            MessageColumns._ID,
+            MessageColumns.FLAG_READ,
+            MessageColumns.FLAG_FAVORITE,
+            MessageColumns.FLAG_LOADED,
+            SyncColumns.SERVER_ID,
+            MessageColumns.FLAGS,
+            MessageColumns.TIMESTAMP
+    };
+
+    /** The most UIDs to ask for in one query; SQLite allows at most 999 arguments */
+    private static final int MAX_UIDS_PER_QUERY = 500;
+
+    private static final int STATE_READ = 1;
+    private static final int STATE_FAVORITE = 2;
+    private static final int STATE_LOADED_SHIFT = 2;
+
+    static final LocalMessageIndex EMPTY = new Builder().build();
+
+    private final long[] mUids;
+    private final long[] mIds;
+    private final long[] mTimestamps;
+    private final int[] mFlags;
+    /** FLAG_READ, FLAG_FAVORITE and FLAG_LOADED, packed */
+    private final byte[] mStates;
+
+    private LocalMessageIndex(long[] uids, long[] ids, long[] timestamps, int[] flags,
+            byte[] states) {
+        mUids = uids;
+        mIds = ids;
+        mTimestamps = timestamps;
+        mFlags = flags;
+        mStates = states;
+    }
+
+    /**
+     * Loads the messages in a mailbox whose UIDs are at least {@code minUid}, or whose timestamps
+     * are at least {@code minTimestamp}, along with those whose UIDs are in {@code moreUids}.
+     * Pass {@link Long#MAX_VALUE} to leave out either range.
+     */
+    static LocalMessageIndex load(Context context, long accountId, long mailboxId, long minUid,
+            long minTimestamp, String[] moreUids) {
+        final Builder builder = new Builder();
+        final ContentResolver resolver = context.getContentResolver();
+        final String mailboxSelection = EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
+                + " AND " + MessageColumns.MAILBOX_KEY + "=?";
+        if (minUid != Long.MAX_VALUE || minTimestamp != Long.MAX_VALUE) {
+            // The UID is compared as a number, not as the string the argument would be bound as
+            final Cursor c = resolver.query(EmailContent.Message.CONTENT_URI, PROJECTION,
+                    mailboxSelection + " AND (CAST(" + SyncColumns.SERVER_ID + " AS INTEGER)>="
+                            + minUid + " OR " + MessageColumns.TIMESTAMP + ">=?)",
+                    new String[] {
+                            String.valueOf(accountId),
+                            String.valueOf(mailboxId),
+                            String.valueOf(minTimestamp) },
+                    null);
+            builder.addAll(c, Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+        if (moreUids != null) {
+            for (int start = 0; start < moreUids.length; start += MAX_UIDS_PER_QUERY) {
+                final int end = Math.min(start + MAX_UIDS_PER_QUERY, moreUids.length);
+                final StringBuilder selection = new StringBuilder(mailboxSelection
+                        + " AND " + SyncColumns.SERVER_ID + " IN (");
+                final String[] selectionArgs = new String[end - start + 2];
+                selectionArgs[0] = String.valueOf(accountId);
+                selectionArgs[1] = String.valueOf(mailboxId);
+                for (int i = start; i < end; i++) {
+                    selection.append(i == start ? "?" : ",?");
+                    selectionArgs[i - start + 2] = moreUids[i];
+                }
+                selection.append(')');
+                final Cursor c = resolver.query(EmailContent.Message.CONTENT_URI, PROJECTION,
+                        selection.toString(), selectionArgs, null);
+                // Leave out what the first query already found
+                builder.addAll(c, minUid, minTimestamp);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads the messages in a mailbox whose UIDs are in {@code uids}.
+     */
+    static LocalMessageIndex load(Context context, long accountId, long mailboxId,
+            String[] uids) {
+        return load(context, accountId, mailboxId, Long.MAX_VALUE, Long.MAX_VALUE, uids);
+    }
+
+    /**
+     * @return the UID in {@code uid}, or -1 if it isn't a valid UID (RFC 3501 2.3.1.1)
+     */
+    static long parseUid(String uid) {
+        if (uid == null || uid.length() == 0 || uid.length() > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < uid.length(); i++) {
+            final char c = uid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return (value > 0 && value <= 0xFFFFFFFFL) ? value : -1;
+    }
+
+    int size() {
+        return mUids.length;
+    }
+
+    /**
+     * @return the position of the message with {@code uid}, or -1 if there isn't one
+     */
+    int find(long uid) {
+        final int position = Arrays.binarySearch(mUids, uid);
+        return position >= 0 ? position : -1;
+    }
+
+    int find(String uid) {
+        final long value = parseUid(uid);
+        return value > 0 ? find(value) : -1;
+    }
+
+    long getUid(int position) {
+        return mUids[position];
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    long getTimestamp(int position) {
+        return mTimestamps[position];
+    }
+
+    int getFlags(int position) {
+        return mFlags[position];
+    }
+
+    boolean isRead(int position) {
+        return (mStates[position] & STATE_READ) != 0;
+    }
+
+    boolean isFavorite(int position) {
+        return (mStates[position] & STATE_FAVORITE) != 0;
+    }
+
+    int getFlagLoaded(int position) {
+        return (mStates[position] & 0xff) >> STATE_LOADED_SHIFT;
+    }
+
+    /**
+     * Collects messages in any order, and sorts them by UID when it's done.
+     */
+    static class Builder {
+        private int mSize;
+        private long[] mUids = new long[16];
+        private long[] mIds = new long[16];
+        private long[] mTimestamps = new long[16];
+        private int[] mFlags = new int[16];
+        private byte[] mStates = new byte[16];
+
+        void add(long uid, long id, boolean read, boolean favorite, int flagLoaded, int flags,
+                long timestamp) {
+            if (mSize == mUids.length) {
+                final int capacity = mSize * 2;
+                mUids = Arrays.copyOf(mUids, capacity);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+                mStates = Arrays.copyOf(mStates, capacity);
+            }
+            mUids[mSize] = uid;
+            mIds[mSize] = id;
+            mTimestamps[mSize] = timestamp;
+            mFlags[mSize] = flags;
+            mStates[mSize] = (byte) ((read ? STATE_READ : 0) | (favorite ? STATE_FAVORITE : 0)
+                    | (flagLoaded << STATE_LOADED_SHIFT));
+            mSize++;
+        }
+
+        /**
+         * Adds the messages in {@code c}, except those whose UIDs are at least {@code minUid} or
+         * whose timestamps are at least {@code minTimestamp}, and closes it.
+         */
+        private void addAll(Cursor c, long minUid, long minTimestamp) {
+            if (c == null) {
+                return;
+            }
+            try {
+                while (c.moveToNext()) {
+                    // Messages without a valid UID are local only (e.g. they failed to upsync),
+                    // and are left as they are until the next sync tries again to upsync them.
+                    final long uid = parseUid(c.getString(COLUMN_SERVER_ID));
+                    final long timestamp = c.getLong(COLUMN_TIMESTAMP);
+                    if (uid <= 0 || uid >= minUid || timestamp >= minTimestamp) {
+                        continue;
+                    }
+                    add(uid, c.getLong(COLUMN_ID), c.getInt(COLUMN_FLAG_READ) != 0,
+                            c.getInt(COLUMN_FLAG_FAVORITE) != 0, c.getInt(COLUMN_FLAG_LOADED),
+                            c.getInt(COLUMN_FLAGS), timestamp);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        LocalMessageIndex build() {
+            // Sort the positions by UID.  UIDs and positions both fit in 32 bits; flipping the
+            // sign bit makes the signed order of the keys their unsigned order.
+            final long[] keys = new long[mSize];
+            for (int i = 0; i < mSize; i++) {
+                keys[i] = ((mUids[i] << 32) | i) ^ Long.MIN_VALUE;
+            }
+            Arrays.sort(keys);
+            final long[] uids = new long[mSize];
+            final long[] ids = new long[mSize];
+            final long[] timestamps = new long[mSize];
+            final int[] flags = new int[mSize];
+            final byte[] states = new byte[mSize];
+            for (int i = 0; i < mSize; i++) {
+                final int from = (int) keys[i];
+                uids[i] = mUids[from];
+                ids[i] = mIds[from];
+                timestamps[i] = mTimestamps[from];
+                flags[i] = mFlags[from];
+                states[i] = mStates[from];
+            }
+            return new LocalMessageIndex(uids, ids, timestamps, flags, states);
+        }
+    }
+}
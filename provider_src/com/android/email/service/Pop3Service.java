@@ -110,6 +110,8 @@ public class Pop3Service extends Service {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
+        // Syncs of the same account are serialized, as in ImapService
+        AccountSyncLock.lock(account.mId);
         try {
             synchronizePop3Mailbox(context, account, folder, deltaMessageCount);
             // Clear authentication notification for this account
@@ -125,6 +127,8 @@ public class Pop3Service extends Service {
                 nc.showLoginFailedNotificationSynchronous(account.mId, true /* incoming */);
             }
             throw e;
+        } finally {
+            AccountSyncLock.unlock(account.mId);
         }
         // TODO: Rather than use exceptions as logic aobve, return the status and handle it
         // correctly in caller.
@@ -227,7 +231,7 @@ public class Pop3Service extends Service {
      * @param deltaMessageCount the requested change to number of messages to sync
      * @throws MessagingException
      */
-    private synchronized static void synchronizePop3Mailbox(final Context context, final Account account,
+    private static void synchronizePop3Mailbox(final Context context, final Account account,
             final Mailbox mailbox, final int deltaMessageCount) throws MessagingException {
         // TODO Break this into smaller pieces
         ContentResolver resolver = context.getContentResolver();
@@ -260,6 +260,12 @@ public class PopImapSyncAdapterService extends Service {
                                     deltaMessageCount);
                         }
                     }
+
+                    // Push sessions don't survive our process, so restart them here if needed
+                    if (context.getString(R.string.protocol_legacy_imap).equals(
+                            acct.getProtocol(context))) {
+                        ImapService.startPushIfNeeded(context, acct);
+                    }
                 }
             }
         } catch (Exception e) {
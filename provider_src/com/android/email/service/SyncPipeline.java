@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands the messages a sync reads from the network to a thread of its own that writes them to
+ * the provider, so that the connection isn't kept waiting on the database.  The writer gets the
+ * messages in batches of whatever has been queued since its last write.
+ *
+ * <p>At most {@code capacity} messages wait to be written; past that, {@link #put} blocks until
+ * the writer catches up.  Once the thread reading from the network has put a message, it must
+ * not touch it again.
+ *
+ * <pre>
+ * final SyncPipeline&lt;Message&gt; pipeline = new SyncPipeline&lt;Message&gt;("name", 10) {
+ *     protected void write(List&lt;Message&gt; messages) { ... }
+ * };
+ * try {
+ *     ... pipeline.put(message) ...
+ *     pipeline.finish();
+ * } finally {
+ *     pipeline.abort();
+ * }
+ * </pre>
+ *
+ * If the writer fails, the messages after it are dropped, and {@link #finish} throws what it
+ * threw.  If reading fails, {@link #abort} drops the messages still waiting.
+ */
+abstract class SyncPipeline<T> {
+    /** Put after the last message */
+    private static final Object END = new Object();
+
+    private final String mName;
+    private final ArrayBlockingQueue<Object> mQueue;
+    private Thread mWriter;
+    private boolean mFinished;
+
+    private volatile boolean mAborted;
+    private volatile Throwable mFailure;
+
+    SyncPipeline(String name, int capacity) {
+        mName = name;
+        mQueue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * Writes {@code items} to the provider.  Called on the pipeline's own thread.
+     */
+    protected abstract void write(List<T> items) throws MessagingException;
+
+    /**
+     * Queues {@code item} to be written, waiting if the writer has fallen behind.  Does nothing
+     * if the writer has failed.
+     */
+    void put(T item) {
+        if (mFinished) {
+            throw new IllegalStateException("Pipeline " + mName + " already finished");
+        }
+        if (mFailure != null) {
+            return;
+        }
+        if (mWriter == null) {
+            mWriter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeAll();
+                }
+            }, mName);
+            mWriter.start();
+        }
+        putUninterruptibly(item);
+    }
+
+    /**
+     * Waits until everything that was put has been written.
+     * @throws MessagingException if the writer failed; runtime exceptions are rethrown as is
+     */
+    void finish() throws MessagingException {
+        stop();
+        final Throwable failure = mFailure;
+        if (failure instanceof MessagingException) {
+            throw (MessagingException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Drops the messages not yet written, and waits for the writer to stop.  Does nothing if the
+     * pipeline has already finished.
+     */
+    void abort() {
+        if (!mFinished) {
+            mAborted = true;
+            mQueue.clear();
+            stop();
+        }
+    }
+
+    private void stop() {
+        mFinished = true;
+        if (mWriter == null) {
+            return;
+        }
+        putUninterruptibly(END);
+        boolean interrupted = false;
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mWriter = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void putUninterruptibly(Object item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeAll() {
+        final ArrayList<Object> queued = new ArrayList<Object>();
+        final ArrayList<T> items = new ArrayList<T>();
+        while (true) {
+            queued.clear();
+            try {
+                queued.add(mQueue.take());
+            } catch (InterruptedException e) {
+                // Nobody interrupts this thread; keep going until the end of the messages
+                continue;
+            }
+            mQueue.drainTo(queued);
+            items.clear();
+            boolean end = false;
+            for (Object item : queued) {
+                if (item == END) {
+                    end = true;
+                } else {
+                    items.add((T) item);
+                }
+            }
+            // After a failure, keep taking messages so that put() doesn't block, but drop them.
+            if (!items.isEmpty() && !mAborted && mFailure == null) {
+                try {
+                    write(items);
+                } catch (Throwable t) {
+                    mFailure = t;
+                }
+            }
+            if (end) {
+                return;
+            }
+        }
+    }
+}
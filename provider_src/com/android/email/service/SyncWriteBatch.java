@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the provider writes of a sync and applies them with
+ * {@link android.content.ContentResolver#applyBatch}, so that each chunk of up to
+ * {@link #MAX_OPERATIONS} writes is one transaction, and EmailProvider sends its notifications
+ * once the chunk is done rather than once per write.
+ *
+ * <p>The writes don't refer to each other's results, so if a chunk fails, its writes are applied
+ * again one at a time, and only the ones that fail themselves are lost, as they were when each
+ * write was applied on its own.  Writes aren't visible until they've been flushed; call
+ * {@link #flush()} before reading back what was written, and when the sync is done.
+ */
+class SyncWriteBatch {
+    /** How many writes to apply in one transaction */
+    @VisibleForTesting
+    static final int MAX_OPERATIONS = 250;
+
+    private final Context mContext;
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    /** The content being inserted by each operation, or null if it isn't an insert */
+    private final ArrayList<EmailContent> mInserts = new ArrayList<EmailContent>();
+
+    SyncWriteBatch(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Saves {@code content}, as {@link EmailContent#save} or {@link EmailContent#update} would
+     * if it has no children (a message without a body or attachments, for instance).  If it's
+     * new, its id is set when the batch is flushed.
+     */
+    void saveOrUpdate(EmailContent content) {
+        if (content.isSaved()) {
+            add(ContentProviderOperation.newUpdate(content.getUri())
+                    .withValues(content.toContentValues()).build(), null);
+        } else {
+            add(ContentProviderOperation.newInsert(content.mBaseUri)
+                    .withValues(content.toContentValues()).build(), content);
+        }
+    }
+
+    void update(Uri uri, ContentValues values) {
+        add(ContentProviderOperation.newUpdate(uri).withValues(values).build(), null);
+    }
+
+    void delete(Uri uri) {
+        add(ContentProviderOperation.newDelete(uri).build(), null);
+    }
+
+    /**
+     * @return the number of writes not yet flushed
+     */
+    int size() {
+        return mOperations.size();
+    }
+
+    private void add(ContentProviderOperation operation, EmailContent insert) {
+        mOperations.add(operation);
+        mInserts.add(insert);
+        if (mOperations.size() >= MAX_OPERATIONS) {
+            flush();
+        }
+    }
+
+    /**
+     * Applies the writes collected so far.
+     */
+    void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        try {
+            setInsertIds(0, mContext.getContentResolver().applyBatch(EmailContent.AUTHORITY,
+                    mOperations));
+        } catch (RemoteException e) {
+            // This is fatal to a remote process
+            throw new IllegalStateException("Exception applying sync writes.");
+        } catch (OperationApplicationException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Error applying %d sync writes; retrying one at a time",
+                    mOperations.size());
+            applyOneAtATime();
+        } finally {
+            mOperations.clear();
+            mInserts.clear();
+        }
+    }
+
+    private void applyOneAtATime() {
+        final ArrayList<ContentProviderOperation> operation =
+                new ArrayList<ContentProviderOperation>(1);
+        for (int i = 0; i < mOperations.size(); i++) {
+            operation.clear();
+            operation.add(mOperations.get(i));
+            try {
+                setInsertIds(i, mContext.getContentResolver().applyBatch(EmailContent.AUTHORITY,
+                        operation));
+            } catch (RemoteException e) {
+                throw new IllegalStateException("Exception applying sync writes.");
+            } catch (OperationApplicationException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error applying sync write");
+            }
+        }
+    }
+
+    /**
+     * Sets the ids of the content inserted by the operations starting at {@code first}.
+     */
+    private void setInsertIds(int first, ContentProviderResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            final EmailContent content = mInserts.get(first + i);
+            if (content != null && results[i].uri != null) {
+                content.mId = Long.parseLong(results[i].uri.getPathSegments().get(1));
+            }
+        }
+    }
+}
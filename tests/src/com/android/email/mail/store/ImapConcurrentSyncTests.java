@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.DBTestHelper;
+import com.android.email.MockVendorPolicy;
+import com.android.email.NotificationController;
+import com.android.email.NotificationControllerCreator;
+import com.android.email.NotificationControllerCreatorHolder;
+import com.android.email.mail.Store;
+import com.android.email.mail.transport.MockTransport;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.email.service.ImapService;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.service.SyncWindow;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of ImapService syncing several accounts at once, each against its own mock server.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.ImapConcurrentSyncTests email
+ */
+@MediumTest
+public class ImapConcurrentSyncTests extends InstrumentationTestCase {
+    private static final int ACCOUNTS = 2;
+
+    private Context mProviderContext;
+    private NotificationControllerCreator mOldNotificationControllerCreator;
+    private final Account[] mAccounts = new Account[ACCOUNTS];
+
+    /**
+     * A NotificationController that doesn't show anything.
+     */
+    private static class NullNotificationController implements NotificationController {
+        @Override public void watchForMessages() {}
+        @Override public void showDownloadForwardFailedNotificationSynchronous(
+                Attachment attachment) {}
+        @Override public void showLoginFailedNotificationSynchronous(long accountId,
+                boolean incoming) {}
+        @Override public void cancelLoginFailedNotification(long accountId) {}
+        @Override public void cancelNotifications(Context context, Account account) {}
+        @Override public void handleUpdateNotificationIntent(Context context, Intent intent) {}
+        @Override public void showSecurityNeededNotification(Account account) {}
+        @Override public void showSecurityUnsupportedNotification(Account account) {}
+        @Override public void showSecurityChangedNotification(Account account) {}
+        @Override public void cancelSecurityNeededNotification() {}
+        @Override public void showPasswordExpiringNotificationSynchronous(long accountId) {}
+        @Override public void showPasswordExpiredNotificationSynchronous(long accountId) {}
+        @Override public void cancelPasswordExpirationNotifications() {}
+    }
+
+    /**
+     * A mock server that doesn't accept a connection until the other accounts' servers have
+     * been connected to as well, so that the syncs are known to overlap.
+     */
+    private static class OverlappingMockTransport extends MockTransport {
+        private final CyclicBarrier mAllConnected;
+
+        OverlappingMockTransport(Context context, CyclicBarrier allConnected) {
+            super(context, new HostAuth());
+            mAllConnected = allConnected;
+        }
+
+        @Override
+        public void open() {
+            try {
+                mAllConnected.await(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException("The other syncs didn't connect", e);
+            }
+            super.open();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context realContext = getInstrumentation().getTargetContext();
+        ImapStore.sImapId = ImapStore.makeCommonImapId(realContext.getPackageName(),
+                Build.VERSION.RELEASE, Build.VERSION.CODENAME,
+                Build.MODEL, Build.ID, Build.MANUFACTURER,
+                "FakeNetworkOperator");
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(realContext);
+        MockVendorPolicy.inject(mProviderContext);
+
+        mOldNotificationControllerCreator =
+                NotificationControllerCreatorHolder.getNotificationControllerCreator();
+        NotificationControllerCreatorHolder.setNotificationControllerCreator(
+                new NotificationControllerCreator() {
+                    @Override
+                    public NotificationController getInstance(Context context) {
+                        return new NullNotificationController();
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Account account : mAccounts) {
+            if (account != null) {
+                Store.removeInstance(account, mProviderContext);
+            }
+        }
+        NotificationControllerCreatorHolder.setNotificationControllerCreator(
+                mOldNotificationControllerCreator);
+        super.tearDown();
+    }
+
+    /**
+     * Sets up an IMAP account that syncs its whole mailbox.
+     */
+    private Account setupAccount(String name) {
+        final Account account = ProviderTestUtils.setupAccount(name, false, mProviderContext);
+        account.mSyncLookback = SyncWindow.SYNC_WINDOW_ALL;
+        final HostAuth auth =
+                ProviderTestUtils.setupHostAuth("imap", name, false, mProviderContext);
+        auth.mFlags = HostAuth.FLAG_AUTHENTICATE;
+        // No path prefix, so the folder names aren't changed
+        auth.mDomain = null;
+        account.mHostAuthRecv = auth;
+        account.save(mProviderContext);
+        return account;
+    }
+
+    /**
+     * Stuffs the mock with the commands of a sync of an empty inbox.
+     */
+    private static void expectEmptyInboxSync(MockTransport mockTransport) {
+        mockTransport.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mockTransport.expect("1 CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 iD",
+                "1 oK CAPABILITY completed"});
+        mockTransport.expect("2 ID \\(.*\\)", new String[] {
+                "* iD nIL",
+                "2 oK"});
+        mockTransport.expect("3 LOGIN .*", "3 oK user authenticated (Success)");
+        mockTransport.expect("4 SELECT \"INBOX\"", new String[] {
+                "* fLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
+                "* oK [pERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
+                "* 0 eXISTS",
+                "* 0 rECENT",
+                "* OK [uIDVALIDITY 1]",
+                "* OK [uIDNEXT 1]",
+                "4 oK [rEAD-wRITE] INBOX selected. (Success)"});
+        mockTransport.expect("5 UID SEARCH .*", new String[] {
+                "* sEARCH",
+                "5 oK SEARCH completed"});
+    }
+
+    /**
+     * Syncs of different accounts run at the same time, and each gets through its own sync.
+     */
+    public void testConcurrentAccountSyncs() throws Exception {
+        final CyclicBarrier allConnected = new CyclicBarrier(ACCOUNTS);
+        final Mailbox[] mailboxes = new Mailbox[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            mAccounts[i] = setupAccount("account" + i);
+            final Mailbox mailbox = ProviderTestUtils.setupMailbox("INBOX", mAccounts[i].mId,
+                    false, mProviderContext, Mailbox.TYPE_INBOX);
+            mailbox.mSyncKey = null;
+            mailbox.save(mProviderContext);
+            mailboxes[i] = mailbox;
+
+            final MockTransport mockTransport =
+                    new OverlappingMockTransport(mProviderContext, allConnected);
+            mockTransport.setSecurity(HostAuth.FLAG_NONE, false);
+            mockTransport.setHost("mock" + i + ".server.com");
+            expectEmptyInboxSync(mockTransport);
+            final ImapStore store = (ImapStore) Store.getInstance(mAccounts[i], mProviderContext);
+            store.setTransportForTest(mockTransport);
+        }
+
+        // fail() on a sync thread would only end that thread; the failure is reported below
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ImapService.synchronizeMailboxSynchronous(mProviderContext,
+                                mAccounts[index], mailboxes[index], false, true);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30 * 1000);
+            assertFalse(thread.isAlive());
+        }
+        if (failure.get() != null) {
+            fail("Sync thread failed: " + failure.get());
+        }
+
+        // Each account's inbox got the sync state its own server reported
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(mProviderContext,
+                    mailboxes[i].mId);
+            assertNotNull(mailbox.mSyncKey);
+            assertEquals(1, ImapSyncState.fromSyncKey(mailbox.mSyncKey).mUidValidity);
+        }
+    }
+}
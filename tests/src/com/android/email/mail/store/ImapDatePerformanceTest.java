@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import com.android.email.mail.store.imap.ImapDateParser;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.mail.utils.LogUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Compares ImapDateParser with what dates were parsed with before: SimpleDateFormat for
+ * INTERNALDATE, and MimeMessage.getSentDate() for Date headers.  Each round parses a window
+ * sync's worth of both.  Not run by default; the times are logged.
+ */
+@Suppress
+@LargeTest
+public class ImapDatePerformanceTest extends AndroidTestCase {
+    private static final int DATES = 500;
+    private static final int ROUNDS = 5;
+
+    private static final String INTERNAL_DATE = "17-May-2010 22:00:15 +0000";
+    private static final String HEADER_DATE = "Mon, 17 May 2010 14:59:52 -0700 (PDT)";
+
+    private static long timeSimpleDateFormat() throws Exception {
+        final SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < DATES; i++) {
+                format.parse(INTERNAL_DATE);
+            }
+            best = Math.min(best, SystemClock.elapsedRealtimeNanos() - start);
+        }
+        return best;
+    }
+
+    private static long timeMimeMessage() throws Exception {
+        final MimeMessage[] messages = new MimeMessage[DATES];
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            // New messages each round, as MimeMessage keeps the date it parsed.
+            for (int i = 0; i < DATES; i++) {
+                messages[i] = new MimeMessage();
+                messages[i].setHeader("Date", HEADER_DATE);
+            }
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < DATES; i++) {
+                messages[i].getSentDate();
+            }
+            best = Math.min(best, SystemClock.elapsedRealtimeNanos() - start);
+        }
+        return best;
+    }
+
+    private static long timeParser(boolean internalDate) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < DATES; i++) {
+                if (internalDate) {
+                    ImapDateParser.parseInternalDate(INTERNAL_DATE);
+                } else {
+                    ImapDateParser.parseRfc2822Date(HEADER_DATE);
+                }
+            }
+            best = Math.min(best, SystemClock.elapsedRealtimeNanos() - start);
+        }
+        return best;
+    }
+
+    public void testDateParsing() throws Exception {
+        // Both give the same result.
+        final SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+        assertEquals(format.parse(INTERNAL_DATE).getTime(),
+                ImapDateParser.parseInternalDate(INTERNAL_DATE));
+        final MimeMessage message = new MimeMessage();
+        message.setHeader("Date", HEADER_DATE);
+        assertEquals(message.getSentDate().getTime(),
+                ImapDateParser.parseRfc2822Date(HEADER_DATE));
+
+        LogUtils.d(Logging.LOG_TAG, "%d INTERNALDATEs: SimpleDateFormat %dus, parser %dus",
+                DATES, timeSimpleDateFormat() / 1000, timeParser(true) / 1000);
+        LogUtils.d(Logging.LOG_TAG, "%d Date headers: MimeMessage %dus, parser %dus",
+                DATES, timeMimeMessage() / 1000, timeParser(false) / 1000);
+    }
+}
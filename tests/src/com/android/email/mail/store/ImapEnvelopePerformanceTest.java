@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import com.android.email.mail.store.ImapStore.ImapMessage;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
+import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.Message.RecipientType;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+/**
+ * Compares filling in messages from FETCH ENVELOPE with parsing the headers from
+ * BODY.PEEK[HEADER.FIELDS (...)], the way ImapFolder.fetch() used to, for a window sync's worth
+ * of messages.  Both include parsing the server's responses and reading the fields the sync
+ * stores.  Not run by default; the times are logged.
+ */
+@Suppress
+@LargeTest
+public class ImapEnvelopePerformanceTest extends AndroidTestCase {
+    private static final int MESSAGES = 500;
+    private static final int ROUNDS = 5;
+
+    private static final String HEADER =
+            "Date: Mon, 17 May 2010 14:59:52 -0700\r\n" +
+            "Subject: =?UTF-8?Q?Re:_Caf=C3=A9_on_Friday?=\r\n" +
+            "From: \"Xxxxxx Yyyyy\" <userxx@android.com>\r\n" +
+            "To: android.test01@android.com, Zzzz <zzzz@android.com>\r\n" +
+            "Cc: =?ISO-8859-1?Q?Andr=E9?= <andre@example.com>\r\n" +
+            "Message-ID: <x0000000000000000000000000000000000000000000000y@android.com>\r\n" +
+            "Content-Type: multipart/alternative; boundary=a00000000000000000000000000b\r\n" +
+            "\r\n";
+    private static final String ENVELOPE =
+            "(\"Mon, 17 May 2010 14:59:52 -0700\" \"=?UTF-8?Q?Re:_Caf=C3=A9_on_Friday?=\"" +
+            " ((\"Xxxxxx Yyyyy\" NIL \"userxx\" \"android.com\"))" +
+            " ((\"Xxxxxx Yyyyy\" NIL \"userxx\" \"android.com\"))" +
+            " ((\"Xxxxxx Yyyyy\" NIL \"userxx\" \"android.com\"))" +
+            " ((NIL NIL \"android.test01\" \"android.com\")(\"Zzzz\" NIL \"zzzz\" \"android.com\"))" +
+            " ((\"=?ISO-8859-1?Q?Andr=E9?=\" NIL \"andre\" \"example.com\"))" +
+            " NIL NIL \"<x0000000000000000000000000000000000000000000000y@android.com>\")";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] buildResponses(boolean envelope) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= MESSAGES; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(i)
+                    .append(" FLAGS (\\Seen) INTERNALDATE \"17-May-2010 22:00:15 +0000\"")
+                    .append(" RFC822.SIZE 12345 ");
+            if (envelope) {
+                sb.append("ENVELOPE ").append(ENVELOPE);
+            } else {
+                sb.append("BODY[HEADER.FIELDS (date subject from content-type to cc message-id)]")
+                        .append(" {").append(HEADER.length()).append("}\r\n").append(HEADER);
+            }
+            sb.append(")\r\n");
+        }
+        sb.append("1 OK FETCH completed\r\n");
+        return Utility.toAscii(sb.toString());
+    }
+
+    /**
+     * @return the messages from {@code responses}, filled in the same way ImapFolder does.
+     */
+    private static ArrayList<Message> fetch(byte[] responses, boolean envelope) throws Exception {
+        final ArrayList<Message> messages = new ArrayList<Message>(MESSAGES);
+        final ImapResponseParser parser = new ImapResponseParser(
+                new ByteArrayInputStream(responses), new DiscourseLogger(4));
+        ImapResponse response;
+        do {
+            response = parser.readResponse();
+            if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                continue;
+            }
+            final ImapList fetchList = response.getListOrEmpty(2);
+            final ImapMessage message = new ImapMessage(
+                    fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString(), null);
+            ImapFolder.parseFlags(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS), message);
+            message.setInternalDate(fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.INTERNALDATE).getDateOrNull());
+            message.setSize(fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.RFC822_SIZE).getNumberOrZero());
+            if (envelope) {
+                assertTrue(ImapFolder.parseEnvelope(
+                        fetchList.getKeyedListOrEmpty(ImapConstants.ENVELOPE), message));
+            } else {
+                message.parse(Utility.streamFromAsciiString(fetchList.getKeyedStringOrEmpty(
+                        ImapConstants.BODY_BRACKET_HEADER, true).getString()));
+            }
+            // What LegacyConversions.updateMessageFields() reads.
+            message.getFrom();
+            message.getRecipients(RecipientType.TO);
+            message.getRecipients(RecipientType.CC);
+            message.getRecipients(RecipientType.BCC);
+            message.getReplyTo();
+            message.getSubject();
+            message.getSentDate();
+            message.getMessageId();
+            messages.add(message);
+            parser.destroyResponses();
+        } while (!response.isTagged());
+        return messages;
+    }
+
+    private static long time(byte[] responses, boolean envelope) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            fetch(responses, envelope);
+            best = Math.min(best, SystemClock.elapsedRealtimeNanos() - start);
+        }
+        return best;
+    }
+
+    public void testEnvelopeVersusHeaders() throws Exception {
+        final byte[] envelopeResponses = buildResponses(true);
+        final byte[] headerResponses = buildResponses(false);
+
+        // Both give the same result.
+        final Message fromEnvelope = fetch(envelopeResponses, true).get(0);
+        final Message fromHeaders = fetch(headerResponses, false).get(0);
+        assertEquals(fromHeaders.getSubject(), fromEnvelope.getSubject());
+        assertEquals(fromHeaders.getSentDate(), fromEnvelope.getSentDate());
+        assertEquals(fromHeaders.getMessageId(), fromEnvelope.getMessageId());
+        assertEquals(Address.toHeader(fromHeaders.getFrom()),
+                Address.toHeader(fromEnvelope.getFrom()));
+        assertEquals(Address.toHeader(fromHeaders.getRecipients(RecipientType.TO)),
+                Address.toHeader(fromEnvelope.getRecipients(RecipientType.TO)));
+        assertEquals(Address.toHeader(fromHeaders.getRecipients(RecipientType.CC)),
+                Address.toHeader(fromEnvelope.getRecipients(RecipientType.CC)));
+
+        final long envelopeNanos = time(envelopeResponses, true);
+        final long headerNanos = time(headerResponses, false);
+        LogUtils.d(Logging.LOG_TAG, "%d messages: ENVELOPE %dus, HEADER.FIELDS %dus",
+                MESSAGES, envelopeNanos / 1000, headerNanos / 1000);
+    }
+}
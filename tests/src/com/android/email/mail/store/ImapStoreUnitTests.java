@@ -32,11 +32,13 @@ import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapSearchResult;
 import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.VendorPolicyLoader;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
@@ -59,8 +61,13 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -604,6 +611,19 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         expectSelect(mockTransport, FOLDER_ENCODED, readWriteMode);
     }
 
+    /**
+     * Like {@link #setupOpenFolder(MockTransport)}, for a server that reports more capabilities
+     * once the user has logged in.
+     *
+     * @param capabilities the capabilities, e.g. "bINARY".
+     */
+    private void setupOpenFolderWithCapabilities(MockTransport mockTransport,
+            String capabilities) {
+        expectLogin(mockTransport, false, true, false, new String[] {"* iD nIL", "oK"},
+                "oK [cAPABILITY iMAP4rev1 " + capabilities + "] user authenticated (Success)");
+        expectSelect(mockTransport, FOLDER_ENCODED, "rEAD-wRITE");
+    }
+
     /**
      * Helper which stuffs the mock with the strings to satisfy a typical SELECT.
      * @param mockTransport the mock transport we're using
@@ -664,6 +684,30 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 getNextTag(true) + " " + loginResponse);
     }
 
+    /**
+     * Like {@link #expectLogin}, for connections after the first one, which skip the commands
+     * whose results are in the session cache.  ID is still sent, if the server supports it.
+     */
+    private void expectCachedLogin(MockTransport mockTransport) {
+        expectCachedLogin(mockTransport, false, true, "oK user authenticated (Success)");
+    }
+
+    private void expectCachedLogin(MockTransport mockTransport, boolean startTls,
+            boolean withId, String loginResponse) {
+        mockTransport.expect(null, "* oK Imap 2000 Ready To Assist You");
+        if (startTls) {
+            mockTransport.expect(getNextTag(false) + " STARTTLS",
+                getNextTag(true) + " Ok starting TLS");
+            mockTransport.expectStartTls();
+        }
+        if (withId) {
+            mockTransport.expect(getNextTag(false) + " ID \\(.*\\)",
+                    new String[] {"* iD nIL", getNextTag(true) + " oK"});
+        }
+        mockTransport.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " " + loginResponse);
+    }
+
     private void expectCapability(MockTransport mockTransport, boolean withId,
             boolean withUidPlus) {
         String capabilityList = "* cAPABILITY iMAP4rev1 sTARTTLS aUTH=gSSAPI lOGINDISABLED";
@@ -771,6 +815,65 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         final FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
         fp.add(FetchProfile.Item.ENVELOPE);
+        mock.expect(getNextTag(false) +
+                " UID FETCH 1 \\(UID FLAGS INTERNALDATE RFC822\\.SIZE ENVELOPE\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 rFC822.sIZE 120626 iNTERNALDATE \"17-may-2010 22:00:15 +0000\"" +
+                        " fLAGS (\\Seen) eNVELOPE (\"Mon, 17 May 2010 14:59:52 -0700\"" +
+                        " \"=?UTF-8?Q?s=C3=BCbject?=\"" +
+                        " ((\"Xxxxxx Yyyyy\" NIL \"userxx\" \"android.com\"))" +
+                        " ((\"Xxxxxx Yyyyy\" NIL \"userxx\" \"android.com\"))" +
+                        " NIL" +
+                        " ((NIL NIL \"android.test01\" \"android.com\")" +
+                        " (NIL NIL \"team\" NIL)(nIL NIL \"a\" \"b.com\")(NIL NIL NIL NIL))" +
+                        " NIL NIL NIL" +
+                        " \"<x0000000000000000000000000000000000000000000000y@android.com>\"))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+
+        assertEquals(120626, message.getSize());
+        assertEquals(1274133615000L, message.getInternalDate().getTime());
+        assertEquals(1274133592000L, message.getSentDate().getTime());
+        assertEquals("s\u00fcbject", message.getSubject());
+        assertEquals("<x0000000000000000000000000000000000000000000000y@android.com>",
+                message.getMessageId());
+        final Address[] from = message.getFrom();
+        assertEquals(1, from.length);
+        assertEquals("userxx@android.com", from[0].getAddress());
+        assertEquals("Xxxxxx Yyyyy", from[0].getPersonal());
+        // The group syntax markers are skipped.
+        final Address[] to = message.getRecipients(RecipientType.TO);
+        assertEquals(2, to.length);
+        assertEquals("android.test01@android.com", to[0].getAddress());
+        assertEquals("a@b.com", to[1].getAddress());
+        assertEquals(0, message.getRecipients(RecipientType.CC).length);
+        assertEquals(0, message.getReplyTo().length);
+        assertTrue(message.isSet(Flag.SEEN));
+    }
+
+    /**
+     * Test that messages whose ENVELOPE can't be parsed are fetched again with the headers.
+     */
+    public void testFetchFlagEnvelopeFallback() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message1 = mFolder.createMessage("1");
+        final Message message2 = mFolder.createMessage("2");
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        fp.add(FetchProfile.Item.ENVELOPE);
+        mock.expect(getNextTag(false) +
+                " UID FETCH 1:2 \\(UID FLAGS INTERNALDATE RFC822\\.SIZE ENVELOPE\\)",
+                new String[] {
+                "* 8 fETCH (uID 2 fLAGS () eNVELOPE (NIL \"subject 2\" NIL NIL NIL NIL NIL NIL" +
+                        " NIL NIL))",
+                "* 9 fETCH (uID 1 fLAGS (\\Seen) eNVELOPE (NIL \"subject 1\" (\"broken\")" +
+                        " NIL NIL NIL NIL NIL NIL NIL))",
+                getNextTag(true) + " oK SUCCESS"
+        });
         mock.expect(getNextTag(false) +
                 " UID FETCH 1 \\(UID FLAGS INTERNALDATE RFC822\\.SIZE BODY\\.PEEK\\[HEADER.FIELDS" +
                         " \\(date subject from content-type to cc message-id\\)\\]\\)",
@@ -789,13 +892,29 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 ")",
                 getNextTag(true) + " oK SUCCESS"
         });
-        mFolder.fetch(new Message[] { message }, fp, null);
+        final ArrayList<Message> retrieved = new ArrayList<Message>();
+        mFolder.fetch(new Message[] { message1, message2 }, fp,
+                new Folder.MessageRetrievalListener() {
+                    @Override
+                    public void messageRetrieved(Message message) {
+                        retrieved.add(message);
+                    }
+
+                    @Override
+                    public void loadAttachmentProgress(int progress) {
+                    }
+                });
 
-        assertEquals("android.test01@android.com", message.getHeader("to")[0]);
-        assertEquals("Xxxxxx Yyyyy <userxx@android.com>", message.getHeader("from")[0]);
+        assertEquals(2, retrieved.size());
+        assertSame(message2, retrieved.get(0));
+        assertSame(message1, retrieved.get(1));
+        assertEquals("subject 2", message2.getSubject());
+        assertEquals("android.test01@android.com", message1.getHeader("to")[0]);
+        assertEquals("Xxxxxx Yyyyy <userxx@android.com>", message1.getHeader("from")[0]);
         assertEquals("multipart/mixed; boundary=a00000000000000000000000000b",
-                message.getHeader("Content-Type")[0]);
-        assertTrue(message.isSet(Flag.SEEN));
+                message1.getHeader("Content-Type")[0]);
+        assertEquals("ssubject", message1.getSubject());
+        assertTrue(message1.isSet(Flag.SEEN));
 
         // TODO: Test NO response.
     }
@@ -1057,6 +1176,196 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Test for {@link ImapFolder#fetchPart}, which passes the decoded part to a sink rather than
+     * setting a body.
+     */
+    public void testFetchPart() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final String[] content = new String[1];
+        assertTrue(mFolder.fetchPart(message, part, new ImapFolder.PartSink() {
+            @Override
+            public void onPartContent(InputStream in) throws IOException {
+                content[0] = Utility.fromUtf8(IOUtils.toByteArray(in));
+            }
+        }, null));
+        assertEquals("abc", content[0]);
+        assertNull(part.getBody());
+    }
+
+    /**
+     * Test for {@link ImapFolder#fetchPart} with a server that supports BINARY, which sends the
+     * part already decoded.
+     */
+    public void testFetchPartBinary() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY[2] ~{3}",
+                "abc)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final String[] content = new String[1];
+        final ArrayList<Integer> progress = new ArrayList<Integer>();
+        assertTrue(mFolder.fetchPart(message, part, new ImapFolder.PartSink() {
+            @Override
+            public void onPartContent(InputStream in) throws IOException {
+                content[0] = Utility.fromUtf8(IOUtils.toByteArray(in));
+            }
+        }, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+            }
+
+            @Override
+            public void loadAttachmentProgress(int p) {
+                progress.add(p);
+            }
+        }));
+        assertEquals("abc", content[0]);
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+    }
+
+    /**
+     * Test that {@link ImapFolder#fetchPart} fetches the part with BODY.PEEK if the server can't
+     * decode it.
+     */
+    public void testFetchPartBinaryUnknownCte() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[2\\]\\)",
+                getNextTag(true) + " nO [uNKNOWN-cTE] Can't decode");
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final String[] content = new String[1];
+        assertTrue(mFolder.fetchPart(message, part, new ImapFolder.PartSink() {
+            @Override
+            public void onPartContent(InputStream in) throws IOException {
+                content[0] = Utility.fromUtf8(IOUtils.toByteArray(in));
+            }
+        }, null));
+        assertEquals("abc", content[0]);
+    }
+
+    /**
+     * Test for fetching a part with {@link ImapFolder#fetch} from a server that supports BINARY;
+     * the progress is relative to BINARY.SIZE rather than the encoded size of the part.
+     */
+    public void testFetchAttachmentBinary() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        part.setSize(4);
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+        mock.expect(getNextTag(false) +
+                " UID FETCH 1 \\(UID BINARY.SIZE\\[2\\] BINARY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY.sIZE[2] 3 bINARY[2] ~{3}",
+                "abc)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final ArrayList<Integer> progress = new ArrayList<Integer>();
+        mFolder.fetch(new Message[] { message }, fp, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+            }
+
+            @Override
+            public void loadAttachmentProgress(int p) {
+                progress.add(p);
+            }
+        });
+        assertEquals("abc",
+                Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream())));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+    }
+
+    /**
+     * Test for fetchParts(), which fetches the same parts of several messages in one command.
+     */
+    public void testFetchParts() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final LinkedHashMap<Message, List<Part>> parts = new LinkedHashMap<Message, List<Part>>();
+        final MimeBodyPart[][] bodyParts = new MimeBodyPart[3][];
+        final String[] uids = new String[] {"1", "2", "5"};
+        for (int i = 0; i < uids.length; i++) {
+            final MimeBodyPart text = new MimeBodyPart();
+            text.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "1");
+            final MimeBodyPart html = new MimeBodyPart();
+            // The last message only has a single part
+            html.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, (i < 2) ? "2" : "1");
+            bodyParts[i] = (i < 2) ? new MimeBodyPart[] {text, html} : new MimeBodyPart[] {html};
+            parts.put(mFolder.createMessage(uids[i]), Arrays.<Part>asList(bodyParts[i]));
+        }
+
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:2 \\(UID BODY.PEEK\\[1\\] BODY.PEEK\\[2\\]\\)", new String[] {
+                "* 2 fETCH (uID 2 bODY[1] {3}",
+                "2-1 bODY[2] {3}",
+                "2-2)",
+                "* 1 fETCH (uID 1 bODY[2] {3}",
+                "1-2)",
+                "* 1 fETCH (uID 1 bODY[1] \"1-1\")",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mock.expect(getNextTag(false) + " UID FETCH 5 \\(UID BODY.PEEK\\[1\\]\\)",
+                new String[] {
+                "* 3 fETCH (uID 5 bODY[1] {3}",
+                "5-1)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetchParts(parts);
+
+        assertEquals("1-1", getBodyText(bodyParts[0][0]));
+        assertEquals("1-2", getBodyText(bodyParts[0][1]));
+        assertEquals("2-1", getBodyText(bodyParts[1][0]));
+        assertEquals("2-2", getBodyText(bodyParts[1][1]));
+        assertEquals("5-1", getBodyText(bodyParts[2][0]));
+    }
+
+    private static String getBodyText(Part part) throws Exception {
+        return Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream()));
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1144,13 +1453,33 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
     }
 
 
-    private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
+    private ImapMessage createMessageForAppendTest(String messageId) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
         message.setFrom(new Address("me@test.com"));
         message.setRecipient(RecipientType.TO, new Address("you@test.com"));
-        message.setMessageId("<message.id@test.com>");
+        message.setMessageId(messageId);
         message.setFlagDirectlyForTest(Flag.SEEN, true);
         message.setBody(new TextBody("Test Body"));
+        return message;
+    }
+
+    /**
+     * Expect the literal of a message from {@link #createMessageForAppendTest}, up to the line
+     * after the body.
+     */
+    private static void expectAppendLiteral(MockTransport mock, String messageId) {
+        mock.expectLiterally("From: me@test.com", NO_REPLY);
+        mock.expectLiterally("To: you@test.com", NO_REPLY);
+        mock.expectLiterally("Message-ID: " + messageId, NO_REPLY);
+        mock.expectLiterally("Content-Type: text/plain;", NO_REPLY);
+        mock.expectLiterally(" charset=utf-8", NO_REPLY);
+        mock.expectLiterally("Content-Transfer-Encoding: base64", NO_REPLY);
+        mock.expectLiterally("", NO_REPLY);
+        mock.expectLiterally("VGVzdCBCb2R5", NO_REPLY);
+    }
+
+    private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
+        ImapMessage message = createMessageForAppendTest("<message.id@test.com>");
 
         // + go ahead
         // * 12345 EXISTS
@@ -1160,14 +1489,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166\\}",
                 new String[] {"+ gO aHead"});
 
-        mock.expectLiterally("From: me@test.com", NO_REPLY);
-        mock.expectLiterally("To: you@test.com", NO_REPLY);
-        mock.expectLiterally("Message-ID: <message.id@test.com>", NO_REPLY);
-        mock.expectLiterally("Content-Type: text/plain;", NO_REPLY);
-        mock.expectLiterally(" charset=utf-8", NO_REPLY);
-        mock.expectLiterally("Content-Transfer-Encoding: base64", NO_REPLY);
-        mock.expectLiterally("", NO_REPLY);
-        mock.expectLiterally("VGVzdCBCb2R5", NO_REPLY);
+        expectAppendLiteral(mock, "<message.id@test.com>");
         mock.expectLiterally("", new String[] {
                 "* 7 eXISTS",
                 getNextTag(true) + " " + response
@@ -1183,6 +1505,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         setupOpenFolder(mock);
         mFolder.open(OpenMode.READ_WRITE);
 
+        assertFalse(mFolder.canAppendMessagesTogether());
         ImapMessage message = prepareForAppendTest(mock, "oK [aPPENDUID 1234567 13] (Success)");
 
         mFolder.appendMessage(getInstrumentation().getTargetContext(), message, false);
@@ -1191,6 +1514,37 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(7, mFolder.getMessageCount());
     }
 
+    /**
+     * Test for APPEND of several messages with MULTIAPPEND and LITERAL+: a single command, with
+     * no continuation requests, and the UIDs from the APPENDUID range.
+     */
+    public void testAppendMessagesMultiAppend() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "mULTIAPPEND lITERAL+");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message1 = createMessageForAppendTest("<message.id1@test.com>");
+        ImapMessage message2 = createMessageForAppendTest("<message.id2@test.com>");
+
+        mock.expect(getNextTag(false) +
+                " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{167\\+\\}",
+                NO_REPLY);
+        expectAppendLiteral(mock, "<message.id1@test.com>");
+        mock.expectLiterally(" (\\SEEN) {167+}", NO_REPLY);
+        expectAppendLiteral(mock, "<message.id2@test.com>");
+        mock.expectLiterally("", new String[] {
+                "* 8 eXISTS",
+                getNextTag(true) + " oK [aPPENDUID 1234567 13:14] (Success)"
+                });
+
+        mFolder.appendMessages(getInstrumentation().getTargetContext(),
+                new Message[] { message1, message2 }, false);
+
+        assertEquals("13", message1.getUid());
+        assertEquals("14", message2.getUid());
+        assertEquals(8, mFolder.getMessageCount());
+    }
+
     /**
      * Test for APPEND when the response doesn't have APPENDUID.
      */
@@ -1224,9 +1578,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
     /**
      * Test for append failure.
      *
-     * We don't check the response for APPEND.  We just SEARCH for the message-id to get the UID.
-     * If append has failed, the SEARCH command returns no UID, and the UID of the message is left
-     * unset.
+     * A tagged NO for the APPEND is reported to the caller, so that the message isn't taken as
+     * uploaded, and the UID of the message is left unset.
      */
     public void testAppendFailure() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
@@ -1235,27 +1588,47 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         ImapMessage message = prepareForAppendTest(mock, "NO No space left on the server.");
         assertEquals("initial uid", message.getUid());
-        // First try w/o parenthesis
-        mock.expectLiterally(
-                getNextTag(false) + " UID SEARCH HEADER MESSAGE-ID <message.id@test.com>",
-                new String[] {
-                    "* sEARCH", // not found
-                    getNextTag(true) + " oK Search completed."
-                });
-        // If that fails, then try w/ parenthesis
-        mock.expectLiterally(
-                getNextTag(false) + " UID SEARCH (HEADER MESSAGE-ID <message.id@test.com>)",
-                new String[] {
-                    "* sEARCH", // not found
-                    getNextTag(true) + " oK Search completed."
-                });
 
-        mFolder.appendMessage(getInstrumentation().getTargetContext(), message, false);
+        try {
+            mFolder.appendMessage(getInstrumentation().getTargetContext(), message, false);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
 
         // Shouldn't have changed
         assertEquals("initial uid", message.getUid());
     }
 
+    /**
+     * With MULTIAPPEND, a tagged NO rejects the whole batch.
+     */
+    public void testAppendMessagesMultiAppendFailure() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "mULTIAPPEND lITERAL+");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mFolder.canAppendMessagesTogether());
+
+        ImapMessage message1 = createMessageForAppendTest("<message.id1@test.com>");
+        ImapMessage message2 = createMessageForAppendTest("<message.id2@test.com>");
+
+        mock.expect(getNextTag(false) +
+                " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{167\\+\\}",
+                NO_REPLY);
+        expectAppendLiteral(mock, "<message.id1@test.com>");
+        mock.expectLiterally(" (\\SEEN) {167+}", NO_REPLY);
+        expectAppendLiteral(mock, "<message.id2@test.com>");
+        mock.expectLiterally("", new String[] {
+                getNextTag(true) + " nO [oVERQUOTA] Quota exceeded"
+                });
+
+        try {
+            mFolder.appendMessages(getInstrumentation().getTargetContext(),
+                    new Message[] { message1, message2 }, false);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
     public void testGetAllFolders() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         expectLogin(mock);
@@ -1269,12 +1642,31 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 "* lIST (\\HAsNoChildren) \"/\" \"&ZeVnLIqe-\"", // Japanese folder name
                 getNextTag(true) + " oK SUCCESS"
                 });
+        // Without LIST-STATUS, the counts of the selectable folders are asked for with STATUS,
+        // in order of their names
+        mock.expect(getNextTag(false) + " STATUS \"Drafts\" \\(MESSAGES UNSEEN UIDNEXT\\)",
+                new String[] {
+                "* sTATUS Drafts (mESSAGES 2 uNSEEN 0 uIDNEXT 8)",
+                getNextTag(true) + " oK STATUS completed"
+                });
+        mock.expect(getNextTag(false) + " STATUS \"INBOX\" \\(MESSAGES UNSEEN UIDNEXT\\)",
+                new String[] {
+                "* sTATUS \"INBOX\" (mESSAGES 231 uNSEEN 3 uIDNEXT 44292)",
+                getNextTag(true) + " oK STATUS completed"
+                });
+        mock.expect(getNextTag(false) + " STATUS \"&ZeVnLIqe-\" \\(MESSAGES UNSEEN UIDNEXT\\)",
+                new String[] {
+                getNextTag(true) + " nO No such mailbox"
+                });
         Folder[] folders = mStore.updateFolders();
         ImapFolder testFolder;
 
         testFolder = (ImapFolder) folders[0];
         assertEquals("INBOX", testFolder.getName());
         assertEquals(SELECTABLE_BITS, testFolder.mMailbox.mFlags & SELECTABLE_BITS);
+        assertEquals(231, testFolder.mMailbox.mTotalCount);
+        assertEquals(3, testFolder.getStatusUnseenCount());
+        assertEquals(44292, testFolder.getStatusUidNext());
 
         testFolder = (ImapFolder) folders[1];
         assertEquals("no select", testFolder.getName());
@@ -1283,14 +1675,56 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         testFolder = (ImapFolder) folders[2];
         assertEquals("\u65E5\u672C\u8A9E", testFolder.getName());
         assertEquals(SELECTABLE_BITS, testFolder.mMailbox.mFlags & SELECTABLE_BITS);
+        assertEquals(-1, testFolder.getStatusUnseenCount());
 
         testFolder = (ImapFolder) folders[3];
         assertEquals("Drafts", testFolder.getName());
         assertEquals(SELECTABLE_BITS, testFolder.mMailbox.mFlags & SELECTABLE_BITS);
+        assertEquals(2, testFolder.mMailbox.mTotalCount);
+        assertEquals(0, testFolder.getStatusUnseenCount());
+        assertEquals(8, testFolder.getStatusUidNext());
         // TODO test with path prefix
         // TODO: Test NO response.
     }
 
+    /**
+     * With LIST-STATUS, the counts come back with the folder list, for the INBOX too.
+     */
+    public void testGetAllFoldersListStatus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, true, false, new String[] {"* iD nIL", "oK"},
+                "oK [cAPABILITY iMAP4rev1 lIST-sTATUS] user authenticated (Success)");
+
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false)
+                + " LIST \"\" \"\\*\" RETURN \\(STATUS \\(MESSAGES UNSEEN UIDNEXT\\)\\)",
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* sTATUS \"inbox\" (mESSAGES 231 uNSEEN 3 uIDNEXT 44292)",
+                "* lIST (\\nOselect) \"/\" \"no select\"",
+                "* lIST (\\HAsNoChildren) \"/\" \"Drafts\"",
+                "* sTATUS \"Drafts\" (mESSAGES 2 uNSEEN 1 uIDNEXT 8)",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        final HashMap<String, ImapFolder> folders = new HashMap<String, ImapFolder>();
+        for (Folder folder : mStore.updateFolders()) {
+            folders.put(folder.getName(), (ImapFolder) folder);
+        }
+
+        ImapFolder testFolder = folders.get("INBOX");
+        assertEquals(231, testFolder.mMailbox.mTotalCount);
+        assertEquals(3, testFolder.getStatusUnseenCount());
+        assertEquals(44292, testFolder.getStatusUidNext());
+
+        testFolder = folders.get("Drafts");
+        assertEquals(2, testFolder.mMailbox.mTotalCount);
+        assertEquals(1, testFolder.getStatusUnseenCount());
+        assertEquals(8, testFolder.getStatusUidNext());
+
+        testFolder = folders.get("no select");
+        assertEquals(-1, testFolder.getStatusUnseenCount());
+    }
+
     public void testEncodeFolderName() {
         // null prefix
         assertEquals("",
@@ -1461,7 +1895,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         }
 
         // READ-WRITE
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 1 eXISTS",
@@ -1478,7 +1911,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertFalse(folder.isOpen());
 
         // READ-ONLY
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 2 eXISTS",
@@ -1491,7 +1923,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(OpenMode.READ_ONLY, folder.getMode());
 
         // Try to re-open as read-write.  Should send SELECT again.
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 15 eXISTS",
@@ -1518,9 +1949,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.exists());
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Doesn't exist
         folder = mStore.getFolder("no such folder");
         mock.expect(getNextTag(false) + " STATUS \\\"no such folder\\\" \\(UIDVALIDITY\\)",
@@ -1547,9 +1975,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.create(FolderType.HOLDS_MESSAGES));
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Failure
         mock.expect(getNextTag(false) + " CREATE \\\"&ZeVnLIqe-\\\"",
                 new String[] {
@@ -1563,7 +1988,21 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         mCopyMock = openAndInjectMockTransport();
         setupOpenFolder(mCopyMock, new String[] {"* iD nIL", "oK"}, "rEAD-wRITE", withUidPlus);
         mFolder.open(OpenMode.READ_WRITE);
+        createCopyMessages();
+    }
+
+    /**
+     * Like {@link #setupCopyMessages}, for a server that reports {@code capabilities} once the
+     * user has logged in.
+     */
+    private void setupMoveMessages(String capabilities) throws Exception {
+        mCopyMock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mCopyMock, capabilities);
+        mFolder.open(OpenMode.READ_WRITE);
+        createCopyMessages();
+    }
 
+    private void createCopyMessages() throws Exception {
         mCopyToFolder = mStore.getFolder("\u65E5\u672C\u8A9E");
         Message m1 = mFolder.createMessage("11");
         m1.setMessageId("<4D8978AE.0000005D@m58.foo.com>");
@@ -1576,7 +2015,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * Returns the pattern for the IMAP request to copy messages.
      */
     private String getCopyMessagesPattern() {
-        return getNextTag(false) + " UID COPY 11\\,12 \\\"&ZeVnLIqe-\\\"";
+        return getNextTag(false) + " UID COPY 11:12 \\\"&ZeVnLIqe-\\\"";
     }
 
     /**
@@ -1694,7 +2133,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 });
         // New connection, so, we need to login again & the tag count gets reset
         int saveTag = resetTag();
-        expectLogin(mCopyMock, new String[] {"* iD nIL", "oK"}, false);
+        expectCachedLogin(mCopyMock);
         // Select destination folder
         expectSelect(mCopyMock, "&ZeVnLIqe-", "rEAD-wRITE");
         // Perform searches
@@ -1729,7 +2168,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 });
         // New connection, so, we need to login again & the tag count gets reset
         int saveTag = resetTag();
-        expectLogin(mCopyMock, new String[] {"* iD nIL", "oK"}, false);
+        expectCachedLogin(mCopyMock);
         // Select destination folder
         expectSelect(mCopyMock, "&ZeVnLIqe-", "rEAD-wRITE");
         // Perform searches
@@ -1764,7 +2203,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 });
         // New connection, so, we need to login again & the tag count gets reset
         int saveTag = resetTag();
-        expectLogin(mCopyMock, new String[] {"* iD nIL", "oK"}, false);
+        expectCachedLogin(mCopyMock);
         // Select destination folder
         expectSelect(mCopyMock, "&ZeVnLIqe-", "rEAD-wRITE");
         // Perform searches
@@ -1788,6 +2227,81 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(0, cb.messageUidChangeCalled);
     }
 
+    /**
+     * Counts the UIDs reported to the callback, keyed by the old UID.
+     */
+    private static class MessageUidRecorder extends MessageUpdateCallbackCounter {
+        final HashMap<String, String> newUids = new HashMap<String, String>();
+
+        @Override
+        public void onMessageUidChange(Message message, String newUid) {
+            super.onMessageUidChange(message, newUid);
+            newUids.put(message.getUid(), newUid);
+        }
+    }
+
+    // Golden case; MOVE, with the new UIDs in an untagged COPYUID response
+    public void testMoveMessages() throws Exception {
+        setupMoveMessages("mOVE uIDPLUS");
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                    "* oK [COPYUID 777 11:12 45:46] Moved UIDs.",
+                    "* 1 eXPUNGE",
+                    "* 1 eXPUNGE",
+                    getNextTag(true) + " oK Move completed"
+                });
+
+        MessageUidRecorder cb = new MessageUidRecorder();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+        assertEquals("45", cb.newUids.get("11"));
+        assertEquals("46", cb.newUids.get("12"));
+    }
+
+    // Degenerate case; NO, tagged response to MOVE throws MessagingException
+    public void testMoveMessagesFailure() throws Exception {
+        setupMoveMessages("mOVE uIDPLUS");
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                    getNextTag(true) + " nO [TRYCREATE] No such mailbox"
+                });
+
+        try {
+            mFolder.moveMessages(mCopyMessages, mCopyToFolder, null);
+            fail("MessagingException expected.");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    // Without MOVE, the messages are copied, marked as deleted and expunged
+    public void testMoveMessagesWithoutMove() throws Exception {
+        setupMoveMessages("uIDPLUS");
+        mCopyMock.expect(getCopyMessagesPattern(),
+                new String[] {
+                    getNextTag(true) + " oK [COPYUID 777 11:12 45:46] UID COPY completed"
+                });
+        mCopyMock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                    getNextTag(true) + " oK Store completed"
+                });
+        mCopyMock.expect(getNextTag(false) + " UID EXPUNGE 11:12",
+                new String[] {
+                    "* 1 eXPUNGE",
+                    "* 1 eXPUNGE",
+                    getNextTag(true) + " oK Expunge completed"
+                });
+
+        MessageUidRecorder cb = new MessageUidRecorder();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(2, cb.messageUidChangeCalled);
+        assertEquals("45", cb.newUids.get("11"));
+        assertEquals("46", cb.newUids.get("12"));
+    }
+
     public void testGetUnreadMessageCount() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1829,7 +2343,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Set
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1837,7 +2351,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Clear
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
+                getNextTag(false) + " UID STORE 11:12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1846,6 +2360,34 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (src message not found)
     }
 
+    public void testUpdateFlagsPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("11"),
+                mFolder.createMessage("12"),
+                };
+
+        // Both STOREs are sent before either response is read; the first fails
+        mock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\SEEN\\)",
+                new String[] {
+                getNextTag(true) + " NO failed"
+                });
+        mock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\-FLAGS.SILENT \\(\\\\FLAGGED\\)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        try {
+            mFolder.updateFlags(messages, new Flag[] {Flag.SEEN}, new Flag[] {Flag.FLAGGED});
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
     public void testSearchForUids() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1907,6 +2449,64 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
     }
 
 
+    /**
+     * With ESEARCH, the UIDs come back as a sequence set and are expanded when they're asked for.
+     */
+    public void testSearchForUidsEsearch() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithCapabilities(mock, "eSEARCH");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(
+                getNextTag(false) + " UID SEARCH RETURN \\(MIN MAX COUNT ALL\\) X",
+                new String[] {
+                        "* eSEARCH (tAG \"" + getNextTag(false) + "\") uID mIN 2 mAX 11"
+                                + " cOUNT 4 aLL 2,9:11",
+                        getNextTag(true) + " oK success"
+                });
+        MoreAsserts.assertEquals(new String[] {
+                "2", "9", "10", "11"
+                }, mFolder.searchForUids("X"));
+
+        // Nothing found; the server only returns the tag and COUNT.
+        mock.expect(
+                getNextTag(false) + " UID SEARCH RETURN \\(MIN MAX COUNT ALL\\) X",
+                new String[] {
+                        "* eSEARCH (tAG \"" + getNextTag(false) + "\") uID cOUNT 0",
+                        getNextTag(true) + " oK success"
+                });
+        MoreAsserts.assertEquals(new String[] {
+                }, mFolder.searchForUids("X"));
+    }
+
+    /**
+     * ImapSearchResult reports the ESEARCH COUNT without expanding the sequence set.
+     */
+    public void testSearchResultCount() throws Exception {
+        final ImapSearchResult result = ImapSearchResult.fromResponses(Arrays.asList(
+                ImapTestUtils.parseResponse("* ESEARCH (TAG \"1\") UID COUNT 4 ALL 2,9:11")));
+        assertEquals(4, result.getCount());
+        assertEquals("[2, 9, 10, 11]", Arrays.toString(result.getUids()));
+
+        final ImapSearchResult plain = ImapSearchResult.fromResponses(
+                Arrays.asList(ImapTestUtils.parseResponse("* SEARCH 5 3 4")));
+        assertEquals(3, plain.getCount());
+        assertEquals("[5, 3, 4]", Arrays.toString(plain.getUids()));
+        assertFalse(plain.isSorted());
+    }
+
+    /**
+     * The UIDs from a SORT response keep the server's order.
+     */
+    public void testSortResult() throws Exception {
+        final ImapSearchResult result = ImapSearchResult.fromResponses(
+                Arrays.asList(ImapTestUtils.parseResponse("* sORT 6 2 3")));
+        assertTrue(result.isSorted());
+        assertEquals(3, result.getCount());
+        assertEquals("[6, 2, 3]", Arrays.toString(result.getUids()));
+    }
+
+
     public void testGetMessage() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -2013,16 +2613,17 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // New connection, so, we need to login again & the tag count gets reset
         int saveTag = resetTag();
 
-        // Open con2
-        expectLogin(mock);
+        // Open con2.  It uses what con1 learnt about the server, so it skips CAPABILITY.
+        expectCachedLogin(mock);
         con2.open();
         assertTrue(con1.isTransportOpenForTest());
 
         // Now we have two open connections: con1 and con2
 
-        // Save con1 in the pool.
+        // Save con1 in the pool, and make it look like it hasn't been used for a while.
         mStore.poolConnection(con1);
         assertEquals(1, mStore.getConnectionPoolForTest().size());
+        con1.mLastUsedTime -= ImapStore.CONNECTION_VERIFY_MILLIS;
 
         // Get another connection.  Should get con1, after verifying the connection.
         saveTag = resetTag(saveTag);
@@ -2036,6 +2637,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // Save con2.
         mStore.poolConnection(con2);
         assertEquals(1, mStore.getConnectionPoolForTest().size());
+        con2.mLastUsedTime -= ImapStore.CONNECTION_VERIFY_MILLIS;
 
         // Resume con2 tags ...
         resetTag(saveTag);
@@ -2051,6 +2653,84 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNotSame(con2, con3);
     }
 
+    /**
+     * Test for {@link ImapStore#getConnection} with a recently used connection, which is reused
+     * without a NOOP.
+     */
+    public void testGetConnectionRecentlyUsed() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        mStore.poolConnection(con1);
+        assertEquals(1, mStore.getConnectionPoolForTest().size());
+
+        // No NOOP expected
+        final ImapConnection con1b = mStore.getConnection();
+        assertSame(con1, con1b);
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertTrue(con1.isTransportOpenForTest());
+    }
+
+    /**
+     * Test that connections after the first skip CAPABILITY, unless the session cache is stale
+     * or the server has reported capabilities that don't match it.
+     */
+    public void testSessionCache() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+
+        expectLogin(mock);
+        new ImapConnection(mStore).open();
+        assertTrue(mStore.getSessionCache().isFresh());
+
+        // The server reports a new capability after login.
+        resetTag();
+        expectCachedLogin(mock, false, true,
+                "oK [cAPABILITY iMAP4rev1 iD iDLE] user authenticated (Success)");
+        final ImapConnection con2 = new ImapConnection(mStore);
+        con2.open();
+        assertTrue(con2.isCapable(ImapConnection.CAPABILITY_IDLE));
+        assertFalse(mStore.getSessionCache().isFresh());
+
+        // So the next connection does the full handshake again.
+        resetTag();
+        expectLogin(mock);
+        new ImapConnection(mStore).open();
+        assertTrue(mStore.getSessionCache().isFresh());
+
+        // The server no longer has a capability it had; it isn't used any more.
+        resetTag();
+        expectCachedLogin(mock, false, true,
+                "oK [cAPABILITY iMAP4rev1] user authenticated (Success)");
+        final ImapConnection con3 = new ImapConnection(mStore);
+        con3.open();
+        assertFalse(con3.isCapable(ImapConnection.CAPABILITY_ID));
+        assertFalse(mStore.getSessionCache().isFresh());
+
+        // As it does when the cache is too old.
+        mStore.getSessionCache().mUpdatedTime -= ImapSessionCache.MAX_AGE_MILLIS;
+        resetTag();
+        expectLogin(mock);
+        new ImapConnection(mStore).open();
+        assertTrue(mStore.getSessionCache().isFresh());
+    }
+
+    /**
+     * Test that connections using the session cache still start TLS.
+     */
+    public void testSessionCacheTls() throws Exception {
+        MockTransport mock = openAndInjectMockTransport(HostAuth.FLAG_TLS, false);
+
+        expectLogin(mock, true, false, false, null, "oK user authenticated (Success)");
+        new ImapConnection(mStore).open();
+
+        resetTag();
+        expectCachedLogin(mock, true, false, "oK user authenticated (Success)");
+        new ImapConnection(mStore).open();
+        assertTrue(mock.isTlsStarted());
+    }
+
     public void testCheckSettings() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
 
@@ -2149,6 +2829,12 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
             "* LIST () \"/\" \"" + FOLDER_2 + "\"",
             getNextTag(true) + " OK SUCCESS"
         });
+        mock.expect(getNextTag(false) + " STATUS \"" + FOLDER_1_QUOTED + "\" .*",
+                new String[] {getNextTag(true) + " OK STATUS completed"});
+        mock.expect(getNextTag(false) + " STATUS \"INBOX\" \\(MESSAGES UNSEEN UIDNEXT\\)",
+                new String[] {getNextTag(true) + " OK STATUS completed"});
+        mock.expect(getNextTag(false) + " STATUS \"" + FOLDER_2 + "\" .*",
+                new String[] {getNextTag(true) + " OK STATUS completed"});
         final Folder[] folders = mStore.updateFolders();
 
         ArrayList<String> list = new ArrayList<String>();
@@ -2161,7 +2847,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 );
 
         // Try to open the folders.
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_1_QUOTED + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
@@ -2173,7 +2858,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         folders[2].open(OpenMode.READ_WRITE);
         folders[2].close(false);
 
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_2 + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test for {@link ImapSyncState}.
+ */
+@SmallTest
+public class ImapSyncStateTest extends AndroidTestCase {
+
+    public void testRoundTrip() {
+        final ImapSyncState state = new ImapSyncState();
+        state.mUidValidity = 4294967295L;
+        state.mUidNext = 57576;
+        state.mHighestModSeq = 90060128194045L;
+
+        final ImapSyncState parsed = ImapSyncState.fromSyncKey(state.toSyncKey());
+        assertEquals(4294967295L, parsed.mUidValidity);
+        assertEquals(57576, parsed.mUidNext);
+        assertEquals(90060128194045L, parsed.mHighestModSeq);
+    }
+
+    public void testInitialSyncKey() {
+        for (String syncKey : new String[] {null, "", "0"}) {
+            final ImapSyncState state = ImapSyncState.fromSyncKey(syncKey);
+            assertEquals(0, state.mUidValidity);
+            assertEquals(0, state.mUidNext);
+            assertEquals(0, state.mHighestModSeq);
+        }
+    }
+
+    public void testInvalidItems() {
+        final ImapSyncState state = ImapSyncState.fromSyncKey("v=12;m=abc;x=5;=3;junk");
+        assertEquals(12, state.mUidValidity);
+        assertEquals(0, state.mUidNext);
+        assertEquals(0, state.mHighestModSeq);
+    }
+}
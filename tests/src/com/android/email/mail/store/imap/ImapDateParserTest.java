@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+@SmallTest
+public class ImapDateParserTest extends AndroidTestCase {
+    /** 2010-05-17 21:59:52 UTC */
+    private static final long MAY_17 = 1274133592000L;
+
+    /**
+     * Date headers as mailers send them, all meaning {@link #MAY_17} (give or take the seconds).
+     */
+    private static final String[] SAME_DATES = {
+        "Mon, 17 May 2010 14:59:52 -0700",
+        "Mon, 17 May 2010 14:59:52 -0700 (PDT)",
+        "17 May 2010 14:59:52 -0700",
+        "Mon,17 May 2010 14:59:52 -0700",
+        "Mon 17 May 2010 14:59:52 -0700",
+        "Monday, 17 May 2010 14:59:52 -0700",
+        "Mon, 17 may 2010 14:59:52 -0700",
+        "Mon, 17 MAY 2010 21:59:52 GMT",
+        "Mon, 17 May 2010 21:59:52 UT",
+        "Mon, 17 May 2010 21:59:52 +0000 (UTC)",
+        "Mon, 17 May 2010 14:59:52 PDT",
+        "Mon, 17 May 2010 16:59:52 EST",
+        "Mon, 17 May 10 14:59:52 -0700",
+        "Mon, 17 May 110 14:59:52 -0700",
+        "Mon, 17-May-2010 14:59:52 -0700",
+        "Mon, 17 May 2010 4:59:52 -1700",
+        "Mon, 17 May 2010 14:59:52.123 -0700",
+        "Mon, 17 May 2010 14:59:52 -07:00",
+        // No zone, or one we don't know, is UTC
+        "Mon, 17 May 2010 21:59:52",
+        "Mon, 17 May 2010 21:59:52 Z",
+        "Mon, 17 May 2010 21:59:52 A",
+        "Mon, 17 May 2010 21:59:52 XYZ",
+        // Folded, and with comments
+        "  Mon,\r\n 17 May 2010\t14:59:52 -0700",
+        "(comment) Mon, 17 May 2010 14:59:52 -0700",
+        "Mon, 17 May 2010 14:59:52 -0700 (PDT (nested))",
+        // asctime()
+        "Mon May 17 21:59:52 2010",
+        "Mon May 17 14:59:52 PDT 2010",
+        "May 17 21:59:52 2010",
+    };
+
+    private static final String[] INVALID_DATES = {
+        null,
+        "",
+        "garbage",
+        "Mon, 17 Foo 2010 14:59:52 -0700",
+        "Mon, 17 May 2010",
+        "Mon, 17 May 2010 25:00:00 +0000",
+        "Mon, 17 May 2010 14:60:00 +0000",
+        "Mon, 117 May 2010 14:59:52 -0700",
+    };
+
+    public void testParseRfc2822Date() {
+        for (String date : SAME_DATES) {
+            assertEquals(date, MAY_17, ImapDateParser.parseRfc2822Date(date));
+        }
+        assertEquals(MAY_17 - 52000,
+                ImapDateParser.parseRfc2822Date("Mon, 17 May 2010 14:59 -0700"));
+        assertEquals(1284760792000L,
+                ImapDateParser.parseRfc2822Date("Fri, 17 September 2010 14:59:52 -0700"));
+
+        // Edges of the calendar
+        assertEquals(0, ImapDateParser.parseRfc2822Date("Thu, 01 Jan 1970 00:00:00 +0000"));
+        assertEquals(-1000, ImapDateParser.parseRfc2822Date("Wed, 31 Dec 1969 23:59:59 +0000"));
+        assertEquals(1330516800000L,
+                ImapDateParser.parseRfc2822Date("Wed, 29 Feb 2012 12:00:00 +0000"));
+        assertEquals(946684799000L,
+                ImapDateParser.parseRfc2822Date("Fri, 31 Dec 1999 23:59:59 -0000"));
+        // A lenient Calendar moves this into March
+        assertEquals(ImapDateParser.parseRfc2822Date("1 Mar 2011 00:00:00 +0000"),
+                ImapDateParser.parseRfc2822Date("29 Feb 2011 00:00:00 +0000"));
+
+        for (String date : INVALID_DATES) {
+            assertEquals(date, ImapDateParser.INVALID, ImapDateParser.parseRfc2822Date(date));
+        }
+    }
+
+    public void testParseInternalDate() {
+        assertEquals(1274133615000L,
+                ImapDateParser.parseInternalDate("17-May-2010 22:00:15 +0000"));
+        assertEquals(1273269615000L,
+                ImapDateParser.parseInternalDate(" 7-May-2010 22:00:15 +0000"));
+        assertEquals(1273269615000L,
+                ImapDateParser.parseInternalDate("7-May-2010 22:00:15 +0000"));
+        assertEquals(1230813296000L,
+                ImapDateParser.parseInternalDate("01-Jan-2009 11:34:56 -0100"));
+        assertEquals(1274113815000L,
+                ImapDateParser.parseInternalDate("17-MAY-2010 22:00:15 +0530"));
+
+        assertEquals(ImapDateParser.INVALID, ImapDateParser.parseInternalDate(null));
+        assertEquals(ImapDateParser.INVALID, ImapDateParser.parseInternalDate(""));
+        assertEquals(ImapDateParser.INVALID, ImapDateParser.parseInternalDate("1234"));
+        assertEquals(ImapDateParser.INVALID,
+                ImapDateParser.parseInternalDate("17-May-2010 22:00:15"));
+        assertEquals(ImapDateParser.INVALID,
+                ImapDateParser.parseInternalDate("17-May-2010 22:00:15 PDT"));
+        assertEquals(ImapDateParser.INVALID,
+                ImapDateParser.parseInternalDate("Mon, 17 May 2010 22:00:15 +0000"));
+    }
+
+    /**
+     * The result mustn't depend on the default time zone or locale.
+     */
+    public void testDefaultTimeZoneAndLocale() {
+        final TimeZone savedTimeZone = TimeZone.getDefault();
+        final Locale savedLocale = Locale.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+            Locale.setDefault(Locale.JAPAN);
+            assertEquals(MAY_17, ImapDateParser.parseRfc2822Date(SAME_DATES[0]));
+            assertEquals(1274133615000L,
+                    ImapDateParser.parseInternalDate("17-May-2010 22:00:15 +0000"));
+        } finally {
+            TimeZone.setDefault(savedTimeZone);
+            Locale.setDefault(savedLocale);
+        }
+    }
+}
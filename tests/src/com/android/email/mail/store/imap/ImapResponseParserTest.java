@@ -32,6 +32,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -258,6 +259,67 @@ public class ImapResponseParserTest extends AndroidTestCase {
         assertEquals("B[a b c]d", r.getStringOrEmpty(1).getString());
     }
 
+    /**
+     * Strings longer than the read buffer, and strings that remain after the token buffer has
+     * been reused.
+     */
+    public void testLongStringsAndDestroyResponses() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        final String longString = sb.toString();
+        ImapResponse r;
+        final ImapResponseParser p = generateParser(100000,
+                "* X " + longString + " \"" + longString + "\" nil\r\n" +
+                "* OK [UIDNEXT 10] done\r\n" +
+                "* 1 FETCH (UID 123)\r\n"
+                );
+        r = p.readResponse();
+        assertEquals(longString, r.getStringOrEmpty(1).getString());
+        assertTrue(r.getStringOrEmpty(2).is(longString.toUpperCase()));
+        assertTrue(r.getStringOrEmpty(3).isEmpty());
+
+        r = p.readResponse();
+        p.destroyResponses();
+
+        r = p.readResponse();
+        assertTrue(r.isDataResponse(1, ImapConstants.FETCH));
+        assertEquals(123, r.getListOrEmpty(2).getKeyedStringOrEmpty("uid").getNumberOrZero());
+    }
+
+    public void testLiteralSink() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 1 BODY[2] {5}\r\nhello FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 2 BODY[HEADER] {3}\r\nabc)\r\n" +
+                "* XXX {3}\r\nxyz\r\n"
+                );
+        final StringBuilder received = new StringBuilder();
+        p.setLiteralSink(new ImapResponseParser.LiteralSink() {
+            @Override
+            public void onLiteral(InputStream in, int size) throws IOException {
+                assertEquals(5, size);
+                // Only read a part of it; the parser should skip the rest.
+                received.append((char) in.read()).append((char) in.read());
+            }
+        });
+
+        ImapResponse r = p.readResponse();
+        assertEquals("he", received.toString());
+        final ImapList fetchList = r.getListOrEmpty(2);
+        assertTrue(fetchList.getKeyedStringOrEmpty("BODY[2]").isEmpty());
+        assertTrue(fetchList.getKeyedListOrEmpty("FLAGS").is(0, "\\Seen"));
+
+        received.setLength(0);
+        p.setLiteralSink(null);
+        r = p.readResponse();
+        assertEquals("abc", r.getListOrEmpty(2).getKeyedStringOrEmpty("BODY[HEADER]").getString());
+
+        r = p.readResponse();
+        assertEquals("xyz", r.getStringOrEmpty(1).getString());
+        assertEquals(0, received.length());
+    }
+
     public void testNest() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
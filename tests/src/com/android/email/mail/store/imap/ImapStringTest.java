@@ -80,6 +80,31 @@ public class ImapStringTest extends AndroidTestCase {
         assertFalse(s.startsWith("abcde"));
     }
 
+    public void testBasicsWithBytes() throws Exception {
+        final byte[] data = Utility.toAscii("xxAbcDyy");
+        final ImapSimpleString s = new ImapSimpleString(data, 2, 4);
+        assertFalse(s.isEmpty());
+        assertEquals("AbcD", Utility.fromAscii(IOUtils.toByteArray(s.getAsStream())));
+
+        assertFalse(s.is(""));
+        assertTrue(s.is("abcd"));
+        assertFalse(s.is("abc"));
+        assertFalse(s.is("abcdy"));
+
+        assertTrue(s.startsWith(""));
+        assertTrue(s.startsWith("aB"));
+        assertTrue(s.startsWith("abcd"));
+        assertFalse(s.startsWith("Z"));
+        assertFalse(s.startsWith("abcdy"));
+
+        assertEquals("AbcD", s.getString());
+
+        final ImapSimpleString empty = new ImapSimpleString(data, 0, 0);
+        assertTrue(empty.isEmpty());
+        assertTrue(empty.is(""));
+        assertFalse(empty.is("x"));
+    }
+
     public void testGetNumberOrZero() {
         assertEquals(1234, new ImapSimpleString("1234").getNumberOrZero());
         assertEquals(-1, new ImapSimpleString("-1").getNumberOrZero());
@@ -91,6 +116,16 @@ public class ImapStringTest extends AndroidTestCase {
         assertEquals(0, new ImapSimpleString("99999999999999999999").getNumberOrZero());
     }
 
+    public void testGetLongOrZero() {
+        assertEquals(1234L, new ImapSimpleString("1234").getLongOrZero());
+        assertEquals(4294967295L, new ImapSimpleString("4294967295").getLongOrZero());
+        assertEquals(0L, new ImapSimpleString("").getLongOrZero());
+        assertEquals(0L, new ImapSimpleString("X").getLongOrZero());
+
+        // Too large for 64 bit long
+        assertEquals(0L, new ImapSimpleString("99999999999999999999").getLongOrZero());
+    }
+
     public void testGetDateOrNull() {
         final ImapString date = new ImapSimpleString("01-Jan-2009 11:34:56 -0100");
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+@SmallTest
+public class ImapUidSetBuilderTest extends AndroidTestCase {
+
+    public void testEmpty() {
+        final ImapUidSetBuilder builder = new ImapUidSetBuilder();
+        assertTrue(builder.isEmpty());
+        assertTrue(builder.build().isEmpty());
+    }
+
+    public void testRanges() {
+        final ImapUidSetBuilder builder = new ImapUidSetBuilder();
+        for (long uid = 1499; uid >= 1000; uid--) {
+            builder.add(uid);
+        }
+        builder.add("1503").add(1000).add(7).add(4294967295L).add(4294967294L);
+        assertFalse(builder.isEmpty());
+        final List<String> sets = builder.build();
+        assertEquals(1, sets.size());
+        assertEquals("7,1000:1499,1503,4294967294:4294967295", sets.get(0));
+    }
+
+    public void testNonNumericUids() {
+        final ImapUidSetBuilder builder = new ImapUidSetBuilder();
+        builder.add("a").add("2").add("XX").add("1");
+        MoreAsserts.assertEquals(new String[] {"1:2,a,XX"},
+                builder.build().toArray(new String[0]));
+    }
+
+    public void testSplit() {
+        final ImapUidSetBuilder builder = new ImapUidSetBuilder(10);
+        builder.add(1).add(2).add(3).add(10).add(20).add(300).add(12345678901L).add(5000);
+        MoreAsserts.assertEquals(new String[] {"1:3,10,20", "300,5000", "12345678901"},
+                builder.build().toArray(new String[0]));
+    }
+}
@@ -20,6 +20,8 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.Arrays;
+
 @SmallTest
 public class ImapUtilityTests extends AndroidTestCase {
     public static final String[] EmptyArrayString = new String[0];
@@ -91,6 +93,42 @@ public class ImapUtilityTests extends AndroidTestCase {
         MoreAsserts.assertEquals(expected, actual);
     }
 
+    private static void assertLongs(long[] expected, long[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    /**
+     * Test getting elements of an IMAP sequence set as numbers.
+     */
+    public void testGetImapSequenceLongs() {
+        // Test valid sets
+        assertLongs(new long[] {1}, ImapUtility.getImapSequenceLongs("1"));
+        assertLongs(new long[] {1, 3, 2}, ImapUtility.getImapSequenceLongs("1,3,2"));
+        assertLongs(new long[] {4, 5, 6}, ImapUtility.getImapSequenceLongs("4:6"));
+        assertLongs(new long[] {9, 8, 7}, ImapUtility.getImapSequenceLongs("9:7"));
+        assertLongs(new long[] {1, 2, 3, 4, 9, 8, 7},
+                ImapUtility.getImapSequenceLongs("1,2:4,9:7"));
+        assertLongs(new long[] {4294967294L, 4294967295L},
+                ImapUtility.getImapSequenceLongs("4294967294:4294967295"));
+
+        // More values than the initial capacity
+        final long[] many = ImapUtility.getImapSequenceLongs("1:100,200");
+        assertEquals(101, many.length);
+        assertEquals(1, many[0]);
+        assertEquals(100, many[99]);
+        assertEquals(200, many[100]);
+
+        // Test partially invalid sets
+        assertLongs(new long[] {1, 5}, ImapUtility.getImapSequenceLongs("1,x,5"));
+        assertLongs(new long[] {1, 2, 3}, ImapUtility.getImapSequenceLongs("a:d,1:3"));
+
+        // Test invalid sets
+        assertLongs(new long[0], ImapUtility.getImapSequenceLongs(""));
+        assertLongs(new long[0], ImapUtility.getImapSequenceLongs(null));
+        assertLongs(new long[0], ImapUtility.getImapSequenceLongs("a"));
+        assertLongs(new long[0], ImapUtility.getImapSequenceLongs("1:x"));
+    }
+
     /**
      * Test getting elements of an IMAP range.
      */
@@ -107,6 +145,11 @@ public class ImapUtilityTests extends AndroidTestCase {
         actual = ImapUtility.getImapRangeValues("16:14");
         MoreAsserts.assertEquals(expected, actual);
 
+        // UIDs larger than Integer.MAX_VALUE
+        expected = new String[] {"4294967294", "4294967295"};
+        actual = ImapUtility.getImapRangeValues("4294967294:4294967295");
+        MoreAsserts.assertEquals(expected, actual);
+
         // Test in-valid ranges
         expected = EmptyArrayString;
         actual = ImapUtility.getImapRangeValues("");
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of AccountSyncLock, with several accounts syncing at once.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.AccountSyncLockTests email
+ */
+@MediumTest
+public class AccountSyncLockTests extends TestCase {
+    private static final int ACCOUNTS = 6;
+    private static final int SYNCS_PER_ACCOUNT = 20;
+
+    /**
+     * A slow account doesn't hold up the others.
+     */
+    public void testSlowAccountDoesNotBlockOthers() throws Exception {
+        final CountDownLatch slowSyncStarted = new CountDownLatch(1);
+        final CountDownLatch finishSlowSync = new CountDownLatch(1);
+        final Thread slowSync = new Thread() {
+            @Override
+            public void run() {
+                AccountSyncLock.lock(1001);
+                try {
+                    slowSyncStarted.countDown();
+                    finishSlowSync.await();
+                } catch (InterruptedException e) {
+                    // Just finish
+                } finally {
+                    AccountSyncLock.unlock(1001);
+                }
+            }
+        };
+        slowSync.start();
+        assertTrue(slowSyncStarted.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch otherSyncDone = new CountDownLatch(1);
+        final Thread otherSync = new Thread() {
+            @Override
+            public void run() {
+                AccountSyncLock.lock(1002);
+                AccountSyncLock.unlock(1002);
+                otherSyncDone.countDown();
+            }
+        };
+        otherSync.start();
+        assertTrue(otherSyncDone.await(5, TimeUnit.SECONDS));
+
+        finishSlowSync.countDown();
+        slowSync.join();
+    }
+
+    /**
+     * The lock can be taken again by the thread holding it, without using another slot.
+     */
+    public void testReentrant() {
+        for (int i = 0; i <= AccountSyncLock.MAX_CONCURRENT_SYNCS; i++) {
+            AccountSyncLock.lock(1003);
+        }
+        for (int i = 0; i <= AccountSyncLock.MAX_CONCURRENT_SYNCS; i++) {
+            AccountSyncLock.unlock(1003);
+        }
+    }
+
+    /**
+     * Many syncs of several accounts at once: each account syncs one at a time, no more than
+     * MAX_CONCURRENT_SYNCS accounts sync at once, and different accounts do sync at once.
+     */
+    public void testConcurrentSyncs() throws Exception {
+        final AtomicIntegerArray syncing = new AtomicIntegerArray(ACCOUNTS);
+        final AtomicInteger totalSyncing = new AtomicInteger();
+        final AtomicInteger maxTotalSyncing = new AtomicInteger();
+        final AtomicInteger overlappingSameAccount = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        // fail() on a sync thread would only end that thread; the failure is reported below
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        final ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int account = 0; account < ACCOUNTS; account++) {
+            // Two threads per account, like a sync and a push session
+            for (int t = 0; t < 2; t++) {
+                final int index = account;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < SYNCS_PER_ACCOUNT; i++) {
+                                AccountSyncLock.lock(2000 + index);
+                                try {
+                                    if (syncing.incrementAndGet(index) > 1) {
+                                        overlappingSameAccount.incrementAndGet();
+                                    }
+                                    final int total = totalSyncing.incrementAndGet();
+                                    int max;
+                                    do {
+                                        max = maxTotalSyncing.get();
+                                    } while (total > max
+                                            && !maxTotalSyncing.compareAndSet(max, total));
+                                    Thread.sleep(2);
+                                    totalSyncing.decrementAndGet();
+                                    syncing.decrementAndGet(index);
+                                } finally {
+                                    AccountSyncLock.unlock(2000 + index);
+                                }
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+            }
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30 * 1000);
+            assertFalse(thread.isAlive());
+        }
+        if (failure.get() != null) {
+            fail("Sync thread failed: " + failure.get());
+        }
+
+        assertEquals(0, overlappingSameAccount.get());
+        assertTrue(maxTotalSyncing.get() <= AccountSyncLock.MAX_CONCURRENT_SYNCS);
+        assertTrue(maxTotalSyncing.get() > 1);
+    }
+}
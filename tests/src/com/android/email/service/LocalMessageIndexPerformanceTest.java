@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.mail.utils.LogUtils;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+
+/**
+ * Compares the heap taken by a LocalMessageIndex with that taken by a map of an object per
+ * message keyed by server id, the way ImapService used to index the local messages of a mailbox,
+ * for 1k, 10k and 100k messages.  Not run by default; the sizes are logged.
+ */
+@Suppress
+@LargeTest
+public class LocalMessageIndexPerformanceTest extends TestCase {
+    private static final int[] MESSAGES = { 1000, 10000, 100000 };
+
+    /** What ImapService used to keep for each local message */
+    private static class LocalMessageInfo {
+        final long mId;
+        final boolean mFlagRead;
+        final boolean mFlagFavorite;
+        final int mFlagLoaded;
+        final String mServerId;
+        final int mFlags;
+        final long mTimestamp;
+
+        LocalMessageInfo(long id, boolean flagRead, boolean flagFavorite, int flagLoaded,
+                String serverId, int flags, long timestamp) {
+            mId = id;
+            mFlagRead = flagRead;
+            mFlagFavorite = flagFavorite;
+            mFlagLoaded = flagLoaded;
+            mServerId = serverId;
+            mFlags = flags;
+            mTimestamp = timestamp;
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static HashMap<String, LocalMessageInfo> buildMap(int messages) {
+        final HashMap<String, LocalMessageInfo> map = new HashMap<String, LocalMessageInfo>();
+        for (int i = 1; i <= messages; i++) {
+            // Server ids are read from a cursor, so each is a string of its own
+            final String serverId = Integer.toString(i);
+            map.put(serverId, new LocalMessageInfo(i, i % 2 == 0, false,
+                    EmailContent.Message.FLAG_LOADED_COMPLETE, serverId, 0, i * 1000L));
+        }
+        return map;
+    }
+
+    private static LocalMessageIndex buildIndex(int messages) {
+        final LocalMessageIndex.Builder builder = new LocalMessageIndex.Builder();
+        for (int i = 1; i <= messages; i++) {
+            builder.add(i, i, i % 2 == 0, false, EmailContent.Message.FLAG_LOADED_COMPLETE, 0,
+                    i * 1000L);
+        }
+        return builder.build();
+    }
+
+    public void testHeapUsed() {
+        for (final int messages : MESSAGES) {
+            long before = usedHeap();
+            final HashMap<String, LocalMessageInfo> map = buildMap(messages);
+            final long mapBytes = usedHeap() - before;
+            assertEquals(messages, map.size());
+
+            before = usedHeap();
+            final LocalMessageIndex index = buildIndex(messages);
+            final long indexBytes = usedHeap() - before;
+            assertEquals(messages, index.size());
+            assertEquals(messages - 1, index.find(Integer.toString(messages)));
+
+            LogUtils.d(Logging.LOG_TAG, "%d messages: map %d bytes, index %d bytes",
+                    messages, mapBytes, indexBytes);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of LocalMessageIndex.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.LocalMessageIndexTests email
+ */
+@SmallTest
+public class LocalMessageIndexTests extends TestCase {
+
+    public void testParseUid() {
+        assertEquals(1, LocalMessageIndex.parseUid("1"));
+        assertEquals(1234, LocalMessageIndex.parseUid("1234"));
+        assertEquals(4294967295L, LocalMessageIndex.parseUid("4294967295"));
+
+        // Not valid UIDs
+        assertEquals(-1, LocalMessageIndex.parseUid(null));
+        assertEquals(-1, LocalMessageIndex.parseUid(""));
+        assertEquals(-1, LocalMessageIndex.parseUid("0"));
+        assertEquals(-1, LocalMessageIndex.parseUid("-1"));
+        assertEquals(-1, LocalMessageIndex.parseUid("12a"));
+        assertEquals(-1, LocalMessageIndex.parseUid("4294967296"));
+        assertEquals(-1, LocalMessageIndex.parseUid("99999999999"));
+    }
+
+    public void testEmpty() {
+        assertEquals(0, LocalMessageIndex.EMPTY.size());
+        assertEquals(-1, LocalMessageIndex.EMPTY.find(1));
+        assertEquals(-1, LocalMessageIndex.EMPTY.find("1"));
+    }
+
+    public void testSortedByUid() {
+        final LocalMessageIndex.Builder builder = new LocalMessageIndex.Builder();
+        // More than the builder's initial capacity, added in no particular order
+        for (int i = 0; i < 100; i++) {
+            final long uid = (i * 37) % 100 + 1;
+            builder.add(uid, uid + 1000, uid % 2 == 0, uid % 3 == 0,
+                    EmailContent.Message.FLAG_LOADED_COMPLETE, (int) uid, uid * 10);
+        }
+        final LocalMessageIndex index = builder.build();
+        assertEquals(100, index.size());
+        for (int i = 0; i < index.size(); i++) {
+            final long uid = i + 1;
+            assertEquals(uid, index.getUid(i));
+            assertEquals(uid + 1000, index.getId(i));
+            assertEquals(uid % 2 == 0, index.isRead(i));
+            assertEquals(uid % 3 == 0, index.isFavorite(i));
+            assertEquals(EmailContent.Message.FLAG_LOADED_COMPLETE, index.getFlagLoaded(i));
+            assertEquals(uid, index.getFlags(i));
+            assertEquals(uid * 10, index.getTimestamp(i));
+            assertEquals(i, index.find(uid));
+            assertEquals(i, index.find(Long.toString(uid)));
+        }
+        assertEquals(-1, index.find(0));
+        assertEquals(-1, index.find(101));
+        assertEquals(-1, index.find("101"));
+        assertEquals(-1, index.find("abc"));
+    }
+
+    /**
+     * UIDs are unsigned 32-bit numbers; those past 2^31 sort after the rest.
+     */
+    public void testLargeUids() {
+        final LocalMessageIndex.Builder builder = new LocalMessageIndex.Builder();
+        builder.add(4294967295L, 3, false, false, EmailContent.Message.FLAG_LOADED_UNLOADED,
+                0, 0);
+        builder.add(2147483648L, 2, false, false, EmailContent.Message.FLAG_LOADED_PARTIAL,
+                0, 0);
+        builder.add(7, 1, true, true, EmailContent.Message.FLAG_LOADED_DELETED, 0, 0);
+        final LocalMessageIndex index = builder.build();
+        assertEquals(3, index.size());
+        assertEquals(7, index.getUid(0));
+        assertEquals(2147483648L, index.getUid(1));
+        assertEquals(4294967295L, index.getUid(2));
+        assertEquals(2, index.find("4294967295"));
+        assertEquals(1, index.find("2147483648"));
+        assertEquals(EmailContent.Message.FLAG_LOADED_DELETED, index.getFlagLoaded(0));
+        assertEquals(EmailContent.Message.FLAG_LOADED_PARTIAL, index.getFlagLoaded(1));
+        assertEquals(EmailContent.Message.FLAG_LOADED_UNLOADED, index.getFlagLoaded(2));
+        assertEquals(3, index.getId(2));
+    }
+}
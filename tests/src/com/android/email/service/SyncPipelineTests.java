@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of SyncPipeline.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.SyncPipelineTests email
+ */
+@MediumTest
+public class SyncPipelineTests extends TestCase {
+    private static final int CAPACITY = 4;
+
+    /**
+     * A pipeline that records what it writes, on the thread it writes it on.
+     */
+    private static class RecordingPipeline extends SyncPipeline<Integer> {
+        final List<Integer> mWritten = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile Thread mWriterThread;
+
+        RecordingPipeline() {
+            super("test", CAPACITY);
+        }
+
+        @Override
+        protected void write(List<Integer> items) throws MessagingException {
+            mWriterThread = Thread.currentThread();
+            mWritten.addAll(items);
+        }
+    }
+
+    public void testWritesEverythingInOrder() throws Exception {
+        final RecordingPipeline pipeline = new RecordingPipeline();
+        for (int i = 0; i < 100; i++) {
+            pipeline.put(i);
+        }
+        pipeline.finish();
+        assertEquals(100, pipeline.mWritten.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, pipeline.mWritten.get(i).intValue());
+        }
+        assertNotNull(pipeline.mWriterThread);
+        assertNotSame(Thread.currentThread(), pipeline.mWriterThread);
+        assertFalse(pipeline.mWriterThread.isAlive());
+
+        // Nothing can be put once it's finished, and aborting does nothing
+        try {
+            pipeline.put(100);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pipeline.abort();
+        assertEquals(100, pipeline.mWritten.size());
+    }
+
+    public void testNothingPut() throws Exception {
+        final RecordingPipeline pipeline = new RecordingPipeline();
+        pipeline.finish();
+        assertTrue(pipeline.mWritten.isEmpty());
+        assertNull(pipeline.mWriterThread);
+    }
+
+    /**
+     * put() blocks once the writer has fallen {@link #CAPACITY} messages behind.
+     */
+    public void testBackpressure() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch finishWriting = new CountDownLatch(1);
+        final SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>("test", CAPACITY) {
+            @Override
+            protected void write(List<Integer> items) {
+                writing.countDown();
+                try {
+                    finishWriting.await();
+                } catch (InterruptedException e) {
+                    fail();
+                }
+            }
+        };
+        final AtomicInteger put = new AtomicInteger();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    pipeline.put(i);
+                    put.incrementAndGet();
+                }
+            }
+        };
+        reader.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // The writer has taken at least one message; the rest fill the queue
+        reader.join(500);
+        assertTrue(reader.isAlive());
+        assertTrue(put.get() <= 1 + 2 * CAPACITY);
+
+        finishWriting.countDown();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(100, put.get());
+        pipeline.finish();
+    }
+
+    /**
+     * The writer's failure is thrown by finish(), and what's put after it is dropped.
+     */
+    public void testWriterFailure() throws Exception {
+        final AtomicInteger writes = new AtomicInteger();
+        final SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>("test", CAPACITY) {
+            @Override
+            protected void write(List<Integer> items) throws MessagingException {
+                writes.incrementAndGet();
+                throw new MessagingException("write failed");
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            pipeline.put(i);
+        }
+        try {
+            pipeline.finish();
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("write failed", e.getMessage());
+        }
+        assertEquals(1, writes.get());
+    }
+
+    public void testWriterRuntimeFailure() throws Exception {
+        final SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>("test", CAPACITY) {
+            @Override
+            protected void write(List<Integer> items) {
+                throw new IllegalStateException("database failed");
+            }
+        };
+        pipeline.put(1);
+        try {
+            pipeline.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("database failed", e.getMessage());
+        }
+    }
+
+    /**
+     * If reading fails, abort() drops what hasn't been written, and stops the writer.
+     */
+    public void testAbort() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch finishWriting = new CountDownLatch(1);
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>("test", CAPACITY) {
+            @Override
+            protected void write(List<Integer> items) {
+                written.addAll(items);
+                writing.countDown();
+                try {
+                    finishWriting.await();
+                } catch (InterruptedException e) {
+                    fail();
+                }
+            }
+        };
+        pipeline.put(0);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= CAPACITY; i++) {
+            pipeline.put(i);
+        }
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                pipeline.abort();
+            }
+        };
+        reader.start();
+        // Let the writer go once abort() is waiting for it
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (reader.getState() != Thread.State.WAITING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        finishWriting.countDown();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(1, written.size());
+        // finish() after abort() doesn't throw
+        pipeline.finish();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import com.android.email.provider.ContentCache;
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of SyncWriteBatch, against the Email provider.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.SyncWriteBatchTests email
+ */
+@Suppress
+@LargeTest
+public class SyncWriteBatchTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private long mAccountId;
+    private long mMailboxId;
+
+    public SyncWriteBatchTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    /**
+     * Private context wrapper used to add back getPackageName() for these tests.
+     */
+    private static class MockContext2 extends ContextWrapper {
+        private final Context mRealContext;
+
+        public MockContext2(Context mockContext, Context realContext) {
+            super(mockContext);
+            mRealContext = realContext;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public String getPackageName() {
+            return mRealContext.getPackageName();
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return mRealContext.getSystemService(name);
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = new MockContext2(getMockContext(), getContext());
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+        final Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        mAccountId = account.mId;
+        final Mailbox mailbox =
+                ProviderTestUtils.setupMailbox("inbox", mAccountId, true, mMockContext);
+        mMailboxId = mailbox.mId;
+    }
+
+    private Message newMessage(String name) {
+        return ProviderTestUtils.setupMessage(name, mAccountId, mMailboxId, false, false,
+                mMockContext);
+    }
+
+    private int countMessages() {
+        return EmailContent.count(mMockContext, Message.CONTENT_URI);
+    }
+
+    public void testInsertsGetIdsWhenFlushed() {
+        final SyncWriteBatch batch = new SyncWriteBatch(mMockContext);
+        final Message first = newMessage("first");
+        final Message second = newMessage("second");
+        batch.saveOrUpdate(first);
+        batch.saveOrUpdate(second);
+        assertEquals(2, batch.size());
+        assertFalse(first.isSaved());
+        assertEquals(0, countMessages());
+
+        batch.flush();
+        assertEquals(0, batch.size());
+        assertTrue(first.isSaved());
+        assertTrue(second.isSaved());
+        assertTrue(first.mId != second.mId);
+        assertEquals("subject first",
+                Message.restoreMessageWithId(mMockContext, first.mId).mSubject);
+        assertEquals("subject second",
+                Message.restoreMessageWithId(mMockContext, second.mId).mSubject);
+
+        // Flushing an empty batch does nothing
+        batch.flush();
+        assertEquals(2, countMessages());
+    }
+
+    public void testUpdateAndDelete() {
+        final Message kept = newMessage("kept");
+        kept.save(mMockContext);
+        final Message deleted = newMessage("deleted");
+        deleted.save(mMockContext);
+
+        final SyncWriteBatch batch = new SyncWriteBatch(mMockContext);
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, false);
+        batch.update(kept.getUri(), values);
+        kept.mSubject = "renamed";
+        batch.saveOrUpdate(kept);
+        batch.delete(deleted.getUri());
+        assertEquals(2, countMessages());
+        batch.flush();
+
+        assertEquals(1, countMessages());
+        final Message restored = Message.restoreMessageWithId(mMockContext, kept.mId);
+        assertEquals("renamed", restored.mSubject);
+        assertNull(Message.restoreMessageWithId(mMockContext, deleted.mId));
+    }
+
+    public void testFlushesEachChunk() {
+        final SyncWriteBatch batch = new SyncWriteBatch(mMockContext);
+        final ArrayList<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < SyncWriteBatch.MAX_OPERATIONS + 10; i++) {
+            final Message message = newMessage("message " + i);
+            messages.add(message);
+            batch.saveOrUpdate(message);
+        }
+        assertEquals(10, batch.size());
+        assertEquals(SyncWriteBatch.MAX_OPERATIONS, countMessages());
+        assertTrue(messages.get(SyncWriteBatch.MAX_OPERATIONS - 1).isSaved());
+        assertFalse(messages.get(SyncWriteBatch.MAX_OPERATIONS).isSaved());
+
+        batch.flush();
+        assertEquals(SyncWriteBatch.MAX_OPERATIONS + 10, countMessages());
+        for (Message message : messages) {
+            assertTrue(message.isSaved());
+        }
+    }
+}